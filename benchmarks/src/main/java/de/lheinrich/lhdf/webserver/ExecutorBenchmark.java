@@ -0,0 +1,122 @@
+package de.lheinrich.lhdf.webserver;
+
+import de.lheinrich.lhdf.tools.ThreadTools;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/**
+ * Sends a burst of concurrent slow requests (handlers blocking for 20 ms)
+ * to a server running on a fixed pool of 16 threads and to one running a
+ * virtual thread per connection
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutorBenchmark {
+
+    private final static int PORT = 18090;
+    private final static byte[] REQUEST = "GET /slow HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    @Param({"fixed", "virtual"})
+    public String executor;
+
+    @Param({"200"})
+    public int concurrency;
+
+    private Webserver webserver;
+    private ExecutorService clients;
+
+    @Setup
+    public void setup() throws Exception {
+        if (executor.equals("virtual") && !ThreadTools.isVirtualThreadsSupported())
+            System.out.println("virtual threads not supported by this JVM, using a cached thread pool");
+
+        webserver = Webserver.builder().port(PORT).threads(executor.equals("fixed") ? 16 : 0).backlog(1024).build();
+        webserver.registerRoute("GET", "/slow", new StreamingWebserverHandler() {
+            @Override
+            public void handle(WebserverRequest request, WebserverResponse response) throws IOException {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                response.send("done");
+            }
+        });
+        clients = Executors.newFixedThreadPool(concurrency);
+    }
+
+    @TearDown
+    public void tearDown() {
+        clients.shutdownNow();
+        webserver.close();
+    }
+
+    @Benchmark
+    public long burst() throws Exception {
+        var futures = new ArrayList<Future<Long>>(concurrency);
+        for (var i = 0; i < concurrency; i++)
+            futures.add(clients.submit(ExecutorBenchmark::request));
+
+        var bytes = 0L;
+        for (var future : futures)
+            bytes += future.get();
+        return bytes;
+    }
+
+    private static long request() throws IOException {
+        try (var socket = new Socket()) {
+            socket.connect(new InetSocketAddress("localhost", PORT));
+            socket.getOutputStream().write(REQUEST);
+            return socket.getInputStream().transferTo(NullOutputStream.INSTANCE);
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+
+        private final static NullOutputStream INSTANCE = new NullOutputStream();
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+        }
+    }
+}
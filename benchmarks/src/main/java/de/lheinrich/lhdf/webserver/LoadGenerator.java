@@ -0,0 +1,254 @@
+package de.lheinrich.lhdf.webserver;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/**
+ * Starts a web server in this process and drives its plain and SSL ports
+ * with keep-alive connections, reporting throughput and latency
+ * percentiles. Client and server share the machine, so compare results of
+ * the same host only
+ * <pre>
+ * java -cp target/benchmarks.jar de.lheinrich.lhdf.webserver.LoadGenerator [options]
+ *   -c n       connections per port (default 64)
+ *   -d s       seconds to measure (default 10)
+ *   -w s       seconds to warm up (default 3)
+ *   -s bytes   response body size (default 64)
+ *   -t n       handler threads (virtual thread per task = 0, default)
+ *   -e n       selector threads for HTTP (blocking engine = 0, default)
+ *   --plain    drive the plain port only
+ *   --ssl      drive the SSL port only
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private final static int PORT = 18091;
+    private final static int PORT_SSL = 18444;
+    private final static String PASSWORD = "lhdf-load";
+    private final static byte[] REQUEST = "GET /load HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    public static void main(String[] args) throws Exception {
+        var connections = 64;
+        var duration = 10;
+        var warmup = 3;
+        var size = 64;
+        var threads = 0;
+        var selectorThreads = 0;
+        var plain = true;
+        var ssl = true;
+        for (var i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-c":
+                    connections = Integer.parseInt(args[++i]);
+                    break;
+                case "-d":
+                    duration = Integer.parseInt(args[++i]);
+                    break;
+                case "-w":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "-s":
+                    size = Integer.parseInt(args[++i]);
+                    break;
+                case "-t":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-e":
+                    selectorThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "--plain":
+                    ssl = false;
+                    break;
+                case "--ssl":
+                    plain = false;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+
+        var body = new byte[size];
+        Arrays.fill(body, (byte) 'x');
+        var webserver = Webserver.builder().port(PORT).sslPort(PORT_SSL, generateKeyStore(), PASSWORD.toCharArray())
+                .threads(threads).selectorThreads(selectorThreads).backlog(1024).build();
+        webserver.setKeepAlive(30, Integer.MAX_VALUE);
+        webserver.registerRoute("GET", "/load", new StreamingWebserverHandler() {
+            @Override
+            public void handle(WebserverRequest request, WebserverResponse response) throws IOException {
+                response.setContentType("text/plain");
+                response.send(body);
+            }
+        });
+
+        try {
+            if (plain) {
+                drive(SocketFactory.getDefault(), PORT, connections, warmup);
+                report("plain", connections, duration, drive(SocketFactory.getDefault(), PORT, connections, duration));
+            }
+            if (ssl) {
+                var factory = trustingContext().getSocketFactory();
+                drive(factory, PORT_SSL, connections, warmup);
+                report("ssl", connections, duration, drive(factory, PORT_SSL, connections, duration));
+            }
+        } finally {
+            webserver.shutdown(5);
+        }
+    }
+
+    private static Result drive(SocketFactory factory, int port, int connections, int seconds) throws InterruptedException {
+        var result = new Result();
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        var clients = new Thread[connections];
+        for (var i = 0; i < connections; i++) {
+            clients[i] = new Thread(() -> {
+                // a failed connection is counted and replaced
+                while (System.nanoTime() - deadline < 0) {
+                    try (var socket = factory.createSocket("localhost", port)) {
+                        socket.setTcpNoDelay(true);
+                        var out = socket.getOutputStream();
+                        var in = new BufferedInputStream(socket.getInputStream(), 65536);
+                        while (System.nanoTime() - deadline < 0) {
+                            var start = System.nanoTime();
+                            out.write(REQUEST);
+                            out.flush();
+                            var bytes = readResponse(in);
+                            result.latency.record(System.nanoTime() - start);
+                            result.bytes.add(bytes);
+                        }
+                    } catch (IOException ex) {
+                        result.errors.increment();
+                    }
+                }
+            }, "lhdf-load-" + i);
+            clients[i].start();
+        }
+        for (var client : clients)
+            client.join();
+        return result;
+    }
+
+    private static long readResponse(InputStream in) throws IOException {
+        var head = new StringBuilder(256);
+        var newlines = 0;
+        while (newlines < 2) {
+            var b = in.read();
+            if (b == -1)
+                throw new EOFException("connection closed");
+            head.append((char) b);
+            if (b == '\n')
+                newlines++;
+            else if (b != '\r')
+                newlines = 0;
+        }
+
+        var lower = head.toString().toLowerCase();
+        if (!lower.startsWith("http/1.1 200"))
+            throw new IOException("unexpected response " + head.substring(0, head.indexOf("\r")));
+        var index = lower.indexOf("\r\ncontent-length:");
+        if (index == -1)
+            throw new IOException("response without Content-Length");
+        var length = Long.parseLong(lower.substring(index + 17, lower.indexOf('\r', index + 2)).trim());
+        for (var remaining = length; remaining > 0; ) {
+            var skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() == -1)
+                    throw new EOFException("connection closed");
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+        return head.length() + length;
+    }
+
+    private static void report(String name, int connections, int seconds, Result result) {
+        var latency = result.latency;
+        System.out.printf("%s: %d connections, %d s, %d requests, %.0f requests/s, %.2f MiB/s, %d errors%n", name, connections, seconds,
+                latency.getCount(), latency.getCount() / (double) seconds, result.bytes.sum() / (double) seconds / (1024 * 1024), result.errors.sum());
+        System.out.printf("  latency ms: p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f%n", latency.getValueAtPercentile(50) / 1e6,
+                latency.getValueAtPercentile(90) / 1e6, latency.getValueAtPercentile(99) / 1e6, latency.getValueAtPercentile(99.9) / 1e6, latency.getMax() / 1e6);
+    }
+
+    private static KeyStore generateKeyStore() throws Exception {
+        // a throwaway self signed certificate, keytool ships with every JDK
+        var file = Files.createTempFile("lhdf-load", ".p12");
+        Files.delete(file);
+        try {
+            var keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+            var process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "lhdf", "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=localhost",
+                    "-validity", "1", "-storetype", "PKCS12", "-keystore", file.toString(), "-storepass", PASSWORD, "-keypass", PASSWORD).redirectErrorStream(true).start();
+            var output = new String(process.getInputStream().readAllBytes());
+            if (process.waitFor() != 0)
+                throw new IOException("keytool failed: " + output);
+
+            var keyStore = KeyStore.getInstance("PKCS12");
+            try (var in = Files.newInputStream(file)) {
+                keyStore.load(in, PASSWORD.toCharArray());
+            }
+            return keyStore;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static SSLContext trustingContext() throws Exception {
+        var context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        return context;
+    }
+
+    private static class Result {
+
+        private final WebserverHistogram latency = new WebserverHistogram();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+    }
+}
@@ -0,0 +1,160 @@
+package de.lheinrich.lhdf.webserver;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/**
+ * Compares the request parsing of the incremental parser with the former
+ * split based parsing, run with "-prof gc" to see allocations per request
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    private final static String GET = "GET /search?query=lhdf&page=2&sort=desc HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/66.0 Safari/537.36\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Accept-Language: de-DE,de;q=0.9,en-US;q=0.8,en;q=0.7\r\n"
+            + "Cookie: session=3f2a9c0d1b; theme=dark\r\n"
+            + "\r\n";
+    private final static String POST = "POST /login HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Content-Type: application/x-www-form-urlencoded\r\n"
+            + "Content-Length: 45\r\n"
+            + "\r\n"
+            + "username=lheinrich&password=secret%21&remember";
+
+    @Param({"GET", "POST"})
+    public String type;
+
+    private byte[] raw;
+    private ByteBuffer buffer;
+    private WebserverParser parser;
+
+    @Setup
+    public void setup() {
+        raw = (type.equals("GET") ? GET : POST).getBytes(StandardCharsets.ISO_8859_1);
+        buffer = ByteBuffer.allocate(8192);
+        parser = new WebserverParser(Webserver.MAX_HEAD_SIZE, Webserver.MAX_REQUEST_SIZE);
+    }
+
+    @Benchmark
+    public void parser(Blackhole blackhole) throws WebserverException {
+        buffer.clear();
+        buffer.put(raw).flip();
+        blackhole.consume(parser.parse(buffer));
+    }
+
+    @Benchmark
+    public void parserWithMaps(Blackhole blackhole) throws WebserverException {
+        buffer.clear();
+        buffer.put(raw).flip();
+        var request = parser.parse(buffer);
+        blackhole.consume(Webserver.parseGetData(request.getQuery()));
+        blackhole.consume(Webserver.parseHeadData(request));
+        blackhole.consume(Webserver.parseCookies(request.getHeader("cookie")));
+        blackhole.consume(Webserver.parsePostData(request.getBodyString()));
+    }
+
+    @Benchmark
+    public void legacy(Blackhole blackhole) {
+        // former Webserver.handleRequest path, kept here as the baseline
+        var request = new ArrayList<String>();
+        request.addAll(Arrays.asList(new String(raw).split("\n")));
+        blackhole.consume(legacyParseGetData(request.get(0)));
+        var headData = legacyParseHeadData(request);
+        var cookies = new TreeMap<String, String>();
+        var cookieName = headData.containsKey("cookie") ? "cookie" : "Cookie";
+        if (headData.containsKey(cookieName)) {
+            for (var rawCookie : headData.get(cookieName).split(";", 2)) {
+                var cookie = rawCookie.split("=", 2);
+                cookies.put(cookie[0].trim(), cookie[1]);
+            }
+            headData.remove(cookieName);
+        }
+        blackhole.consume(headData);
+        blackhole.consume(cookies);
+        blackhole.consume(legacyParsePostData(request.get(request.size() - 1)));
+    }
+
+    private static Object[] legacyParseGetData(String raw) {
+        var splittedRequest = raw.split(" ");
+        var preRawRequest = splittedRequest[1].split("\\?", 2);
+        var handlerName = preRawRequest[0].substring(1);
+
+        var rawRequest = preRawRequest.length > 1 ? preRawRequest[1] : "";
+        var requestMap = new TreeMap<>();
+
+        for (var rawSplittedRawRequest : rawRequest.split("&")) {
+            var splittedSplittedRawRequest = rawSplittedRawRequest.split("=", 2);
+
+            if (splittedSplittedRawRequest.length >= 2) {
+                requestMap.put(splittedSplittedRawRequest[0], URLDecoder.decode(splittedSplittedRawRequest[1], StandardCharsets.UTF_8));
+            } else {
+                requestMap.put(splittedSplittedRawRequest[0], "");
+            }
+        }
+
+        return new Object[]{splittedRequest[0], handlerName, requestMap};
+    }
+
+    private static Map<String, String> legacyParseHeadData(List<String> raw) {
+        var requestMap = new TreeMap<String, String>();
+        raw.stream().map(line -> line.split(":", 2)).filter(splittedLine -> splittedLine.length >= 2).forEach(splittedLine -> requestMap.put(splittedLine[0], splittedLine[1].trim()));
+        return requestMap;
+    }
+
+    private static Map<String, String> legacyParsePostData(String raw) {
+        var requestMap = new TreeMap<String, String>();
+
+        for (var rawSplittedRawRequest : raw.split("&")) {
+            var splittedSplittedRawRequest = rawSplittedRawRequest.split("=", 2);
+
+            if (splittedSplittedRawRequest.length >= 2) {
+                requestMap.put(splittedSplittedRawRequest[0], URLDecoder.decode(splittedSplittedRawRequest[1], StandardCharsets.UTF_8));
+            }
+        }
+
+        return requestMap;
+    }
+}
@@ -0,0 +1,90 @@
+package de.lheinrich.lhdf.webserver;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/**
+ * Measures the map building helpers of the request data separately, on a
+ * request parsed once
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestDataBenchmark {
+
+    private final static String REQUEST = "POST /search?query=lhdf%20web&page=2&sort=desc&filter=&lang=de HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/66.0 Safari/537.36\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Accept-Language: de-DE,de;q=0.9,en-US;q=0.8,en;q=0.7\r\n"
+            + "Cookie: session=3f2a9c0d1b7e4a55; theme=dark; consent=1; _ga=GA1.2.1234567890.1525000000\r\n"
+            + "Content-Type: application/x-www-form-urlencoded\r\n"
+            + "Content-Length: 45\r\n"
+            + "\r\n"
+            + "username=lheinrich&password=secret%21&remember";
+
+    private WebserverRequest request;
+    private String query;
+    private String cookies;
+    private String body;
+
+    @Setup
+    public void setup() throws WebserverException {
+        var parser = new WebserverParser(Webserver.MAX_HEAD_SIZE, Webserver.MAX_REQUEST_SIZE);
+        request = parser.parse(ByteBuffer.wrap(REQUEST.getBytes(StandardCharsets.ISO_8859_1)));
+        query = request.getQuery();
+        cookies = request.getHeader("cookie");
+        body = request.getBodyString();
+    }
+
+    @Benchmark
+    public Map<String, String> getData() {
+        return Webserver.parseGetData(query);
+    }
+
+    @Benchmark
+    public Map<String, String> headData() {
+        return Webserver.parseHeadData(request);
+    }
+
+    @Benchmark
+    public Map<String, String> cookies() {
+        return Webserver.parseCookies(cookies);
+    }
+
+    @Benchmark
+    public Map<String, String> postData() {
+        return Webserver.parsePostData(body);
+    }
+}
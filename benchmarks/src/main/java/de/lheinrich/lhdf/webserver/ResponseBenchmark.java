@@ -0,0 +1,92 @@
+package de.lheinrich.lhdf.webserver;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/**
+ * Writes responses into memory, with a known length, chunked as streamed
+ * by a handler and gzip compressed, run with "-prof gc" to see allocations
+ * per response
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+
+    private final static String REQUEST = "GET /page HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "\r\n";
+
+    @Param({"fixed", "chunked", "gzip"})
+    public String mode;
+
+    @Param({"64", "16384"})
+    public int size;
+
+    private WebserverRequest request;
+    private WebserverCompression compression;
+    private ByteArrayOutputStream out;
+    private byte[] body;
+
+    @Setup
+    public void setup() throws WebserverException {
+        var parser = new WebserverParser(Webserver.MAX_HEAD_SIZE, Webserver.MAX_REQUEST_SIZE);
+        request = parser.parse(ByteBuffer.wrap(REQUEST.getBytes(StandardCharsets.ISO_8859_1)));
+        compression = mode.equals("gzip") ? new WebserverCompression(0, 6, 0) : null;
+        out = new ByteArrayOutputStream(size * 2 + 1024);
+
+        // text with some repetition, like HTML
+        var text = new StringBuilder(size + 64);
+        while (text.length() < size)
+            text.append("<li class=\"item\">entry ").append(text.length()).append("</li>\n");
+        body = Arrays.copyOf(text.toString().getBytes(StandardCharsets.UTF_8), size);
+    }
+
+    @Benchmark
+    public int respond() throws IOException {
+        out.reset();
+        var response = new WebserverResponse(out, request, true, "timeout=5, max=100", compression);
+        response.setContentType("text/html; charset=utf-8");
+        response.setHeader("Cache-Control", "no-cache");
+        // a handler writing without a length is answered chunked
+        if (mode.equals("chunked"))
+            response.write(body);
+        else
+            response.send(body);
+        response.finish();
+        return out.size();
+    }
+}
@@ -0,0 +1,68 @@
+package de.lheinrich.lhdf.webserver;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+
+    private final static WebserverHandler HANDLER = new StreamingWebserverHandler() {
+        @Override
+        public void handle(WebserverRequest request, WebserverResponse response) throws IOException {
+        }
+    };
+
+    @Param({"/api/resource150/list", "/api/resource150/items/42", "/static/css/site.css", "/legacy150"})
+    public String path;
+
+    private WebserverRouter router;
+    private WebserverRequest request;
+
+    @Setup
+    public void setup() {
+        router = new WebserverRouter();
+        for (var i = 0; i < 300; i++) {
+            router.register("GET", "/api/resource" + i + "/list", HANDLER);
+            router.register("GET", "/api/resource" + i + "/items/{id}", HANDLER);
+            router.register("POST", "/api/resource" + i + "/items/{id}", HANDLER);
+            router.registerName("legacy" + i, HANDLER);
+        }
+        router.register(WebserverRouter.ANY, "/static/*", HANDLER);
+        router.registerName("not found", HANDLER);
+        request = new WebserverRequest("GET", path, "HTTP/1.1", new String[0], new String[0], 0, new byte[0]);
+    }
+
+    @Benchmark
+    public WebserverHandler route() {
+        return router.route(request);
+    }
+}
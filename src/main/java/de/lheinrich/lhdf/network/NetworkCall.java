@@ -0,0 +1,63 @@
+package de.lheinrich.lhdf.network;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+interface NetworkCall {
+
+    void send(byte[] data) throws IOException;
+
+    // null when the peer finished the call
+    byte[] receive() throws IOException;
+
+    class Stream implements NetworkCall {
+
+        private final ObjectInputStream in;
+        private final ObjectOutputStream out;
+        private final NetworkCipher cipher;
+
+        Stream(ObjectInputStream in, ObjectOutputStream out, NetworkCipher cipher) {
+            this.in = in;
+            this.out = out;
+            this.cipher = cipher;
+        }
+
+        @Override
+        public void send(byte[] data) throws IOException {
+            this.out.writeObject(this.cipher.seal(data));
+            this.out.flush();
+        }
+
+        @Override
+        public byte[] receive() throws IOException {
+            try {
+                return this.cipher.open((byte[]) this.in.readObject());
+            } catch (ClassNotFoundException ex) {
+                throw new IOException(ex);
+            }
+        }
+    }
+}
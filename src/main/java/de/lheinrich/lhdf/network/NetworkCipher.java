@@ -0,0 +1,157 @@
+package de.lheinrich.lhdf.network;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class NetworkCipher {
+
+    final static String AES_GCM = "AES/GCM/NoPadding";
+    final static String CHACHA20_POLY1305 = "ChaCha20-Poly1305";
+    final static int SALT_LENGTH = 16;
+
+    private final static int TAG_LENGTH = 16;
+    private final static int NONCE_LENGTH = 12;
+    private final static SecureRandom RANDOM = new SecureRandom();
+
+    private final String algorithm;
+    private final Direction sending;
+    private final Direction receiving;
+
+    NetworkCipher(String algorithm, SecretKey key, String clientId, byte[] clientSalt, byte[] serverSalt, boolean client) throws IOException {
+        if (!algorithm.equals(AES_GCM) && !algorithm.equals(CHACHA20_POLY1305))
+            throw new IOException("unsupported cipher " + algorithm);
+        if (clientSalt.length != SALT_LENGTH || serverSalt.length != SALT_LENGTH)
+            throw new IOException("invalid salt");
+        this.algorithm = algorithm;
+        // each side adds a random salt, a replayed handshake meets a new server salt and never gets the same keys again.
+        // The algorithm and the connecting peer are bound too, a changed handshake leads to different keys
+        var name = algorithm.getBytes(StandardCharsets.US_ASCII);
+        var id = clientId.getBytes(StandardCharsets.UTF_8);
+        var transcript = ByteBuffer.allocate(4 + name.length + 4 + id.length + SALT_LENGTH * 2)
+                .putInt(name.length).put(name).putInt(id.length).put(id).put(clientSalt).put(serverSalt).array();
+        try {
+            // every connection derives its own key per direction, so counter nonces never repeat under a key
+            var clientKey = derive(key, transcript, "client");
+            var serverKey = derive(key, transcript, "server");
+            this.sending = new Direction(client ? clientKey : serverKey, Cipher.ENCRYPT_MODE);
+            this.receiving = new Direction(client ? serverKey : clientKey, Cipher.DECRYPT_MODE);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("cipher " + algorithm + " is not available", ex);
+        }
+    }
+
+    static byte[] salt() {
+        var salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    static boolean isAvailable(String algorithm) {
+        try {
+            Cipher.getInstance(algorithm);
+            return true;
+        } catch (GeneralSecurityException ex) {
+            return false;
+        }
+    }
+
+    String getAlgorithm() {
+        return this.algorithm;
+    }
+
+    byte[] seal(byte[] data) throws IOException {
+        return this.sending.apply(data, null);
+    }
+
+    byte[] seal(byte[] data, byte[] header) throws IOException {
+        return this.sending.apply(data, header);
+    }
+
+    byte[] open(byte[] data) throws IOException {
+        return this.receiving.apply(data, null);
+    }
+
+    byte[] open(byte[] data, byte[] header) throws IOException {
+        return this.receiving.apply(data, header);
+    }
+
+    private SecretKeySpec derive(SecretKey key, byte[] transcript, String label) throws GeneralSecurityException {
+        var mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        mac.update(transcript);
+        mac.update(label.getBytes(StandardCharsets.US_ASCII));
+        var derived = mac.doFinal();
+        if (this.algorithm.equals(CHACHA20_POLY1305))
+            return new SecretKeySpec(derived, "ChaCha20");
+        // same strength as the negotiated AES key
+        return new SecretKeySpec(derived, 0, key.getEncoded().length, "AES");
+    }
+
+    private class Direction {
+
+        private final Cipher cipher;
+        private final SecretKeySpec key;
+        private final int mode;
+        private final byte[] nonce = new byte[NONCE_LENGTH];
+        private long counter;
+
+        private Direction(SecretKeySpec key, int mode) throws GeneralSecurityException {
+            this.cipher = Cipher.getInstance(algorithm);
+            this.key = key;
+            this.mode = mode;
+        }
+
+        private synchronized byte[] apply(byte[] data, byte[] header) throws IOException {
+            if (this.mode == Cipher.DECRYPT_MODE && data.length < TAG_LENGTH)
+                throw new IOException("message too short");
+            // both sides count the messages of a direction, the nonce is never sent
+            var counter = this.counter++;
+            for (var i = 0; i < 8; i++)
+                this.nonce[NONCE_LENGTH - 1 - i] = (byte) (counter >>> (i * 8));
+            try {
+                AlgorithmParameterSpec parameters = algorithm.equals(AES_GCM) ? new GCMParameterSpec(TAG_LENGTH * 8, this.nonce) : new IvParameterSpec(this.nonce);
+                this.cipher.init(this.mode, this.key, parameters);
+                if (header != null)
+                    this.cipher.updateAAD(header);
+                return this.cipher.doFinal(data);
+            } catch (AEADBadTagException ex) {
+                throw new IOException("message authentication failed", ex);
+            } catch (GeneralSecurityException ex) {
+                throw new IOException(ex);
+            }
+        }
+    }
+}
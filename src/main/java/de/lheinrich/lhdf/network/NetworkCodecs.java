@@ -0,0 +1,336 @@
+package de.lheinrich.lhdf.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public final class NetworkCodecs {
+
+    private final static int NULL = 0;
+    private final static int TRUE = 1;
+    private final static int FALSE = 2;
+    private final static int BYTE = 3;
+    private final static int SHORT = 4;
+    private final static int CHAR = 5;
+    private final static int INT = 6;
+    private final static int LONG = 7;
+    private final static int FLOAT = 8;
+    private final static int DOUBLE = 9;
+    private final static int STRING = 10;
+    private final static int BYTES = 11;
+    private final static int BUFFER = 12;
+    private final static int MAP = 13;
+    private final static int SORTED_MAP = 14;
+    private final static int LIST = 15;
+    private final static int SERIALIZED = 16;
+    private final static int LINKED_MAP = 17;
+    private final static int CONCURRENT_MAP = 18;
+    private final static int HASHTABLE = 19;
+    private final static int CONCURRENT_SORTED_MAP = 20;
+    private final static int LINKED_LIST = 21;
+    private final static int VECTOR = 22;
+    private final static int COPY_ON_WRITE_LIST = 23;
+    private final static int FIRST_CUSTOM = 32;
+    private final static int CHUNK = 8192;
+
+    private final static Map<Class<?>, Custom<?>> TYPES = new ConcurrentHashMap<>();
+    private final static AtomicReferenceArray<Custom<?>> TAGS = new AtomicReferenceArray<>(256);
+    // decoded as the same class, subclasses and other implementations are serialized
+    private final static Map<Class<?>, Integer> MAPS = Map.of(HashMap.class, MAP, LinkedHashMap.class, LINKED_MAP, TreeMap.class, SORTED_MAP,
+            ConcurrentHashMap.class, CONCURRENT_MAP, Hashtable.class, HASHTABLE, ConcurrentSkipListMap.class, CONCURRENT_SORTED_MAP);
+    private final static Map<Class<?>, Integer> LISTS = Map.of(ArrayList.class, LIST, LinkedList.class, LINKED_LIST, Vector.class, VECTOR,
+            CopyOnWriteArrayList.class, COPY_ON_WRITE_LIST);
+
+    private NetworkCodecs() {
+    }
+
+    public static synchronized <T> void register(int tag, Class<T> type, NetworkCodec<T> codec) {
+        // tags below 32 are the built-in types, both peers have to register the same tags
+        if (tag < FIRST_CUSTOM || tag > 255)
+            throw new IllegalArgumentException("tag must be between " + FIRST_CUSTOM + " and 255: " + tag);
+        var used = TAGS.get(tag);
+        if (used != null && used.type != type)
+            throw new IllegalArgumentException("tag " + tag + " is already used by " + used.type.getName());
+        var custom = new Custom<>(tag, type, codec);
+        var previous = TYPES.put(type, custom);
+        if (previous != null && previous.tag != tag)
+            TAGS.set(previous.tag, null);
+        TAGS.set(tag, custom);
+    }
+
+    static byte[] encode(Object value) throws IOException {
+        var bytes = new ByteArrayOutputStream(64);
+        writeValue(new DataOutputStream(bytes), value);
+        return bytes.toByteArray();
+    }
+
+    static byte[] encode(ByteBuffer buffer) throws IOException {
+        var bytes = new ByteArrayOutputStream(buffer.remaining() + 5);
+        writeBuffer(new DataOutputStream(bytes), buffer);
+        return bytes.toByteArray();
+    }
+
+    static Object decode(byte[] data) throws IOException {
+        var in = new DataInputStream(new ByteArrayInputStream(data));
+        var value = readValue(in);
+        if (in.available() > 0)
+            throw new StreamCorruptedException("trailing bytes after value");
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void writeValue(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+
+        var custom = (Custom<Object>) TYPES.get(value.getClass());
+        if (custom != null) {
+            out.writeByte(custom.tag);
+            custom.codec.write(out, value);
+        } else if (value instanceof String) {
+            var bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof byte[]) {
+            var bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof ByteBuffer) {
+            writeBuffer(out, ((ByteBuffer) value).duplicate());
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            out.writeByte(CHAR);
+            out.writeChar((Character) value);
+        } else if (MAPS.containsKey(value.getClass()) && !(value instanceof SortedMap && ((SortedMap<?, ?>) value).comparator() != null)) {
+            // sorted maps with a comparator are serialized together with it
+            out.writeByte(MAPS.get(value.getClass()));
+            writeEntries(out, (Map<?, ?>) value);
+        } else if (LISTS.containsKey(value.getClass())) {
+            var list = (List<?>) value;
+            out.writeByte(LISTS.get(value.getClass()));
+            out.writeInt(list.size());
+            for (var element : list)
+                writeValue(out, element);
+        } else if (value instanceof Serializable) {
+            // anything else keeps working through Java serialization
+            var bytes = new ByteArrayOutputStream(256);
+            try (var objectOut = new ObjectOutputStream(bytes)) {
+                objectOut.writeObject(value);
+            }
+            out.writeByte(SERIALIZED);
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+        } else {
+            throw new NotSerializableException(value.getClass().getName());
+        }
+    }
+
+    public static Object readValue(DataInput in) throws IOException {
+        var tag = in.readUnsignedByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case BYTE:
+                return in.readByte();
+            case SHORT:
+                return in.readShort();
+            case CHAR:
+                return in.readChar();
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case FLOAT:
+                return in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case STRING:
+                return new String(readBytes(in), StandardCharsets.UTF_8);
+            case BYTES:
+                return readBytes(in);
+            case BUFFER:
+                return ByteBuffer.wrap(readBytes(in));
+            case MAP:
+                return readEntries(in, new HashMap<>());
+            case LINKED_MAP:
+                return readEntries(in, new LinkedHashMap<>());
+            case SORTED_MAP:
+                return readEntries(in, new TreeMap<>());
+            case CONCURRENT_MAP:
+                return readEntries(in, new ConcurrentHashMap<>());
+            case HASHTABLE:
+                return readEntries(in, new Hashtable<>());
+            case CONCURRENT_SORTED_MAP:
+                return readEntries(in, new ConcurrentSkipListMap<>());
+            case LIST:
+                var size = readSize(in);
+                return readElements(in, size, new ArrayList<>(Math.min(size, CHUNK)));
+            case LINKED_LIST:
+                return readElements(in, readSize(in), new LinkedList<>());
+            case VECTOR:
+                size = readSize(in);
+                return readElements(in, size, new Vector<>(Math.min(size, CHUNK)));
+            case COPY_ON_WRITE_LIST:
+                // copied once instead of on every element
+                size = readSize(in);
+                return new CopyOnWriteArrayList<>(readElements(in, size, new ArrayList<>(Math.min(size, CHUNK))));
+            case SERIALIZED:
+                try (var objectIn = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)))) {
+                    return objectIn.readObject();
+                } catch (ClassNotFoundException ex) {
+                    throw new IOException(ex);
+                }
+            default:
+                var custom = tag >= FIRST_CUSTOM ? TAGS.get(tag) : null;
+                if (custom == null)
+                    throw new StreamCorruptedException("unknown codec tag " + tag);
+                return custom.codec.read(in);
+        }
+    }
+
+    private static void writeBuffer(DataOutput out, ByteBuffer buffer) throws IOException {
+        out.writeByte(BUFFER);
+        out.writeInt(buffer.remaining());
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        // direct buffers are copied in chunks instead of into one intermediate array
+        var chunk = new byte[Math.min(buffer.remaining(), CHUNK)];
+        while (buffer.hasRemaining()) {
+            var length = Math.min(buffer.remaining(), chunk.length);
+            buffer.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+
+    private static void writeEntries(DataOutput out, Map<?, ?> map) throws IOException {
+        out.writeInt(map.size());
+        for (var entry : map.entrySet()) {
+            writeValue(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private static Map<Object, Object> readEntries(DataInput in, Map<Object, Object> map) throws IOException {
+        var size = readSize(in);
+        for (var i = 0; i < size; i++) {
+            var key = readValue(in);
+            var value = readValue(in);
+            try {
+                map.put(key, value);
+            } catch (NullPointerException | ClassCastException ex) {
+                // null in a concurrent map or Hashtable, keys a sorted map cannot compare
+                throw new StreamCorruptedException("invalid entry for " + map.getClass().getName());
+            }
+        }
+        return map;
+    }
+
+    private static List<Object> readElements(DataInput in, int size, List<Object> list) throws IOException {
+        for (var i = 0; i < size; i++)
+            list.add(readValue(in));
+        return list;
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        var bytes = new byte[readSize(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static int readSize(DataInput in) throws IOException {
+        var size = in.readInt();
+        if (size < 0)
+            throw new StreamCorruptedException("invalid size " + size);
+        return size;
+    }
+
+    private static class Custom<T> {
+
+        private final int tag;
+        private final Class<T> type;
+        private final NetworkCodec<T> codec;
+
+        private Custom(int tag, Class<T> type, NetworkCodec<T> codec) {
+            this.tag = tag;
+            this.type = type;
+            this.codec = codec;
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package de.lheinrich.lhdf.network;
+
+import javax.crypto.SecretKey;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.NotSerializableException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class NetworkConnection {
+
+    // sent instead of a handler name to keep the connection open for many calls
+    final static String MULTIPLEX = "\u0000multiplex";
+
+    private final static int OPEN = 1;
+    private final static int DATA = 2;
+    private final static int CLOSE = 3;
+    private final static int PING = 4;
+    private final static int PONG = 5;
+    private final static int REQUEST = 6;
+    private final static int RESPONSE = 7;
+    private final static int FAILURE = 8;
+    private final static int CANCEL = 9;
+    private final static int MAX_FRAME = 64 * 1024 * 1024;
+    private final static byte[] EMPTY = new byte[0];
+    private final static byte[] END = new byte[0];
+    private final static ScheduledExecutorService HEALTH = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "lhdf-network-health");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final SecretKey key;
+    private final NetworkCipher cipher;
+    private final Function<String, NetworkHandler> handlers;
+    private final Function<String, NetworkMethod<Object, ?>> methods;
+    private final Executor executor;
+    private final Map<Integer, Call> calls = new ConcurrentHashMap<>();
+    private final Map<Integer, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+    private final Map<Integer, CompletableFuture<?>> running = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final AtomicBoolean pinging = new AtomicBoolean();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final long silence;
+    private final ScheduledFuture<?> health;
+    private volatile long lastReceived = System.nanoTime();
+    private volatile boolean pongPending;
+    private volatile boolean closed;
+
+    NetworkConnection(Socket socket, SecretKey key, NetworkCipher cipher, Function<String, NetworkHandler> handlers, Function<String, NetworkMethod<Object, ?>> methods, Executor executor, int healthInterval) throws IOException {
+        this.socket = socket;
+        // the object streams of the handshake are flushed and read exactly, frames continue on the plain socket streams
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        this.key = key;
+        this.cipher = cipher;
+        this.handlers = handlers;
+        this.methods = methods;
+        this.executor = executor;
+        // a peer silent for three intervals is considered dead, both sides ping while idle
+        this.silence = TimeUnit.SECONDS.toNanos(healthInterval) * 3;
+        this.health = healthInterval > 0 ? HEALTH.scheduleWithFixedDelay(this::check, healthInterval, healthInterval, TimeUnit.SECONDS) : null;
+    }
+
+    void start(String name) {
+        var thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void run() {
+        try {
+            while (!this.closed) {
+                var id = this.in.readInt();
+                var type = this.in.readByte();
+                var length = this.in.readInt();
+                if (length < 0 || length > MAX_FRAME)
+                    throw new IOException("invalid frame length " + length);
+                var sealed = new byte[length];
+                this.in.readFully(sealed);
+                // frames are decrypted in the order they arrive, a lost or replayed frame fails authentication
+                var payload = this.cipher.open(sealed, header(id, type));
+                this.lastReceived = System.nanoTime();
+
+                switch (type) {
+                    case OPEN:
+                        open(id, payload);
+                        break;
+                    case DATA:
+                        var call = this.calls.get(id);
+                        // dropped when the call already ended on this side
+                        if (call != null)
+                            call.received.add(payload);
+                        break;
+                    case CLOSE:
+                        var closedCall = this.calls.get(id);
+                        if (closedCall != null)
+                            closedCall.received.add(END);
+                        break;
+                    case REQUEST:
+                        request(id, payload);
+                        break;
+                    case RESPONSE:
+                    case FAILURE:
+                        respond(id, type, payload);
+                        break;
+                    case CANCEL:
+                        // a request not yet started is cancelled too, its placeholder is in the map
+                        var running = this.running.remove(id);
+                        if (running != null)
+                            running.cancel(true);
+                        break;
+                    case PING:
+                        // the reader never writes, with both send buffers full it would wait for itself
+                        this.pongPending = true;
+                        try {
+                            this.executor.execute(this::flushPong);
+                        } catch (RejectedExecutionException ex) {
+                            // the next frame written carries the answer
+                        }
+                        break;
+                    case PONG:
+                        break;
+                    default:
+                        throw new IOException("unknown frame type " + type);
+                }
+            }
+        } catch (IOException ex) {
+            // closed by either side
+        } finally {
+            close();
+        }
+    }
+
+    void call(String handlerName, NetworkHandler handler) throws IOException {
+        var call = new Call(this.nextId.incrementAndGet());
+        this.calls.put(call.id, call);
+        try {
+            send(call.id, OPEN, NetworkCodecs.encode(handlerName));
+            handler.init(call);
+            try {
+                handler.handle();
+            } finally {
+                handler.release();
+            }
+            send(call.id, CLOSE, EMPTY);
+        } finally {
+            this.calls.remove(call.id);
+        }
+    }
+
+    private void open(int id, byte[] payload) throws IOException {
+        if (this.handlers == null)
+            throw new IOException("calls are opened by the connecting side only");
+        var handler = this.handlers.apply((String) NetworkCodecs.decode(payload));
+        var call = new Call(id);
+        this.calls.put(id, call);
+        try {
+            this.executor.execute(() -> {
+                try {
+                    if (handler != null) {
+                        handler.init(call);
+                        try {
+                            handler.handle();
+                        } finally {
+                            handler.release();
+                        }
+                    }
+                } finally {
+                    this.calls.remove(id);
+                    try {
+                        send(id, CLOSE, EMPTY);
+                    } catch (IOException ex) {
+                        // connection lost, the caller sees the end of the call
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            this.calls.remove(id);
+            send(id, CLOSE, EMPTY);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void request(String method, Object request, CompletableFuture<?> result) {
+        var future = (CompletableFuture<Object>) result;
+        // already timed out or cancelled while the connection was opened
+        if (future.isDone())
+            return;
+        var id = this.nextId.incrementAndGet();
+        this.pending.put(id, future);
+        future.whenComplete((value, error) -> {
+            this.pending.remove(id);
+            // the peer stops working on calls nobody waits for anymore
+            if (error instanceof CancellationException || error instanceof TimeoutException) {
+                try {
+                    send(id, CANCEL, EMPTY);
+                } catch (IOException ex) {
+                    // connection lost, nothing runs on the peer anymore
+                }
+            }
+        });
+        try {
+            send(id, REQUEST, NetworkCodecs.encode(new ArrayList<>(Arrays.asList(method, request))));
+        } catch (IOException ex) {
+            future.completeExceptionally(ex);
+        }
+    }
+
+    private void request(int id, byte[] payload) throws IOException {
+        if (this.methods == null)
+            throw new IOException("requests are sent by the connecting side only");
+        var values = (List<?>) NetworkCodecs.decode(payload);
+        var name = (String) values.get(0);
+        var method = this.methods.apply(name);
+        // registered before the request starts, so a CANCEL overtaking it is not lost
+        var placeholder = new CompletableFuture<Object>();
+        this.running.put(id, placeholder);
+        try {
+            this.executor.execute(() -> {
+                if (placeholder.isDone())
+                    return;
+                CompletableFuture<?> future;
+                try {
+                    if (method == null)
+                        throw new NetworkException("unknown method " + name);
+                    CompletionStage<?> stage = method.handle(values.get(1));
+                    future = stage == null ? CompletableFuture.completedFuture(null) : stage.toCompletableFuture();
+                } catch (Exception ex) {
+                    future = CompletableFuture.failedFuture(ex);
+                }
+                if (!this.running.replace(id, placeholder, future)) {
+                    // cancelled while the method ran
+                    future.cancel(true);
+                    return;
+                }
+                future.whenComplete((value, error) -> {
+                    // a cancelled call was abandoned by the caller, there is no one to answer
+                    if (this.running.remove(id) == null || error instanceof CancellationException)
+                        return;
+                    answer(id, value, error);
+                });
+            });
+        } catch (RejectedExecutionException ex) {
+            this.running.remove(id);
+            send(id, FAILURE, NetworkCodecs.encode("rejected"));
+        }
+    }
+
+    private void answer(int id, Object value, Throwable error) {
+        try {
+            if (error == null) {
+                byte[] payload;
+                try {
+                    payload = NetworkCodecs.encode(value);
+                } catch (NotSerializableException ex) {
+                    answer(id, null, ex);
+                    return;
+                }
+                send(id, RESPONSE, payload);
+            } else {
+                send(id, FAILURE, NetworkCodecs.encode(describe(error)));
+            }
+        } catch (IOException ex) {
+            // connection lost, the caller fails with it
+        }
+    }
+
+    private void respond(int id, int type, byte[] payload) throws IOException {
+        var future = this.pending.remove(id);
+        // dropped when the call already timed out or was cancelled
+        if (future == null)
+            return;
+        var value = NetworkCodecs.decode(payload);
+        Runnable completion = () -> {
+            if (type == RESPONSE)
+                future.complete(value);
+            else
+                future.completeExceptionally(new NetworkException((String) value));
+        };
+        // callbacks of the caller never block the reader
+        try {
+            this.executor.execute(completion);
+        } catch (RejectedExecutionException ex) {
+            completion.run();
+        }
+    }
+
+    private static String describe(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null)
+            error = error.getCause();
+        return error instanceof NetworkException ? error.getMessage() : error.toString();
+    }
+
+    private void send(int id, int type, byte[] payload) throws IOException {
+        this.writeLock.lock();
+        try {
+            writeFrame(id, type, payload);
+        } finally {
+            this.writeLock.unlock();
+        }
+        flushPong();
+    }
+
+    private void flushPong() {
+        // whoever releases the write lock answers a PING that came in meanwhile, nobody waits for the lock
+        while (this.pongPending && this.writeLock.tryLock()) {
+            try {
+                if (this.pongPending) {
+                    this.pongPending = false;
+                    writeFrame(0, PONG, EMPTY);
+                }
+            } catch (IOException ex) {
+                // closed by writeFrame
+                return;
+            } finally {
+                this.writeLock.unlock();
+            }
+        }
+    }
+
+    private void writeFrame(int id, int type, byte[] payload) throws IOException {
+        if (this.closed)
+            throw new IOException("connection closed");
+        try {
+            // sealed under the write lock, so the nonce counter follows the order on the wire
+            var sealed = this.cipher.seal(payload, header(id, type));
+            // length prefixed, the buffered stream sends header and payload in one write
+            this.out.writeInt(id);
+            this.out.writeByte(type);
+            this.out.writeInt(sealed.length);
+            this.out.write(sealed);
+            this.out.flush();
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    private static byte[] header(int id, int type) {
+        return new byte[]{(byte) (id >>> 24), (byte) (id >>> 16), (byte) (id >>> 8), (byte) id, (byte) type};
+    }
+
+    private void check() {
+        if (System.nanoTime() - this.lastReceived > this.silence) {
+            close();
+            return;
+        }
+        // the PING may block on a stuck peer, it is written by the executor so the other connections are still checked
+        if (!this.pinging.compareAndSet(false, true))
+            return;
+        try {
+            this.executor.execute(this::ping);
+        } catch (RejectedExecutionException ex) {
+            this.pinging.set(false);
+        }
+    }
+
+    private void ping() {
+        try {
+            // a write in progress shows the connection is used, a blocked one ends with the silence above
+            if (this.writeLock.tryLock()) {
+                try {
+                    writeFrame(0, PING, EMPTY);
+                } catch (IOException ex) {
+                    // closed by writeFrame
+                } finally {
+                    this.writeLock.unlock();
+                }
+                flushPong();
+            }
+        } finally {
+            this.pinging.set(false);
+        }
+    }
+
+    void close() {
+        if (this.closed)
+            return;
+        this.closed = true;
+        if (this.health != null)
+            this.health.cancel(false);
+        try {
+            this.socket.close();
+        } catch (IOException ex) {
+            // ignore (already closed)
+        }
+        for (var call : this.calls.values())
+            call.received.add(END);
+        for (var future : this.pending.values())
+            future.completeExceptionally(new IOException("connection closed"));
+        for (var future : this.running.values())
+            future.cancel(true);
+    }
+
+    boolean isOpen() {
+        return !this.closed;
+    }
+
+    int getActiveCalls() {
+        return this.calls.size() + this.pending.size();
+    }
+
+    SecretKey getKey() {
+        return this.key;
+    }
+
+    private class Call implements NetworkCall {
+
+        private final int id;
+        private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+
+        private Call(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void send(byte[] data) throws IOException {
+            NetworkConnection.this.send(this.id, DATA, data);
+        }
+
+        @Override
+        public byte[] receive() throws IOException {
+            try {
+                var data = this.received.take();
+                if (data != END)
+                    return data;
+                // further reads see the end as well
+                this.received.add(END);
+                return null;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for the peer");
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package de.lheinrich.lhdf.network;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public class NetworkGather<R> {
+
+    private final Map<String, CompletableFuture<R>> calls;
+    private final int required;
+    private final Map<String, R> results = new LinkedHashMap<>();
+    private final Map<String, Throwable> failures = new LinkedHashMap<>();
+    private final List<BiConsumer<String, R>> listeners = new ArrayList<>();
+    private final CompletableFuture<Map<String, R>> future = new CompletableFuture<>();
+
+    NetworkGather(Map<String, CompletableFuture<R>> calls, int required) {
+        this.calls = Collections.unmodifiableMap(calls);
+        // all = 0
+        this.required = required > 0 ? required : calls.size();
+        if (this.required > calls.size())
+            this.future.completeExceptionally(new NetworkException(this.required + " results required, but only " + calls.size() + " peers asked"));
+        else if (this.required == 0)
+            this.future.complete(Collections.emptyMap());
+        calls.forEach((peer, call) -> call.whenComplete((value, error) -> complete(peer, value, error)));
+    }
+
+    private void complete(String peer, R value, Throwable error) {
+        List<BiConsumer<String, R>> listeners = null;
+        Map<String, R> reached = null;
+        var failed = false;
+        synchronized (this) {
+            if (error == null) {
+                this.results.put(peer, value);
+                listeners = new ArrayList<>(this.listeners);
+                if (this.results.size() == this.required)
+                    reached = new LinkedHashMap<>(this.results);
+            } else {
+                this.failures.put(peer, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                failed = this.calls.size() - this.failures.size() < this.required;
+            }
+        }
+
+        if (listeners != null) {
+            for (var listener : listeners)
+                listener.accept(peer, value);
+        }
+        if (reached != null)
+            this.future.complete(reached);
+        else if (failed)
+            this.future.completeExceptionally(new NetworkException(this.required + " results required, but " + this.failures.size() + " of " + this.calls.size() + " peers failed"));
+    }
+
+    public NetworkGather<R> onResult(BiConsumer<String, R> listener) {
+        // results that arrived before are passed at once
+        Map<String, R> arrived;
+        synchronized (this) {
+            this.listeners.add(listener);
+            arrived = new LinkedHashMap<>(this.results);
+        }
+        arrived.forEach(listener);
+        return this;
+    }
+
+    public CompletableFuture<Map<String, R>> getFuture() {
+        // the first required results in order of arrival, later ones keep arriving at the listeners
+        return this.future;
+    }
+
+    public Map<String, CompletableFuture<R>> getCalls() {
+        return this.calls;
+    }
+
+    public synchronized Map<String, R> getResults() {
+        return new LinkedHashMap<>(this.results);
+    }
+
+    public synchronized Map<String, Throwable> getFailures() {
+        return new LinkedHashMap<>(this.failures);
+    }
+
+    public void cancel() {
+        // abandons the calls still running, on the peers as well
+        for (var call : this.calls.values())
+            call.cancel(true);
+    }
+}
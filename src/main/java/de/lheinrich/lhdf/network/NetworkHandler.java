@@ -1,12 +1,8 @@
 package de.lheinrich.lhdf.network;
 
-import de.lheinrich.lhdf.security.Crypter;
-
-import javax.crypto.SecretKey;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /*
  * Copyright (c) 2018 Lennart Heinrich
@@ -32,33 +28,55 @@ import java.io.Serializable;
 
 public abstract class NetworkHandler {
 
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
-    private SecretKey key;
+    // handler instances are shared by concurrent calls, each thread handling one sees its own
+    private final ThreadLocal<NetworkCall> calls = new ThreadLocal<>();
+
+    void init(NetworkCall call) {
+        this.calls.set(call);
+    }
 
-    protected void init(ObjectInputStream in, ObjectOutputStream out, SecretKey key) {
-        this.in = in;
-        this.out = out;
-        this.key = key;
+    void release() {
+        this.calls.remove();
     }
 
     public void write(Serializable object) {
+        var call = current();
+        try {
+            call.send(NetworkCodecs.encode(object));
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    public void write(ByteBuffer buffer) {
+        // the remaining bytes are consumed, the peer reads them as a ByteBuffer
+        var call = current();
         try {
-            this.out.writeObject(Crypter.encrypt("AES", Crypter.toByteArray(object), this.key));
-            this.out.flush();
+            call.send(NetworkCodecs.encode(buffer));
         } catch (IOException ex) {
             ex.printStackTrace();
         }
     }
 
     public Object read() {
+        var call = current();
         try {
-            return Crypter.toObject(Crypter.decrypt("AES", (byte[]) this.in.readObject(), this.key));
-        } catch (IOException | ClassNotFoundException ex) {
+            var data = call.receive();
+            if (data != null)
+                return NetworkCodecs.decode(data);
+        } catch (IOException ex) {
             ex.printStackTrace();
         }
         return null;
     }
 
+    private NetworkCall current() {
+        // only the thread handling a call reads and writes it, any other would mix up concurrent calls
+        var call = this.calls.get();
+        if (call == null)
+            throw new IllegalStateException("no call is handled by this thread, use read and write within handle");
+        return call;
+    }
+
     public abstract void handle();
 }
@@ -1,6 +1,13 @@
 package de.lheinrich.lhdf.network;
 
 import javax.crypto.SecretKey;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /*
  * Copyright (c) 2018 Lennart Heinrich
@@ -32,7 +39,13 @@ public class NetworkServer {
     private final String host;
     private final int port;
     private final String authentication;
-    private SecretKey key;
+    private final List<NetworkConnection> connections = new ArrayList<>();
+    // guarded by connections, at most one connection is opened at a time
+    private CompletableFuture<NetworkConnection> opening;
+    private boolean closed;
+    private volatile SecretKey key;
+    private volatile int maxConnections = 2;
+    private volatile int healthInterval = 10;
 
     public NetworkServer(String networkId, int networkPort, String id, String host, int port, String authentication, SecretKey key) {
         this.networkId = networkId;
@@ -61,6 +74,119 @@ public class NetworkServer {
     }
 
     public void connect(String handlerName, NetworkHandler handler) {
-        this.key = SecureNetwork.connectTo(this.networkId, this.networkPort, this.host, this.port, this.key != null, this.key, this.authentication, handlerName, handler);
+        try {
+            if (this.maxConnections == 0)
+                SecureNetwork.connectTo(this.networkId, this.networkPort, this.host, this.port, this.key != null, this.key, this.authentication, handlerName, handler, key -> this.key = key);
+            else
+                connection().get().call(handlerName, handler);
+        } catch (RuntimeException ex) {
+            // thrown by the handler itself, or a NetworkException already
+            throw ex;
+        } catch (ExecutionException ex) {
+            throw new NetworkException("call of " + handlerName + " on " + this.id + " failed", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new NetworkException("call of " + handlerName + " on " + this.id + " interrupted", ex);
+        } catch (Exception ex) {
+            throw new NetworkException("call of " + handlerName + " on " + this.id + " failed", ex);
+        }
+    }
+
+    public <R> CompletableFuture<R> call(String method, Serializable request, long timeout) {
+        var future = new CompletableFuture<R>();
+        if (timeout > 0)
+            future.orTimeout(timeout, TimeUnit.MILLISECONDS);
+
+        NetworkConnection open = null;
+        synchronized (this.connections) {
+            for (var connection : this.connections) {
+                if (connection.isOpen() && (open == null || connection.getActiveCalls() < open.getActiveCalls()))
+                    open = connection;
+            }
+        }
+        if (open != null) {
+            open.request(method, request, future);
+            return future;
+        }
+
+        // the first call connects on the executor, the caller never blocks
+        connection().whenComplete((connection, error) -> {
+            if (error != null)
+                future.completeExceptionally(error);
+            else
+                connection.request(method, request, future);
+        });
+        return future;
+    }
+
+    private CompletableFuture<NetworkConnection> connection() {
+        CompletableFuture<NetworkConnection> opening;
+        synchronized (this.connections) {
+            this.connections.removeIf(connection -> !connection.isOpen());
+            NetworkConnection leastBusy = null;
+            for (var connection : this.connections) {
+                if (leastBusy == null || connection.getActiveCalls() < leastBusy.getActiveCalls())
+                    leastBusy = connection;
+            }
+            // calls are multiplexed, another connection is only opened while all are busy
+            if (leastBusy != null && (leastBusy.getActiveCalls() == 0 || this.connections.size() >= this.maxConnections || this.opening != null))
+                return CompletableFuture.completedFuture(leastBusy);
+            // callers without an open connection share the one being opened
+            if (this.opening != null)
+                return this.opening;
+            if (this.closed)
+                return CompletableFuture.failedFuture(new NetworkException("server " + this.id + " is closed"));
+            opening = this.opening = new CompletableFuture<>();
+        }
+
+        // connected and authenticated outside of the lock, calls on the open connections go on meanwhile
+        try {
+            SecureNetwork.DISPATCH.execute(() -> open(opening));
+        } catch (RejectedExecutionException ex) {
+            opened(opening, null, ex);
+        }
+        return opening;
+    }
+
+    private void open(CompletableFuture<NetworkConnection> opening) {
+        try {
+            opened(opening, SecureNetwork.openConnection(this.networkId, this.networkPort, this.host, this.port, this.key, this.authentication, this.healthInterval), null);
+        } catch (Exception ex) {
+            opened(opening, null, ex);
+        }
+    }
+
+    private void opened(CompletableFuture<NetworkConnection> opening, NetworkConnection connection, Exception error) {
+        synchronized (this.connections) {
+            this.opening = null;
+            if (connection != null) {
+                this.key = connection.getKey();
+                if (this.closed) {
+                    connection.close();
+                    error = new NetworkException("server " + this.id + " is closed");
+                } else {
+                    this.connections.add(connection);
+                }
+            }
+        }
+        if (error != null)
+            opening.completeExceptionally(error);
+        else
+            opening.complete(connection);
+    }
+
+    public void setPool(int maxConnections, int healthInterval) {
+        this.maxConnections = maxConnections;
+        this.healthInterval = healthInterval;
+    }
+
+    public void close() {
+        synchronized (this.connections) {
+            // a connection being opened is closed once it is established
+            this.closed = true;
+            for (var connection : this.connections)
+                connection.close();
+            this.connections.clear();
+        }
     }
 }
@@ -3,20 +3,31 @@ package de.lheinrich.lhdf.network;
 import de.lheinrich.lhdf.security.AESKeySize;
 import de.lheinrich.lhdf.security.Crypter;
 import de.lheinrich.lhdf.security.ECKeySize;
+import de.lheinrich.lhdf.tools.ThreadTools;
 
 import javax.crypto.SecretKey;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.security.PublicKey;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 /*
  * Copyright (c) 2018 Lennart Heinrich
@@ -42,16 +53,28 @@ import java.util.concurrent.Executors;
 
 public class SecureNetwork {
 
-    private static final ExecutorService executor = Executors.newCachedThreadPool();
+    private final static int CONNECT_TIMEOUT = 5000;
+    private final static int HANDSHAKE_TIMEOUT = 10000;
+    private static volatile ExecutorService executor = Executors.newCachedThreadPool();
+    // always the current executor, connections outlive setVirtualThreads
+    final static Executor DISPATCH = task -> executor.execute(task);
+    private static volatile String cipher = NetworkCipher.AES_GCM;
 
     private final String id;
-    private final TreeMap<String, NetworkServer> network = new TreeMap<>();
-    private final Map<String, NetworkHandler> handlerMap = new TreeMap<>();
+    // written by connection threads while calls iterate it, sorted by peer id
+    private final Map<String, NetworkServer> network = new ConcurrentSkipListMap<>();
+    private final Map<String, NetworkHandler> handlerMap = new ConcurrentSkipListMap<>();
+    private final Map<String, NetworkMethod<Object, ?>> methodMap = new ConcurrentHashMap<>();
     private final String authentication;
     private final String hashAlgorithm;
     private final AESKeySize aesKeySize;
     private final ECKeySize ecKeySize;
 
+    private final Set<NetworkConnection> connections = ConcurrentHashMap.newKeySet();
+    private volatile int maxConnections = 2;
+    private volatile int healthInterval = 10;
+    private volatile long callTimeout = 30000;
+
     private ServerSocket serverSocket;
 
     public SecureNetwork(int masterPort, String authentication, String hashAlgorithm, AESKeySize aesKeySize, ECKeySize ecKeySize) {
@@ -81,6 +104,9 @@ public class SecureNetwork {
                     while (serverSocket != null) {
                         var socket = this.serverSocket.accept();
                         socket.setKeepAlive(true);
+                        socket.setTcpNoDelay(true);
+                        // a peer stalling in the handshake gives up its thread, calls then wait as long as they need
+                        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
 
                         executor.submit(() -> handleConnection(socket));
                     }
@@ -114,48 +140,116 @@ public class SecureNetwork {
             public void handle() {
                 var slaves = (TreeMap<String, TreeMap.SimpleEntry<String, Integer>>) read();
                 for (var slave : slaves.entrySet()) {
-                    network.put(slave.getKey(), new NetworkServer(id, serverSocket.getLocalPort(), slave.getKey(), slave.getValue().getKey(), slave.getValue().getValue(), authentication, null));
+                    addServer(new NetworkServer(id, serverSocket.getLocalPort(), slave.getKey(), slave.getValue().getKey(), slave.getValue().getValue(), authentication, null));
                 }
             }
         });
-        network.put("master", new NetworkServer(this.id, this.serverSocket.getLocalPort(), "master", host, port, this.authentication, masterKey));
+        addServer(new NetworkServer(this.id, this.serverSocket.getLocalPort(), "master", host, port, this.authentication, masterKey));
+    }
+
+    private void addServer(NetworkServer server) {
+        server.setPool(this.maxConnections, this.healthInterval);
+        var previous = this.network.put(server.getId(), server);
+        // connections of a replaced server use its former key
+        if (previous != null)
+            previous.close();
     }
 
     protected static SecretKey connectTo(String networkId, int networkPort, String host, int port, boolean known, SecretKey key, String authentication, String handlerName, NetworkHandler handler) {
-        var finalKey = key;
+        var finalKey = new SecretKey[]{key};
+        try {
+            connectTo(networkId, networkPort, host, port, known, key, authentication, handlerName, handler, handshakeKey -> finalKey[0] = handshakeKey);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        return finalKey[0];
+    }
 
-        try (var socket = new Socket(host, port);
-             var out = new ObjectOutputStream(socket.getOutputStream());
-             var in = new ObjectInputStream(socket.getInputStream())) {
+    static void connectTo(String networkId, int networkPort, String host, int port, boolean known, SecretKey key, String authentication, String handlerName, NetworkHandler handler, Consumer<SecretKey> keys) throws Exception {
+        try (var socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+            var out = new ObjectOutputStream(socket.getOutputStream());
+            var in = new ObjectInputStream(socket.getInputStream());
 
-            out.writeUTF(networkId);
-            out.flush();
+            var finalKey = handshake(networkId, networkPort, in, out, known, key);
+            // the peer keeps the new key even if the call fails afterwards
+            keys.accept(finalKey);
+            var channel = startChannel(networkId, in, out, finalKey);
+            socket.setSoTimeout(0);
 
-            out.writeBoolean(known);
+            handler.init(new NetworkCall.Stream(in, out, channel));
+            try {
+                handler.write(authentication);
+                handler.write(handlerName);
+                handler.handle();
+            } finally {
+                handler.release();
+            }
+        }
+    }
+
+    static NetworkConnection openConnection(String networkId, int networkPort, String host, int port, SecretKey key, String authentication, int healthInterval) throws Exception {
+        var socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            // a peer that accepts but never answers fails the connect instead of holding the caller
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+            var out = new ObjectOutputStream(socket.getOutputStream());
+            var in = new ObjectInputStream(socket.getInputStream());
+
+            var finalKey = handshake(networkId, networkPort, in, out, key != null, key);
+            var channel = startChannel(networkId, in, out, finalKey);
+            out.writeObject(channel.seal(NetworkCodecs.encode(authentication)));
+            out.writeObject(channel.seal(NetworkCodecs.encode(NetworkConnection.MULTIPLEX)));
             out.flush();
+            // idle connections are watched by the health check
+            socket.setSoTimeout(0);
 
-            if (!in.readBoolean() || !known) {
-                out.writeInt(networkPort);
-                out.flush();
+            var connection = new NetworkConnection(socket, finalKey, channel, null, null, DISPATCH, healthInterval);
+            connection.start("lhdf-network-" + host + ":" + port);
+            return connection;
+        } catch (Exception ex) {
+            socket.close();
+            throw ex;
+        }
+    }
 
-                var keyPair = Crypter.generateECKeyPair(in.readInt());
-                var privateKey = keyPair.getPrivate();
-                var publicKey = (PublicKey) in.readObject();
+    private static SecretKey handshake(String networkId, int networkPort, ObjectInputStream in, ObjectOutputStream out, boolean known, SecretKey key) throws Exception {
+        out.writeUTF(networkId);
+        out.flush();
 
-                out.writeObject(keyPair.getPublic());
-                out.flush();
+        out.writeBoolean(known);
+        out.flush();
 
-                finalKey = Crypter.generateEC(in.readUTF(), in.readInt(), privateKey, publicKey);
-            }
+        if (!in.readBoolean() || !known) {
+            out.writeInt(networkPort);
+            out.flush();
 
-            handler.init(in, out, finalKey);
-            handler.write(authentication);
-            handler.write(handlerName);
-            handler.handle();
-        } catch (Exception ex) {
-            ex.printStackTrace();
+            var keyPair = Crypter.generateECKeyPair(in.readInt());
+            var privateKey = keyPair.getPrivate();
+            var publicKey = (PublicKey) in.readObject();
+
+            out.writeObject(keyPair.getPublic());
+            out.flush();
+
+            return Crypter.generateEC(in.readUTF(), in.readInt(), privateKey, publicKey);
         }
-        return finalKey;
+        return key;
+    }
+
+    private static NetworkCipher startChannel(String networkId, ObjectInputStream in, ObjectOutputStream out, SecretKey key) throws IOException {
+        // the connecting side picks the cipher, both sides add a fresh salt for the keys of this connection
+        var algorithm = cipher;
+        var clientSalt = NetworkCipher.salt();
+        out.writeUTF(algorithm);
+        out.write(clientSalt);
+        out.flush();
+        var serverSalt = new byte[NetworkCipher.SALT_LENGTH];
+        in.readFully(serverSalt);
+        return new NetworkCipher(algorithm, key, networkId, clientSalt, serverSalt, true);
     }
 
     private void handleConnection(Socket socket) {
@@ -164,12 +258,14 @@ public class SecureNetwork {
             var host = socket.getInetAddress().getHostAddress();
             var id = in.readUTF();
             SecretKey key;
+            NetworkServer joined = null;
 
-            if (in.readBoolean() && this.network.containsKey(id)) {
+            var known = in.readBoolean() ? this.network.get(id) : null;
+            if (known != null) {
                 out.writeBoolean(true);
                 out.flush();
 
-                key = this.network.get(id).getKey();
+                key = known.getKey();
             } else {
                 out.writeBoolean(false);
                 out.flush();
@@ -195,16 +291,38 @@ public class SecureNetwork {
 
                 key = Crypter.generateEC(this.hashAlgorithm, this.aesKeySize.getSize(), privateKey, publicKey);
 
-                var server = new NetworkServer(this.id, this.serverSocket.getLocalPort(), id, host, port, authentication, key);
-                this.network.remove(id);
-                this.network.put(id, server);
+                joined = new NetworkServer(this.id, this.serverSocket.getLocalPort(), id, host, port, this.authentication, key);
             }
 
-            var authentication = (String) Crypter.toObject(Crypter.decrypt("AES", (byte[]) in.readObject(), key));
+            var algorithm = in.readUTF();
+            var clientSalt = new byte[NetworkCipher.SALT_LENGTH];
+            in.readFully(clientSalt);
+            // the keys depend on this salt as well, a recorded handshake replayed to this side cannot reuse them
+            var serverSalt = NetworkCipher.salt();
+            var channel = new NetworkCipher(algorithm, key, id, clientSalt, serverSalt, false);
+            out.write(serverSalt);
+            out.flush();
+
+            var authentication = (String) NetworkCodecs.decode(channel.open((byte[]) in.readObject()));
             if (!this.authentication.equals(authentication))
                 throw new Exception("Authentication failed");
-            var handler = (String) Crypter.toObject(Crypter.decrypt("AES", (byte[]) in.readObject(), key));
-            handleRequest(handler, in, out, key);
+            // registered once authenticated, an unknown client must not replace a known peer
+            if (joined != null)
+                addServer(joined);
+            var handler = (String) NetworkCodecs.decode(channel.open((byte[]) in.readObject()));
+            socket.setSoTimeout(0);
+            if (handler.equals(NetworkConnection.MULTIPLEX)) {
+                // the peer keeps this connection and multiplexes its calls on it
+                var connection = new NetworkConnection(socket, key, channel, this::findHandler, this.methodMap::get, DISPATCH, this.healthInterval);
+                this.connections.add(connection);
+                try {
+                    connection.run();
+                } finally {
+                    this.connections.remove(connection);
+                }
+            } else {
+                handleRequest(handler, new NetworkCall.Stream(in, out, channel));
+            }
         } catch (Exception ex) {
             ex.printStackTrace();
         } finally {
@@ -216,17 +334,46 @@ public class SecureNetwork {
         }
     }
 
-    private void handleRequest(String handlerName, ObjectInputStream in, ObjectOutputStream out, SecretKey key) {
-        NetworkHandler handler;
-        if (this.handlerMap.containsKey(handlerName))
-            handler = handlerMap.get(handlerName);
-        else if (this.handlerMap.containsKey(""))
-            handler = handlerMap.get("");
-        else
+    private void handleRequest(String handlerName, NetworkCall call) {
+        var handler = findHandler(handlerName);
+        if (handler == null)
             return;
 
-        handler.init(in, out, key);
-        handler.handle();
+        handler.init(call);
+        try {
+            handler.handle();
+        } finally {
+            handler.release();
+        }
+    }
+
+    private NetworkHandler findHandler(String handlerName) {
+        var handler = this.handlerMap.get(handlerName);
+        return handler != null ? handler : this.handlerMap.get("");
+    }
+
+    public void setPool(int maxConnections, int healthInterval) {
+        // disable = 0, every call opens its own connection then
+        this.maxConnections = maxConnections;
+        this.healthInterval = healthInterval;
+        for (var server : this.network.values())
+            server.setPool(maxConnections, healthInterval);
+    }
+
+    public static void setCipher(String algorithm) {
+        // AES/GCM/NoPadding (default) or ChaCha20-Poly1305, chosen by the connecting side
+        if (!algorithm.equals(NetworkCipher.AES_GCM) && !algorithm.equals(NetworkCipher.CHACHA20_POLY1305))
+            throw new IllegalArgumentException("unsupported cipher " + algorithm);
+        if (!NetworkCipher.isAvailable(algorithm))
+            throw new IllegalArgumentException("cipher " + algorithm + " is not available");
+        cipher = algorithm;
+    }
+
+    public static void setVirtualThreads(boolean virtualThreads) {
+        // connections already running finish on the previous executor
+        var previous = executor;
+        executor = virtualThreads ? ThreadTools.newVirtualExecutor() : Executors.newCachedThreadPool();
+        previous.shutdown();
     }
 
     public void unregisterHandler(String handlerName) {
@@ -238,6 +385,47 @@ public class SecureNetwork {
         this.handlerMap.put(handlerName, handler);
     }
 
+    @SuppressWarnings("unchecked")
+    public <T, R> void registerMethod(String method, NetworkMethod<T, R> handler) {
+        this.methodMap.put(method, (NetworkMethod<Object, ?>) handler);
+    }
+
+    public void unregisterMethod(String method) {
+        this.methodMap.remove(method);
+    }
+
+    public <R> CompletableFuture<R> call(String peerId, String method, Serializable request) {
+        return call(peerId, method, request, this.callTimeout);
+    }
+
+    public <R> CompletableFuture<R> call(String peerId, String method, Serializable request, long timeout) {
+        // timeout in milliseconds (disable = 0), cancel the future to abandon the call on the peer as well
+        var server = this.network.get(peerId);
+        if (server == null)
+            return CompletableFuture.failedFuture(new NetworkException("unknown peer " + peerId));
+        return server.call(method, request, timeout);
+    }
+
+    public <R> NetworkGather<R> broadcast(String method, Serializable request) {
+        return broadcast(method, request, 0, this.callTimeout);
+    }
+
+    public <R> NetworkGather<R> broadcast(String method, Serializable request, int required, long timeout) {
+        return scatter(this.network.keySet(), method, request, required, timeout);
+    }
+
+    public <R> NetworkGather<R> scatter(Collection<String> peerIds, String method, Serializable request, int required, long timeout) {
+        // all calls are sent at once, required successful results complete the gather (all = 0), timeout per peer
+        var calls = new LinkedHashMap<String, CompletableFuture<R>>();
+        for (var peerId : new LinkedHashSet<>(peerIds))
+            calls.put(peerId, call(peerId, method, request, timeout));
+        return new NetworkGather<>(calls, required);
+    }
+
+    public void setCallTimeout(long callTimeout) {
+        this.callTimeout = callTimeout;
+    }
+
     public NetworkServer getNetworkServer(String id) {
         return this.network.get(id);
     }
@@ -257,6 +445,10 @@ public class SecureNetwork {
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        for (var server : this.network.values())
+            server.close();
+        for (var connection : this.connections)
+            connection.close();
     }
 
     public String getId() {
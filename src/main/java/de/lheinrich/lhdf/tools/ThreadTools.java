@@ -0,0 +1,81 @@
+package de.lheinrich.lhdf.tools;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public class ThreadTools {
+
+    private final static MethodHandle VIRTUAL_EXECUTOR = findVirtualExecutor();
+
+    /**
+     * Whether the running JVM supports virtual threads (Java 21 or newer)
+     *
+     * @return true if newVirtualExecutor creates virtual threads
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor starting a virtual thread per task. Blocking I/O
+     * then parks the virtual thread instead of occupying a platform thread,
+     * so the number of concurrent tasks is not capped. On JVMs without
+     * virtual threads a cached thread pool is used instead
+     *
+     * @return executor, shut it down when no longer needed
+     */
+    public static ExecutorService newVirtualExecutor() {
+        if (VIRTUAL_EXECUTOR != null) {
+            try {
+                return (ExecutorService) VIRTUAL_EXECUTOR.invokeExact();
+            } catch (Throwable ex) {
+                ex.printStackTrace();
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Creates the executor for blocking connection handling
+     *
+     * @param threads limit threads to n (virtual thread per task = 0)
+     * @return executor, shut it down when no longer needed
+     */
+    public static ExecutorService newExecutor(int threads) {
+        return threads > 0 ? Executors.newFixedThreadPool(threads) : newVirtualExecutor();
+    }
+
+    private static MethodHandle findVirtualExecutor() {
+        // looked up at runtime, so the library still builds and runs on Java 10
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            return null;
+        }
+    }
+}
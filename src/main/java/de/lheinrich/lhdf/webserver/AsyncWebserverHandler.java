@@ -0,0 +1,73 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public abstract class AsyncWebserverHandler extends WebserverHandler {
+
+    /**
+     * Waits for handleAsync, only used when the handler is called directly.
+     * The engines release the worker instead and send the response when
+     * the stage completes
+     *
+     * @param request  Request sent from client
+     * @param response Response to write
+     * @throws IOException when writing the response fails
+     */
+    @Override
+    public final void handle(WebserverRequest request, WebserverResponse response) throws IOException {
+        Object body;
+        try {
+            body = handleAsync(request, response).toCompletableFuture().join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            throw ex;
+        }
+        send(response, body);
+    }
+
+    /**
+     * Asynchronous request handling, for example waiting on a database or a
+     * network peer without blocking a worker. Status and headers may be set
+     * on the response until the stage completes. A failed stage is answered
+     * with 500
+     *
+     * @param request  Request sent from client
+     * @param response Response to set status and headers on, or to write
+     * @return stage completing with the body (String as UTF-8 text, byte[], null if already written or empty)
+     */
+    public abstract CompletionStage<?> handleAsync(WebserverRequest request, WebserverResponse response);
+
+    static void send(WebserverResponse response, Object body) throws IOException {
+        if (body instanceof byte[])
+            response.send((byte[]) body);
+        else if (body instanceof String)
+            response.send((String) body);
+        else if (body != null)
+            throw new IllegalArgumentException("body must be a String, byte[] or null: " + body.getClass().getName());
+    }
+}
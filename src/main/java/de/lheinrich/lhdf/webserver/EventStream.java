@@ -0,0 +1,95 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public class EventStream extends WebserverConnection {
+
+    private final EventStreamHandler handler;
+
+    EventStream(EventStreamHandler handler, WebserverRequest request, WebserverResponse response) throws IOException {
+        super(request, response);
+        this.handler = handler;
+    }
+
+    /**
+     * Sends an unnamed event (message), without blocking
+     *
+     * @param data event data, may span several lines
+     * @return false if the stream is closed
+     */
+    public boolean send(String data) {
+        return enqueue(encode(null, data));
+    }
+
+    /**
+     * Sends a named event, without blocking
+     *
+     * @param event event name (none = null)
+     * @param data  event data, may span several lines
+     * @return false if the stream is closed
+     */
+    public boolean send(String event, String data) {
+        return enqueue(encode(event, data));
+    }
+
+    /**
+     * Sends a comment, ignored by clients but keeps proxies from closing an
+     * idle stream
+     *
+     * @param comment comment text
+     * @return false if the stream is closed
+     */
+    public boolean comment(String comment) {
+        return enqueue((": " + comment.replace("\n", " ") + "\n\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    void receive(ByteBuffer input) {
+        // clients send nothing after the request
+        input.position(input.limit());
+    }
+
+    @Override
+    void onClosed() {
+        this.handler.onClose(this);
+    }
+
+    @Override
+    byte[] frame(WebserverBroadcast.Message message) {
+        return message.eventStream();
+    }
+
+    static byte[] encode(String event, String data) {
+        var builder = new StringBuilder(data.length() + 16);
+        if (event != null)
+            builder.append("event: ").append(event).append('\n');
+        for (var line : data.split("\r\n|\r|\n", -1))
+            builder.append("data: ").append(line).append('\n');
+        builder.append('\n');
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,64 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.IOException;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public abstract class EventStreamHandler extends StreamingWebserverHandler {
+
+    /**
+     * Answers GET requests with a text/event-stream kept open to push events
+     *
+     * @param request  Request sent from client
+     * @param response Response to write
+     * @throws IOException when sending the head fails
+     */
+    @Override
+    public final void handle(WebserverRequest request, WebserverResponse response) throws IOException {
+        if (!request.getMethod().equals("GET")) {
+            response.setStatus(405);
+            response.setHeader("Allow", "GET");
+            return;
+        }
+
+        response.setContentType("text/event-stream; charset=utf-8");
+        response.setHeader("Cache-Control", "no-cache");
+        open(new EventStream(this, request, response));
+    }
+
+    /**
+     * Called when a client connected, keep the stream or subscribe it to a
+     * WebserverBroadcast to send events later
+     *
+     * @param stream new event stream
+     */
+    public abstract void open(EventStream stream);
+
+    /**
+     * Called when the stream was closed by either side
+     *
+     * @param stream closed event stream
+     */
+    public void onClose(EventStream stream) {
+    }
+}
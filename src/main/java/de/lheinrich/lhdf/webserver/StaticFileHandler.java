@@ -0,0 +1,296 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public class StaticFileHandler extends StreamingWebserverHandler {
+
+    private final static Map<String, String> CONTENT_TYPES = new TreeMap<>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("htm", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+        CONTENT_TYPES.put("js", "application/javascript; charset=utf-8");
+        CONTENT_TYPES.put("json", "application/json; charset=utf-8");
+        CONTENT_TYPES.put("txt", "text/plain; charset=utf-8");
+        CONTENT_TYPES.put("xml", "application/xml; charset=utf-8");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("webp", "image/webp");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("woff", "font/woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+        CONTENT_TYPES.put("pdf", "application/pdf");
+        CONTENT_TYPES.put("wasm", "application/wasm");
+        CONTENT_TYPES.put("mp4", "video/mp4");
+    }
+
+    private final Path root;
+    private final long cacheSize;
+    private final long maxCachedFileSize;
+    private final LinkedHashMap<Path, CachedFile> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    /**
+     * Serves the files of a directory, mount it to serve a path prefix or
+     * register it as "not found" to serve all paths no other handler is
+     * registered for
+     *
+     * @param root directory to serve
+     */
+    public StaticFileHandler(File root) {
+        this(root, 32 * 1024 * 1024, 256 * 1024);
+    }
+
+    /**
+     * Serves the files of a directory
+     *
+     * @param root              directory to serve
+     * @param cacheSize         limit the cache of small files to n bytes (disable = 0)
+     * @param maxCachedFileSize cache files up to n bytes
+     */
+    public StaticFileHandler(File root, long cacheSize, long maxCachedFileSize) {
+        this.root = root.toPath().toAbsolutePath().normalize();
+        this.cacheSize = cacheSize;
+        this.maxCachedFileSize = maxCachedFileSize;
+    }
+
+    @Override
+    public void handle(WebserverRequest request, WebserverResponse response) throws IOException {
+        if (!request.getMethod().equals("GET") && !request.getMethod().equals("HEAD")) {
+            response.setStatus(405);
+            response.setHeader("Allow", "GET, HEAD");
+            return;
+        }
+
+        // when mounted, resolve the path below the mount point, decoded once by resolve
+        var path = request.getRawPathParameter("*");
+        var file = resolve(path != null ? path : request.getPath());
+        if (file == null) {
+            response.setStatus(404);
+            return;
+        }
+
+        var size = Files.size(file);
+        var lastModified = Files.getLastModifiedTime(file).toMillis() / 1000 * 1000;
+        var eTag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+        var lastModifiedDate = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastModified), ZoneOffset.UTC));
+
+        response.setContentType(contentType(file));
+        response.setHeader("ETag", eTag);
+        response.setHeader("Last-Modified", lastModifiedDate);
+        response.setHeader("Accept-Ranges", "bytes");
+
+        if (isNotModified(request, eTag, lastModified)) {
+            response.setStatus(304);
+            return;
+        }
+
+        var start = 0L;
+        var end = size - 1;
+        var range = request.getHeader("range");
+        var ifRange = request.getHeader("if-range");
+        if (range != null && (ifRange == null || ifRange.equals(eTag) || ifRange.equals(lastModifiedDate))) {
+            var bounds = parseRange(range, size);
+            if (bounds == null) {
+                response.setStatus(416);
+                response.setHeader("Content-Range", "bytes */" + size);
+                return;
+            }
+            if (bounds.length == 2) {
+                start = bounds[0];
+                end = bounds[1];
+                response.setStatus(206);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + size);
+            }
+        }
+
+        var count = end - start + 1;
+        response.setContentLength(count);
+
+        // encrypted connections cannot use sendfile, small files are served from memory instead
+        if (!response.isZeroCopy() && size <= this.maxCachedFileSize && this.cacheSize > 0) {
+            var cached = cached(file, size, lastModified);
+            if (cached != null) {
+                response.write(cached.duplicate().position((int) start).limit((int) (start + count)));
+                return;
+            }
+        }
+
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            response.transfer(channel, start, count);
+        }
+    }
+
+    private Path resolve(String requestPath) {
+        Path file;
+        try {
+            var decoded = URLDecoder.decode(requestPath.replace("+", "%2B"), StandardCharsets.UTF_8);
+            while (decoded.startsWith("/"))
+                decoded = decoded.substring(1);
+            if (decoded.indexOf('\0') != -1)
+                return null;
+            file = this.root.resolve(decoded).normalize();
+        } catch (IllegalArgumentException ex) {
+            // malformed % escape or invalid path, not found like any other path outside the root
+            return null;
+        }
+        if (!file.startsWith(this.root))
+            return null;
+        if (Files.isDirectory(file))
+            file = file.resolve("index.html");
+        return Files.isRegularFile(file) && Files.isReadable(file) ? file : null;
+    }
+
+    private boolean isNotModified(WebserverRequest request, String eTag, long lastModified) {
+        var ifNoneMatch = request.getHeader("if-none-match");
+        if (ifNoneMatch != null) {
+            for (var candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/"))
+                    candidate = candidate.substring(2);
+                if (candidate.equals(eTag) || candidate.equals("*"))
+                    return true;
+            }
+            return false;
+        }
+
+        var ifModifiedSince = request.getHeader("if-modified-since");
+        if (ifModifiedSince != null) {
+            try {
+                return ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() >= lastModified;
+            } catch (DateTimeParseException ex) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a single byte range
+     *
+     * @return start and end (inclusive), empty to ignore the header, null if unsatisfiable
+     */
+    private static long[] parseRange(String range, long size) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') != -1)
+            return new long[0];
+
+        var bounds = range.substring(6).trim().split("-", 2);
+        if (bounds.length != 2)
+            return new long[0];
+
+        try {
+            long start;
+            long end;
+            if (bounds[0].isEmpty()) {
+                var suffix = Long.parseLong(bounds[1]);
+                if (suffix == 0)
+                    return null;
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(bounds[0]);
+                end = bounds[1].isEmpty() ? size - 1 : Math.min(Long.parseLong(bounds[1]), size - 1);
+            }
+            return start > end || start >= size ? null : new long[]{start, end};
+        } catch (NumberFormatException ex) {
+            return new long[0];
+        }
+    }
+
+    private static String contentType(Path file) {
+        var name = file.getFileName().toString();
+        var extension = name.lastIndexOf('.');
+        var contentType = extension == -1 ? null : CONTENT_TYPES.get(name.substring(extension + 1).toLowerCase());
+        if (contentType == null)
+            contentType = URLConnection.guessContentTypeFromName(name);
+        return contentType == null ? "application/octet-stream" : contentType;
+    }
+
+    private ByteBuffer cached(Path file, long size, long lastModified) throws IOException {
+        synchronized (this.cache) {
+            var cached = this.cache.get(file);
+            if (cached != null && cached.size == size && cached.lastModified == lastModified)
+                return cached.content;
+        }
+
+        var content = ByteBuffer.allocateDirect((int) size);
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (content.hasRemaining()) {
+                if (channel.read(content) == -1)
+                    return null;
+            }
+        }
+        content.flip();
+        var readOnly = content.asReadOnlyBuffer();
+
+        synchronized (this.cache) {
+            var replaced = this.cache.put(file, new CachedFile(readOnly, size, lastModified));
+            if (replaced != null)
+                this.cachedBytes -= replaced.size;
+            this.cachedBytes += size;
+
+            var iterator = this.cache.values().iterator();
+            while (this.cachedBytes > this.cacheSize && iterator.hasNext()) {
+                this.cachedBytes -= iterator.next().size;
+                iterator.remove();
+            }
+        }
+        return readOnly;
+    }
+
+    private static class CachedFile {
+
+        private final ByteBuffer content;
+        private final long size;
+        private final long lastModified;
+
+        private CachedFile(ByteBuffer content, long size, long lastModified) {
+            this.content = content;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
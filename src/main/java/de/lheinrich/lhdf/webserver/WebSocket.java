@@ -0,0 +1,238 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public class WebSocket extends WebserverConnection {
+
+    final static int CONTINUATION = 0x0;
+    final static int TEXT = 0x1;
+    final static int BINARY = 0x2;
+    final static int CLOSE = 0x8;
+    final static int PING = 0x9;
+    final static int PONG = 0xA;
+
+    private final WebSocketHandler handler;
+    private ByteArrayOutputStream message;
+    private int messageType;
+    private int closeCode = 1006;
+    private String closeReason = "";
+
+    WebSocket(WebSocketHandler handler, WebserverRequest request, WebserverResponse response) throws IOException {
+        super(request, response);
+        this.handler = handler;
+    }
+
+    /**
+     * Sends a text message, without blocking
+     *
+     * @param text message
+     * @return false if the WebSocket is closed
+     */
+    public boolean send(String text) {
+        return enqueue(encode(TEXT, text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Sends a binary message, without blocking
+     *
+     * @param data message
+     * @return false if the WebSocket is closed
+     */
+    public boolean send(byte[] data) {
+        return enqueue(encode(BINARY, data));
+    }
+
+    /**
+     * Closes with status 1000 (normal closure)
+     */
+    @Override
+    public void close() {
+        close(1000, "");
+    }
+
+    /**
+     * Sends a close frame and closes the connection once it is sent
+     *
+     * @param code   status code, for example 1000 (normal) or 1001 (going away)
+     * @param reason reason, up to 123 bytes
+     */
+    public void close(int code, String reason) {
+        var reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+        var payload = new byte[2 + Math.min(reasonBytes.length, 123)];
+        payload[0] = (byte) (code >>> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(reasonBytes, 0, payload, 2, payload.length - 2);
+        if (isOpen()) {
+            this.closeCode = code;
+            this.closeReason = reason;
+        }
+        shutdown(encode(CLOSE, payload));
+    }
+
+    @Override
+    void receive(ByteBuffer input) {
+        while (isOpen() && input.remaining() >= 2) {
+            var start = input.position();
+            var first = input.get(start) & 0xFF;
+            var second = input.get(start + 1) & 0xFF;
+            var length = (long) (second & 0x7F);
+            var headerLength = 2 + (length == 126 ? 2 : length == 127 ? 8 : 0) + 4;
+            if (input.remaining() < headerLength)
+                return;
+            if (length == 126)
+                length = input.getShort(start + 2) & 0xFFFF;
+            else if (length == 127)
+                length = input.getLong(start + 2);
+
+            var opcode = first & 0x0F;
+            var fin = (first & 0x80) != 0;
+            if ((second & 0x80) == 0 || (first & 0x70) != 0) {
+                // clients must mask, extensions are not negotiated
+                close(1002, "protocol error");
+                return;
+            }
+            if (length < 0 || length > Webserver.MAX_REQUEST_SIZE || this.message != null && this.message.size() + length > Webserver.MAX_REQUEST_SIZE) {
+                close(1009, "message too big");
+                return;
+            }
+            if (opcode >= CLOSE && (!fin || length > 125)) {
+                close(1002, "protocol error");
+                return;
+            }
+            if (input.remaining() < headerLength + length)
+                return;
+
+            var mask = start + headerLength - 4;
+            var payload = new byte[(int) length];
+            for (var i = 0; i < payload.length; i++)
+                payload[i] = (byte) (input.get(mask + 4 + i) ^ input.get(mask + (i & 3)));
+            input.position(start + headerLength + payload.length);
+            onFrame(opcode, fin, payload);
+        }
+    }
+
+    private void onFrame(int opcode, boolean fin, byte[] payload) {
+        switch (opcode) {
+            case TEXT:
+            case BINARY:
+                if (this.message != null) {
+                    close(1002, "protocol error");
+                    return;
+                }
+                if (fin) {
+                    onMessage(opcode, payload);
+                    return;
+                }
+                this.messageType = opcode;
+                this.message = new ByteArrayOutputStream(Math.max(payload.length * 2, 256));
+                this.message.write(payload, 0, payload.length);
+                break;
+            case CONTINUATION:
+                if (this.message == null) {
+                    close(1002, "protocol error");
+                    return;
+                }
+                this.message.write(payload, 0, payload.length);
+                if (fin) {
+                    var complete = this.message.toByteArray();
+                    this.message = null;
+                    onMessage(this.messageType, complete);
+                }
+                break;
+            case CLOSE:
+                var code = payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : 1005;
+                var reason = payload.length > 2 ? new String(payload, 2, payload.length - 2, StandardCharsets.UTF_8) : "";
+                if (isOpen()) {
+                    this.closeCode = code;
+                    this.closeReason = reason;
+                }
+                // echo the status code, the connection is closed once the reply is sent
+                shutdown(encode(CLOSE, payload.length >= 2 ? new byte[]{payload[0], payload[1]} : new byte[0]));
+                break;
+            case PING:
+                enqueue(encode(PONG, payload));
+                break;
+            case PONG:
+                break;
+            default:
+                close(1002, "protocol error");
+                break;
+        }
+    }
+
+    private void onMessage(int type, byte[] payload) {
+        try {
+            if (type == BINARY) {
+                this.handler.onMessage(this, payload);
+                return;
+            }
+
+            String text;
+            try {
+                text = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(payload)).toString();
+            } catch (CharacterCodingException ex) {
+                close(1007, "invalid UTF-8");
+                return;
+            }
+            this.handler.onMessage(this, text);
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();
+            close(1011, "internal error");
+        }
+    }
+
+    @Override
+    void onClosed() {
+        this.handler.onClose(this, this.closeCode, this.closeReason);
+    }
+
+    @Override
+    byte[] frame(WebserverBroadcast.Message message) {
+        return message.webSocket();
+    }
+
+    static byte[] encode(int opcode, byte[] payload) {
+        var headerLength = payload.length < 126 ? 2 : payload.length <= 0xFFFF ? 4 : 10;
+        var frame = new byte[headerLength + payload.length];
+        frame[0] = (byte) (0x80 | opcode);
+        if (headerLength == 2) {
+            frame[1] = (byte) payload.length;
+        } else if (headerLength == 4) {
+            frame[1] = 126;
+            frame[2] = (byte) (payload.length >>> 8);
+            frame[3] = (byte) payload.length;
+        } else {
+            frame[1] = 127;
+            for (var i = 0; i < 8; i++)
+                frame[2 + i] = (byte) ((long) payload.length >>> (56 - i * 8));
+        }
+        System.arraycopy(payload, 0, frame, headerLength, payload.length);
+        return frame;
+    }
+}
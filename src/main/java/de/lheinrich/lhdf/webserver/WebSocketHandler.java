@@ -0,0 +1,111 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public abstract class WebSocketHandler extends StreamingWebserverHandler {
+
+    private final static String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    /**
+     * Accepts WebSocket upgrades (RFC 6455) over HTTP/1.1
+     *
+     * @param request  Request sent from client
+     * @param response Response to write
+     * @throws IOException when sending the head fails
+     */
+    @Override
+    public final void handle(WebserverRequest request, WebserverResponse response) throws IOException {
+        var upgrade = request.getHeader("upgrade");
+        var connection = request.getHeader("connection");
+        var key = request.getHeader("sec-websocket-key");
+        if (!request.getMethod().equals("GET") || !"HTTP/1.1".equals(request.getVersion()) || upgrade == null || !upgrade.trim().equalsIgnoreCase("websocket")
+                || connection == null || !connection.toLowerCase().contains("upgrade") || key == null) {
+            response.setStatus(400);
+            return;
+        }
+        if (!"13".equals(request.getHeader("sec-websocket-version"))) {
+            response.setStatus(426);
+            response.setHeader("Sec-WebSocket-Version", "13");
+            return;
+        }
+
+        response.setStatus(101);
+        response.setHeader("Upgrade", "websocket");
+        response.setHeader("Sec-WebSocket-Accept", accept(key.trim()));
+        onOpen(new WebSocket(this, request, response));
+    }
+
+    /**
+     * Called when a client connected, keep the WebSocket or subscribe it to
+     * a WebserverBroadcast to send messages later
+     *
+     * @param socket new WebSocket
+     */
+    public void onOpen(WebSocket socket) {
+    }
+
+    /**
+     * Called for every text message, messages of one WebSocket are handled
+     * one after another
+     *
+     * @param socket WebSocket the message was received on
+     * @param text   message
+     */
+    public abstract void onMessage(WebSocket socket, String text);
+
+    /**
+     * Called for every binary message, closes with 1003 (unsupported data)
+     * unless overridden
+     *
+     * @param socket WebSocket the message was received on
+     * @param data   message
+     */
+    public void onMessage(WebSocket socket, byte[] data) {
+        socket.close(1003, "binary messages not supported");
+    }
+
+    /**
+     * Called when the WebSocket was closed by either side
+     *
+     * @param socket closed WebSocket
+     * @param code   status code, 1006 if the connection was lost
+     * @param reason reason sent with the close frame
+     */
+    public void onClose(WebSocket socket, int code, String reason) {
+    }
+
+    private static String accept(String key) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-1").digest((key + GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -1,11 +1,18 @@
 package de.lheinrich.lhdf.webserver;
 
+import de.lheinrich.lhdf.tools.ThreadTools;
+
 import javax.net.ssl.*;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.security.*;
@@ -14,8 +21,16 @@ import java.security.cert.CertificateFactory;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 import java.util.regex.Pattern;
 
 import static java.util.regex.Pattern.CASE_INSENSITIVE;
@@ -44,147 +59,815 @@ import static java.util.regex.Pattern.CASE_INSENSITIVE;
 
 public class Webserver {
 
-    private final static Base64.Encoder ENCODER = Base64.getEncoder();
+    final static int MAX_HEAD_SIZE = 64 * 1024;
+    final static int MAX_REQUEST_SIZE = 16 * 1024 * 1024;
+    final static byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private final static byte[] SWITCHING_PROTOCOLS = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
     private final ExecutorService executor;
-    private final Map<String, WebserverHandler> handlers = new TreeMap<>();
-    private ServerSocket serverSocket;
-    private SSLServerSocket sslServerSocket;
+    private final ExecutorService connectionExecutor;
+    private final int timeout;
+    private volatile int keepAliveTimeout = 5;
+    private volatile int keepAliveRequests = 100;
+    private volatile WebserverCompression compression;
+    private volatile boolean http2 = true;
+    private volatile WebserverMetrics metrics = WebserverMetrics.NONE;
+    private volatile WebserverAdmission admission = WebserverAdmission.UNLIMITED;
+    private volatile WebserverUploads uploads = WebserverUploads.DEFAULT;
+    private final WebserverRouter router = new WebserverRouter();
+    private final AtomicInteger active = new AtomicInteger();
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final Set<Socket> idleConnections = ConcurrentHashMap.newKeySet();
+    private final Set<Socket> upgradedConnections = ConcurrentHashMap.newKeySet();
+    private volatile boolean draining;
+    private final BooleanSupplier drainingCheck = this::isDraining;
+    private final List<ServerSocket> serverSockets = new ArrayList<>();
+    private final List<SSLServerSocket> sslServerSockets = new ArrayList<>();
+    private final WebserverSockets sockets;
+    private SSLContext sslContext;
+    private WebserverKeyManager keyManager;
+    private WebserverSelector selector;
 
     /**
      * Starts and initialises the web server
      *
      * @param bindPort       where to bind for HTTP (disable = 0)
      * @param bindPortSSL    where to bind for HTTPS (disable = 0)
-     * @param threads        limit threads to n
+     * @param threads        limit threads to n (virtual thread per connection = 0)
      * @param timeout        socket timeout in seconds
      * @param maxConnections limit connections
      * @param keyStore       key store for the ssl certificate
      * @throws Exception when port is used or error SSL error
+     * @deprecated use builder()
      */
+    @Deprecated
     public Webserver(int bindPort, int bindPortSSL, int threads, int timeout, int maxConnections, KeyStore keyStore) throws Exception {
-        handlers.put("not found", new WebserverHandler() {
+        this(bindPort, bindPortSSL, threads, timeout, maxConnections, keyStore, 0);
+    }
+
+    /**
+     * Starts and initialises the web server, serving HTTP with a non-blocking
+     * selector engine when selectorThreads is greater than 0. Handlers are
+     * still run on the worker threads, so they may block
+     *
+     * @param bindPort        where to bind for HTTP (disable = 0)
+     * @param bindPortSSL     where to bind for HTTPS (disable = 0)
+     * @param threads         limit handler threads to n (virtual thread per task = 0)
+     * @param timeout         socket timeout in seconds
+     * @param maxConnections  limit connections (accept backlog)
+     * @param keyStore        key store for the ssl certificate
+     * @param selectorThreads number of event loops for HTTP (blocking engine = 0)
+     * @throws Exception when port is used or error SSL error
+     * @deprecated use builder()
+     */
+    @Deprecated
+    public Webserver(int bindPort, int bindPortSSL, int threads, int timeout, int maxConnections, KeyStore keyStore, int selectorThreads) throws Exception {
+        this(bindPort, bindPortSSL, threads, timeout, maxConnections, keyStore, "password".toCharArray(), selectorThreads);
+    }
+
+    /**
+     * Starts and initialises the web server, serving HTTP with a non-blocking
+     * selector engine when selectorThreads is greater than 0. HTTPS supports
+     * TLS 1.3 and 1.2 with session resumption and ALPN
+     *
+     * @param bindPort        where to bind for HTTP (disable = 0)
+     * @param bindPortSSL     where to bind for HTTPS (disable = 0)
+     * @param threads         limit handler threads to n (virtual thread per task = 0)
+     * @param timeout         socket timeout in seconds
+     * @param maxConnections  limit connections (accept backlog)
+     * @param keyStore        key store for the ssl certificate
+     * @param keyPassword     password of the private key in the key store
+     * @param selectorThreads number of event loops for HTTP (blocking engine = 0)
+     * @throws Exception when port is used or error SSL error
+     * @deprecated use builder()
+     */
+    @Deprecated
+    public Webserver(int bindPort, int bindPortSSL, int threads, int timeout, int maxConnections, KeyStore keyStore, char[] keyPassword, int selectorThreads) throws Exception {
+        this(builder().port(bindPort).sslPort(bindPortSSL, keyStore, keyPassword).threads(threads).timeout(timeout).backlog(maxConnections).selectorThreads(selectorThreads));
+    }
+
+    Webserver(WebserverBuilder builder) throws Exception {
+        router.registerName("not found", new WebserverHandler() {
             @Override
             public String[] process(String name, Map<String, String> get, Map<String, String> head, Map<String, String> post_put, Map<String, String> cookies, String clientIp) {
                 return new String[]{"text/plain", "not found"};
             }
         });
-        executor = Executors.newFixedThreadPool(threads);
+        executor = ThreadTools.newExecutor(builder.threads);
+        // event streams and WebSockets hold a reader for as long as they are open, they must not take up the fixed pool
+        connectionExecutor = builder.threads > 0 ? ThreadTools.newVirtualExecutor() : executor;
+        this.timeout = builder.timeout;
+        this.sockets = new WebserverSockets(builder);
 
-        var plain = bindPort != 0;
-        var ssl = bindPortSSL != 0;
+        try {
+            if (builder.port != 0 && builder.selectorThreads > 0) {
+                // one listening channel per event loop at most, connections stay on the loop accepting them
+                var channels = sockets.bind(builder.port, Math.min(builder.acceptors, builder.selectorThreads));
+                selector = new WebserverSelector(this, executor, sockets, channels, builder.selectorThreads);
+            } else if (builder.port != 0) {
+                // channel backed, so accepted sockets can send files with transferTo
+                for (var channel : sockets.bind(builder.port, builder.acceptors))
+                    serverSockets.add(channel.socket());
+                accept(serverSockets, "lhdf-acceptor");
+            }
 
-        if (plain) {
-            serverSocket = new ServerSocket(bindPort, maxConnections);
-            new Thread(() -> {
-                try {
-                    while (serverSocket != null && !serverSocket.isClosed()) {
-                        var socket = serverSocket.accept();
-                        executor.submit(() -> {
-                            try {
-                                socket.setSoTimeout(timeout * 1000);
-                                handleRequest(socket);
-                            } catch (SocketException ex) {
-                            }
-                        });
-                    }
-                } catch (IOException ex) {
-                }
-            }).start();
+            if (builder.sslPort != 0) {
+                sslServerSockets.addAll(createSSLServerSockets(builder.sslPort, builder.keyStore, builder.keyPassword, builder.acceptors));
+                accept(sslServerSockets, "lhdf-ssl-acceptor");
+            }
+        } catch (Exception ex) {
+            close();
+            throw ex;
         }
+    }
 
-        if (ssl) {
-            sslServerSocket = createSSLServerSocket(bindPortSSL, maxConnections, keyStore);
+    /**
+     * Creates a builder to configure ports, threads and socket options
+     *
+     * @return new builder
+     */
+    public static WebserverBuilder builder() {
+        return new WebserverBuilder();
+    }
+
+    private void accept(List<? extends ServerSocket> serverSockets, String name) {
+        // sockets shared by several acceptors when SO_REUSEPORT is not supported
+        var threads = Math.max(sockets.getAcceptors(), serverSockets.size());
+        for (var i = 0; i < threads; i++) {
+            var acceptSocket = serverSockets.get(i % serverSockets.size());
             new Thread(() -> {
-                try {
-                    while (sslServerSocket != null && !sslServerSocket.isClosed()) {
-                        var socket = (SSLSocket) sslServerSocket.accept();
-                        executor.submit(() -> {
-                            try {
-                                socket.setSoTimeout(timeout * 1000);
-                                socket.startHandshake();
-                                handleRequest(socket);
-                            } catch (Exception ex) {
-                            }
-                        });
+                while (!acceptSocket.isClosed()) {
+                    try {
+                        admit(acceptSocket.accept());
+                    } catch (IOException ex) {
+                        // closed by close(), otherwise only this connection is lost
+                        if (!acceptSocket.isClosed())
+                            metrics.error("accept");
                     }
-                } catch (IOException ex) {
                 }
-            }).start();
+            }, name + "-" + i).start();
         }
     }
 
-    private void handleRequest(Socket socket) {
-        try (var out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())); var in = new DataInputStream(socket.getInputStream())) {
-            var raw = new byte[in.available()];
-            in.read(raw);
-
-            out.write("HTTP/1.1 200 OK\r\n");
+    private void admit(Socket socket) {
+        try {
+            sockets.configure(socket);
+        } catch (IOException ex) {
+            metrics.error("socket");
+            close(socket);
+            return;
+        }
 
-            var request = new ArrayList<String>();
-            request.addAll(Arrays.asList(new String(raw).split(System.lineSeparator())));
-            var getData = parseGetData(request.get(0));
+        var admission = this.admission;
+        var clientIp = socket.getInetAddress().getHostAddress();
+        if (!admission.open(clientIp)) {
+            reject(socket, admission);
+            return;
+        }
+        if (!admission.enqueue()) {
+            admission.close(clientIp);
+            reject(socket, admission);
+            return;
+        }
 
-            var requestType = (String) getData[0];
-            var handlerName = ((String) getData[1]).toLowerCase();
+        var queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                var detached = false;
+                try {
+                    if (!admission.dequeue(queuedAt))
+                        reject(socket, admission);
+                    else if (!(socket instanceof SSLSocket) || handshake((SSLSocket) socket))
+                        detached = handleConnection(socket, () -> admission.close(clientIp));
+                } finally {
+                    // a detached connection is released by the thread serving it
+                    if (!detached)
+                        admission.close(clientIp);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            admission.dequeue(queuedAt);
+            admission.close(clientIp);
+            close(socket);
+        }
+    }
 
-            var getRequest = (Map<String, String>) getData[2];
-            WebserverHandler handler;
+    private void reject(Socket socket, WebserverAdmission admission) {
+        metrics.error("overload");
+        // rejected before the handshake, a TLS client only sees the connection close
+        if (!(socket instanceof SSLSocket)) {
+            try {
+                // fits into the empty send buffer, so the accept thread does not block
+                var out = socket.getOutputStream();
+                out.write(admission.getRejection());
+                out.flush();
+                socket.shutdownOutput();
+            } catch (IOException ex) {
+            }
+        }
+        close(socket);
+    }
 
-            if (handlerName.startsWith("/"))
-                handlerName = handlerName.substring(2);
+    private boolean handshake(SSLSocket socket) {
+        try {
+            var start = System.nanoTime();
+            socket.setSoTimeout(timeout * 1000);
+            socket.startHandshake();
+            metrics.handshake(System.nanoTime() - start);
+            return true;
+        } catch (Exception ex) {
+            metrics.error("handshake");
+            close(socket);
+            return false;
+        }
+    }
 
-            if (handlers.containsKey(handlerName)) {
-                handler = handlers.get(handlerName);
-            } else {
-                handler = handlers.get("not found");
-            }
+    private boolean handleConnection(Socket socket, Runnable released) {
+        var metrics = this.metrics;
+        metrics.connectionOpened();
+        connections.add(socket);
+        var detached = false;
+        try {
+            // closed with the socket, unless the connection is handed to another thread
+            var out = socket.getChannel() != null ? new ChannelOutputStream(socket, metrics) : new BufferedOutputStream(new MeteredOutputStream(socket.getOutputStream(), metrics));
+            var in = new MeteredInputStream(socket.getInputStream(), metrics);
+            var buffer = ByteBuffer.allocate(8192).flip();
 
-            Map<String, String> post_put;
-            if (requestType.equalsIgnoreCase("put")) {
-                post_put = parsePutData(request);
-            } else {
-                post_put = parsePostData(request.get(request.size() - 1));
+            if (socket instanceof SSLSocket && "h2".equals(((SSLSocket) socket).getApplicationProtocol())) {
+                detached = detach(socket, metrics, released, () -> serveHttp2(socket, in, out, buffer, null, metrics));
+                if (!detached)
+                    serveHttp2(socket, in, out, buffer, null);
+                return detached;
             }
+            detached = new BlockingConnection(socket, in, out, buffer, metrics, released).serve(null);
+        } catch (IOException ex) {
+            failed(ex, metrics);
+        } finally {
+            if (!detached)
+                closeConnection(socket, metrics);
+        }
+        return detached;
+    }
 
-            var headData = parseHeadData(request);
-            var cookies = new TreeMap<String, String>();
-            var cookieName = headData.containsKey("cookie") ? "cookie" : "Cookie";
-            if (headData.containsKey(cookieName)) {
-                var rawCookies = headData.get(cookieName).split(";", 2);
-                for (var rawCookie : rawCookies) {
-                    var cookie = rawCookie.split("=", 2);
-                    cookies.put(cookie[0].trim(), cookie[1]);
+    private boolean detach(Socket socket, WebserverMetrics metrics, Runnable released, Runnable reader) {
+        // on a fixed pool every open HTTP/2 connection, event stream or WebSocket would keep a worker reading,
+        // it moves to its own thread so the requests it carries never wait for the worker it holds
+        if (connectionExecutor == executor)
+            return false;
+        try {
+            connectionExecutor.execute(() -> {
+                try {
+                    reader.run();
+                } finally {
+                    closeConnection(socket, metrics);
+                    released.run();
                 }
-                headData.remove(cookieName);
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    private void serveConnection(Socket socket, InputStream in, ByteBuffer buffer, WebserverConnection connection) {
+        // messages are written by the connection executor, this thread only reads until either side closes
+        try {
+            if (!connection.attach(connectionExecutor, () -> close(socket)))
+                return;
+            // event streams and WebSockets are not drained, they are closed when the requests are answered
+            upgradedConnections.add(socket);
+            socket.setSoTimeout(0);
+            while (true) {
+                connection.receive(buffer);
+                buffer.compact();
+                if (!buffer.hasRemaining())
+                    buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+                var read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+                if (read == -1)
+                    break;
+                buffer.position(buffer.position() + read).flip();
             }
+        } catch (IOException ex) {
+            // closed by either side
+        } finally {
+            upgradedConnections.remove(socket);
+            connection.closed();
+        }
+    }
+
+    private void closeConnection(Socket socket, WebserverMetrics metrics) {
+        connections.remove(socket);
+        close(socket);
+        metrics.connectionClosed();
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    /**
+     * Serves HTTP/2 on a connection taken over from the selector engine,
+     * blocking until the connection is closed
+     *
+     * @param socket  connection in blocking mode
+     * @param buffer  bytes read after the request, in read mode
+     * @param request prior knowledge preface or h2c upgrade request
+     */
+    void serveDetached(Socket socket, ByteBuffer buffer, WebserverRequest request) {
+        var metrics = this.metrics;
+        connections.add(socket);
+        try (var out = new BufferedOutputStream(new MeteredOutputStream(socket.getOutputStream(), metrics)); var in = new MeteredInputStream(socket.getInputStream(), metrics)) {
+            serveHttp2(socket, in, out, buffer, request);
+        } catch (IOException ex) {
+            // client went away or idle connection timed out
+        } finally {
+            connections.remove(socket);
+            close(socket);
+            // opened by the selector engine
+            metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Whether a request starts HTTP/2, either by the prior knowledge preface
+     * (PRI * HTTP/2.0) or by an h2c upgrade on a plain connection
+     *
+     * @param request parsed request
+     * @param secure  whether the connection is encrypted
+     * @return true if the connection continues with HTTP/2
+     */
+    boolean isHttp2Request(WebserverRequest request, boolean secure) {
+        if (!http2)
+            return false;
+        if (request.getMethod().equals("PRI"))
+            return "HTTP/2.0".equals(request.getVersion()) && request.getPath().equals("*");
+
+        var upgrade = request.getHeader("upgrade");
+        var connection = request.getHeader("connection");
+        return !secure && upgrade != null && upgrade.trim().equalsIgnoreCase("h2c") && request.getHeader("http2-settings") != null
+                && connection != null && connection.toLowerCase().contains("upgrade");
+    }
 
-            var response = handler.process(handlerName, getRequest, headData, post_put, cookies, socket.getInetAddress().getHostAddress());
+    private void serveHttp2(Socket socket, InputStream in, OutputStream out, ByteBuffer buffer, WebserverRequest request, WebserverMetrics metrics) {
+        try {
+            serveHttp2(socket, in, out, buffer, request);
+            out.flush();
+        } catch (IOException ex) {
+            failed(ex, metrics);
+        }
+    }
+
+    private void failed(IOException ex, WebserverMetrics metrics) {
+        if (ex instanceof SocketTimeoutException) {
+            metrics.error("timeout");
+        } else if (draining && (ex instanceof SocketException || ex instanceof ClosedChannelException)) {
+            // closed by shutdown, the connection ends normally
+        } else if (ex instanceof SocketException) {
+            // client went away
+            metrics.error("socket");
+        } else {
+            metrics.error("io");
+        }
+    }
+
+    private void serveHttp2(Socket socket, InputStream in, OutputStream out, ByteBuffer buffer, WebserverRequest request) throws IOException {
+        var connection = new WebserverHttp2(this, executor, socket, in, out, buffer);
+        if (request == null) {
+            // negotiated by ALPN, the client starts with the preface
+            connection.serve(WebserverHttp2.PREFACE, null, null);
+            return;
+        }
+        if (request.getMethod().equals("PRI")) {
+            // the request line and the empty line were parsed as a request already
+            connection.serve(WebserverHttp2.PREFACE_REST, null, null);
+            return;
+        }
 
-            out.write("Server: lhdf\r\nContent-Type: " + response[0] + "; charset=utf-8\r\nContent-Length: " + response[1].length() + "\r\n" + generateCookies(handler.getCookies()) + "\r\n" + response[1]);
+        byte[] settings;
+        try {
+            settings = Base64.getUrlDecoder().decode(request.getHeader("http2-settings").trim());
+        } catch (IllegalArgumentException ex) {
+            writeError(out, new WebserverException(400, "Bad Request"));
             out.flush();
+            return;
+        }
+        out.write(SWITCHING_PROTOCOLS);
+        out.flush();
+        connection.serve(WebserverHttp2.PREFACE, request, settings);
+    }
+
+    private ByteBuffer fill(Socket socket, InputStream in, OutputStream out, boolean idle, ByteBuffer buffer) throws IOException {
+        buffer.compact();
+        if (!buffer.hasRemaining())
+            buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+
+        out.flush();
+        if (idle) {
+            // an idle connection is closed by shutdown, checked again after it is listed
+            if (draining)
+                return null;
+            idleConnections.add(socket);
+            if (draining) {
+                idleConnections.remove(socket);
+                return null;
+            }
+        }
+        int read;
+        try {
+            socket.setSoTimeout((idle ? keepAliveTimeout : timeout) * 1000);
+            read = in.read(buffer.array(), buffer.position(), buffer.remaining());
         } catch (IOException ex) {
-            ex.printStackTrace();
+            if (idle && draining)
+                return null;
+            throw ex;
         } finally {
+            if (idle)
+                idleConnections.remove(socket);
+        }
+        if (read == -1)
+            return null;
+        return buffer.position(buffer.position() + read).flip();
+    }
+
+    static void writeError(OutputStream out, WebserverException ex) throws IOException {
+        out.write(("HTTP/1.1 " + ex.getStatus() + " " + ex.getMessage() + "\r\nServer: lhdf\r\nConnection: close\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Processes one request and writes the raw response, independent of the
+     * engine the request was read by
+     *
+     * @param request parsed request
+     * @param served  number of this request on its connection
+     * @param out     where to write the response
+     * @return finished response, null if the connection has to be closed
+     * @throws IOException when writing fails
+     */
+    WebserverResponse respond(WebserverRequest request, int served, OutputStream out) throws IOException {
+        var response = newResponse(request, served, out);
+        return dispatch(request, response) ? response : null;
+    }
+
+    /**
+     * Processes one request like respond, but releases the calling worker
+     * while an AsyncWebserverHandler waits. The response is then finished on
+     * a worker when its stage completes
+     *
+     * @param request parsed request
+     * @param served  number of this request on its connection
+     * @param out     where to write the response
+     * @return stage completing with the finished response, null if the connection has to be closed
+     */
+    CompletionStage<WebserverResponse> respondAsync(WebserverRequest request, int served, OutputStream out) {
+        var response = newResponse(request, served, out);
+        return dispatchAsync(request, response).thenApply(dispatched -> dispatched ? response : null);
+    }
+
+    /**
+     * Runs the handler of a request like dispatch, but releases the calling
+     * worker while an AsyncWebserverHandler waits. The response is then
+     * finished on a worker when its stage completes
+     *
+     * @param request  parsed request
+     * @param response response to the request
+     * @return stage completing with false when the handler failed after the response was committed
+     */
+    CompletionStage<Boolean> dispatchAsync(WebserverRequest request, WebserverResponse response) {
+        var start = System.nanoTime();
+        var handler = router.route(request);
+        if (!(handler instanceof AsyncWebserverHandler)) {
+            try {
+                return CompletableFuture.completedFuture(dispatch(request, response, handler, start));
+            } catch (IOException ex) {
+                return CompletableFuture.failedFuture(ex);
+            }
+        }
+
+        CompletionStage<?> stage;
+        active.incrementAndGet();
+        try {
+            stage = ((AsyncWebserverHandler) handler).handleAsync(request, response);
+        } catch (RuntimeException ex) {
+            stage = CompletableFuture.failedFuture(ex);
+        }
+        // the stage may complete on a database or network thread, the response is written by a worker
+        return stage.handleAsync((body, failure) -> {
+            request.discard();
             try {
-                socket.close();
+                if (failure == null) {
+                    try {
+                        AsyncWebserverHandler.send(response, body);
+                    } catch (RuntimeException ex) {
+                        failure = ex;
+                    }
+                }
+                if (failure != null && !recover(request, response, failure, start))
+                    return false;
+                return finish(request, response, start) != null;
             } catch (IOException ex) {
+                throw new CompletionException(ex);
+            } finally {
+                active.decrementAndGet();
+            }
+        }, executor);
+    }
+
+    private WebserverResponse newResponse(WebserverRequest request, int served, OutputStream out) {
+        var keepAlive = !draining && keepAliveRequests > 0 && served < keepAliveRequests && request.isKeepAliveRequested();
+        var response = new WebserverResponse(out, request, keepAlive, keepAlive ? "timeout=" + keepAliveTimeout + ", max=" + (keepAliveRequests - served) : null, compression);
+        if (keepAlive)
+            response.setDraining(drainingCheck);
+        return response;
+    }
+
+    /**
+     * Runs the handler of a request and finishes its response, independent
+     * of the protocol
+     *
+     * @param request  parsed request
+     * @param response response to the request
+     * @return false when the handler failed after the response was committed
+     * @throws IOException when writing fails
+     */
+    boolean dispatch(WebserverRequest request, WebserverResponse response) throws IOException {
+        var start = System.nanoTime();
+        return dispatch(request, response, router.route(request), start);
+    }
+
+    private boolean dispatch(WebserverRequest request, WebserverResponse response, WebserverHandler handler, long start) throws IOException {
+        active.incrementAndGet();
+        try {
+            try {
+                if (handler != null) {
+                    handler.handle(request, response);
+                } else {
+                    response.setStatus(request.getAllow() != null ? 405 : 404);
+                    if (request.getAllow() != null)
+                        response.setHeader("Allow", request.getAllow());
+                }
+            } catch (RuntimeException ex) {
+                if (!recover(request, response, ex, start))
+                    return false;
+            } finally {
+                request.discard();
             }
+            return finish(request, response, start) != null;
+        } finally {
+            active.decrementAndGet();
         }
     }
 
+    private boolean recover(WebserverRequest request, WebserverResponse response, Throwable failure, long start) {
+        failure.printStackTrace();
+        metrics.error("handler");
+        if (response.isCommitted()) {
+            metrics.request(router.label(request), request.getMethod(), 500, System.nanoTime() - start);
+            return false;
+        }
+        response.reset();
+        response.setStatus(500);
+        return true;
+    }
+
+    private WebserverResponse finish(WebserverRequest request, WebserverResponse response, long start) throws IOException {
+        response.finish();
+        metrics.request(router.label(request), request.getMethod(), response.getStatus(), System.nanoTime() - start);
+        return response;
+    }
+
     /**
-     * Closes the socket
+     * Closes all sockets and stops the workers at once, see shutdown for a
+     * graceful stop
      */
     public void close() {
-        if (serverSocket != null) {
+        shutdown(0);
+    }
+
+    /**
+     * Stops accepting connections and drains the open ones: requests in
+     * flight are answered with Connection: close, idle keep-alive
+     * connections are closed and HTTP/2 clients receive GOAWAY. Event
+     * streams, WebSockets and connections left at the deadline are closed
+     * afterwards, then the workers are stopped
+     *
+     * @param timeout seconds to wait for requests in flight (close at once = 0)
+     * @return true if every request was answered and every worker stopped in time
+     */
+    public boolean shutdown(int timeout) {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        draining = true;
+        for (var serverSocket : serverSockets) {
+            try {
+                serverSocket.close();
+            } catch (IOException ex) {
+            }
+        }
+        for (var serverSocket : sslServerSockets) {
             try {
                 serverSocket.close();
             } catch (IOException ex) {
             }
-            serverSocket = null;
+        }
+        var selector = this.selector;
+        if (selector != null)
+            selector.drain();
+        for (var socket : idleConnections)
+            close(socket);
+
+        var drained = awaitDrained(selector, deadline);
+        for (var socket : connections)
+            close(socket);
+        if (selector != null) {
+            selector.close();
+            this.selector = null;
+        }
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS)) {
+                // handlers still running are interrupted
+                executor.shutdownNow();
+                drained = false;
+            }
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+        // the sockets of event streams and WebSockets are closed, their readers have returned
+        if (connectionExecutor != executor)
+            connectionExecutor.shutdownNow();
+        return drained;
+    }
+
+    private boolean awaitDrained(WebserverSelector selector, long deadline) {
+        try {
+            while (active.get() > 0 || connections.size() - upgradedConnections.size() + (selector != null ? selector.getOpenConnections() : 0) > 0) {
+                if (System.nanoTime() - deadline >= 0)
+                    return false;
+                Thread.sleep(10);
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
+    /**
+     * Whether shutdown was called, connections are not kept alive any more
+     *
+     * @return true while and after draining
+     */
+    boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Configures persistent connections (HTTP keep-alive)
+     *
+     * @param keepAliveTimeout idle timeout between two requests in seconds
+     * @param maxRequests      limit requests per connection (disable = 0)
+     */
+    public void setKeepAlive(int keepAliveTimeout, int maxRequests) {
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.keepAliveRequests = maxRequests;
+    }
+
+    /**
+     * Configures gzip/deflate compression of text, JSON, JavaScript and XML
+     * responses for clients sending a matching Accept-Encoding. Compressed
+     * bodies of responses with an ETag are cached, keyed by path and ETag
+     *
+     * @param minSize   compress bodies of at least n bytes
+     * @param level     compression level from 1 (fastest) to 9 (smallest) (disable = 0)
+     * @param cacheSize limit the cache of compressed bodies to n bytes (disable = 0)
+     */
+    public void setCompression(int minSize, int level, long cacheSize) {
+        this.compression = level == 0 ? null : new WebserverCompression(minSize, level, cacheSize);
+    }
+
+    /**
+     * Enables or disables HTTP/2, negotiated by ALPN on HTTPS and by prior
+     * knowledge or h2c upgrade on HTTP (enabled by default)
+     *
+     * @param http2 whether new connections may use HTTP/2
+     */
+    public void setHttp2(boolean http2) {
+        this.http2 = http2;
+        for (var sslServerSocket : sslServerSockets) {
+            var parameters = sslServerSocket.getSSLParameters();
+            parameters.setApplicationProtocols(http2 ? new String[]{"h2", "http/1.1"} : new String[]{"http/1.1"});
+            sslServerSocket.setSSLParameters(parameters);
+        }
+    }
+
+    /**
+     * Records request counts, latencies, bytes, connections, TLS handshake
+     * times and errors, and samples the executor queue depth
+     *
+     * @param metrics metrics registry, for example WebserverMetricsRegistry (disable = null)
+     */
+    public void setMetrics(WebserverMetrics metrics) {
+        if (metrics != null) {
+            metrics.gauge("executor_queue_depth", this::getQueueDepth);
+            metrics.gauge("executor_active_threads", () -> executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getActiveCount() : 0);
+        }
+        this.metrics = metrics != null ? metrics : WebserverMetrics.NONE;
+    }
+
+    /**
+     * Records metrics and serves them in the Prometheus text format
+     *
+     * @param path path of the metrics endpoint, for example /metrics
+     * @return registry the metrics are recorded in
+     */
+    public WebserverMetricsRegistry enableMetrics(String path) {
+        var registry = new WebserverMetricsRegistry();
+        setMetrics(registry);
+        registerRoute("GET", path, registry.createHandler());
+        return registry;
+    }
+
+    /**
+     * Limits admitted connections and queued work. Over a limit the server
+     * answers 503 Service Unavailable with Retry-After at once, instead of
+     * queueing sockets until they time out, so admitted requests keep their
+     * latency under overload
+     *
+     * @param maxConnections      limit open connections (unlimited = 0)
+     * @param maxConnectionsPerIp limit open connections per client IP (unlimited = 0)
+     * @param maxQueued           limit connections or requests waiting for a worker (unlimited = 0)
+     * @param maxQueueWait        reject work that waited longer for a worker, in milliseconds (disable = 0)
+     * @param retryAfter          seconds sent in Retry-After
+     */
+    public void setAdmission(int maxConnections, int maxConnectionsPerIp, int maxQueued, int maxQueueWait, int retryAfter) {
+        this.admission = new WebserverAdmission(maxConnections, maxConnectionsPerIp, maxQueued, maxQueueWait, retryAfter);
+    }
+
+    /**
+     * Creates a response cache, wrap handlers with it before registering
+     * them. The cached bodies are compressed per client like any other
+     *
+     * @param maxBytes limit the cached responses to n bytes, the least recently used are evicted
+     * @return response cache
+     */
+    public WebserverCache createCache(long maxBytes) {
+        return new WebserverCache(this, maxBytes);
+    }
+
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    ExecutorService getConnectionExecutor() {
+        return connectionExecutor;
+    }
+
+    /**
+     * Configures request bodies. Bodies and multipart parts above the
+     * threshold are spooled to temp files while they arrive, so uploads of
+     * any allowed size are received in constant memory
+     *
+     * @param maxBodySize limit request bodies to n bytes (default = 16 MiB)
+     * @param threshold   spool bodies and parts above n bytes to disk (default = 1 MiB)
+     * @param directory   directory for temp files (system default = null)
+     */
+    public void setUploads(long maxBodySize, int threshold, File directory) {
+        this.uploads = new WebserverUploads(maxBodySize, threshold, directory);
+    }
+
+    WebserverUploads getUploads() {
+        return uploads;
+    }
+
+    WebserverAdmission getAdmission() {
+        return admission;
+    }
+
+    WebserverMetrics getMetrics() {
+        return metrics;
+    }
+
+    private long getQueueDepth() {
+        // virtual threads start every task at once, they do not queue
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+    }
+
+    WebserverCompression getCompression() {
+        return compression;
+    }
+
+    int getTimeout() {
+        return timeout;
+    }
+
+    int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
     /**
      * Register a new DynHandler
      *
@@ -193,9 +876,7 @@ public class Webserver {
      * @param handler     WebserverHandler instance
      */
     public void registerHandler(String handlerName, WebserverHandler handler) {
-        var handlerNameLower = handlerName.toLowerCase();
-        unregisterHandler(handlerNameLower);
-        handlers.put(handlerNameLower, handler);
+        router.registerName(handlerName, handler);
     }
 
     /**
@@ -204,112 +885,387 @@ public class Webserver {
      * @param handlerName Name of handler (not "not found" !!!)
      */
     public void unregisterHandler(String handlerName) {
-        var handlerNameLower = handlerName.toLowerCase();
-        handlers.remove(handlerNameLower);
+        router.unregisterName(handlerName);
+    }
+
+    /**
+     * Register a handler for a path pattern. Segments in braces are path
+     * parameters, a trailing "*" matches the rest of the path. Static segments
+     * are preferred over parameters and parameters over wildcards. Routes are
+     * matched before handler names
+     *
+     * @param method  request method, HEAD falls back to GET (any = "*")
+     * @param pattern for example /users/{id} or /assets/*
+     * @param handler WebserverHandler instance
+     */
+    public void registerRoute(String method, String pattern, WebserverHandler handler) {
+        router.register(method, pattern, handler);
+    }
+
+    /**
+     * Unregister a handler for a path pattern
+     *
+     * @param method  request method as registered
+     * @param pattern path pattern as registered
+     */
+    public void unregisterRoute(String method, String pattern) {
+        router.unregister(method, pattern);
+    }
+
+    /**
+     * Register a handler for a path and everything below it, the path below
+     * the prefix is available as path parameter "*"
+     *
+     * @param prefix  for example /static
+     * @param handler WebserverHandler instance
+     */
+    public void mount(String prefix, WebserverHandler handler) {
+        router.register(WebserverRouter.ANY, prefix + "/*", handler);
+    }
+
+    /**
+     * Configures the cache of TLS sessions, resumed sessions skip the
+     * expensive key exchange. TLS 1.3 clients resume with session tickets
+     *
+     * @param size    limit the cache to n sessions (unlimited = 0)
+     * @param timeout seconds a session can be resumed (unlimited = 0)
+     */
+    public void setSessionCache(int size, int timeout) {
+        if (sslContext == null)
+            return;
+        var sessionContext = sslContext.getServerSessionContext();
+        sessionContext.setSessionCacheSize(size);
+        sessionContext.setSessionTimeout(timeout);
+    }
+
+    /**
+     * Replaces the certificate for new HTTPS connections without restarting,
+     * established connections and cached sessions stay valid
+     *
+     * @param keyStore    key store for the ssl certificate, for example from generateKeyStore
+     * @param keyPassword password of the private key in the key store
+     * @throws GeneralSecurityException when the key cannot be recovered
+     */
+    public void reloadKeyStore(KeyStore keyStore, char[] keyPassword) throws GeneralSecurityException {
+        if (keyManager == null)
+            throw new IllegalStateException("HTTPS is disabled");
+        keyManager.reload(keyStore, keyPassword);
     }
 
-    private String generateCookies(Map<String, String> cookies) {
-        var builder = new StringBuilder();
-        cookies.forEach((name, value) -> builder.append("Set-Cookie: ").append(name).append("=").append(value).append("\r\n"));
-        return builder.toString();
+    /**
+     * Replaces the certificate for new HTTPS connections without restarting
+     *
+     * @param certificate certificate file (PEM)
+     * @param key         private key file (PEM, PKCS#8)
+     * @throws Exception when the files cannot be read or parsed
+     */
+    public void reloadCertificate(File certificate, File key) throws Exception {
+        reloadKeyStore(generateKeyStore(certificate, key), "password".toCharArray());
     }
 
-    private SSLServerSocket createSSLServerSocket(int bindPort, int maxConnections, KeyStore keyStore) throws KeyManagementException, NoSuchAlgorithmException, UnrecoverableKeyException, IOException, KeyStoreException {
-        var keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
-        keyManagerFactory.init(keyStore, "password".toCharArray());
-        var km = keyManagerFactory.getKeyManagers();
+    private List<SSLServerSocket> createSSLServerSockets(int bindPort, KeyStore keyStore, char[] keyPassword, int acceptors) throws GeneralSecurityException, IOException {
+        keyManager = new WebserverKeyManager(keyStore, keyPassword);
         var trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
         trustManagerFactory.init(keyStore);
         var tm = trustManagerFactory.getTrustManagers();
-        var sslContext = SSLContext.getInstance("TLSv1.2");
-        sslContext.init(km, tm, new SecureRandom());
-        var serverSocketFactory = sslContext.getServerSocketFactory();
-        var customServerSocket = (SSLServerSocket) serverSocketFactory.createServerSocket(bindPort, maxConnections);
-        customServerSocket.setEnabledProtocols(new String[]{"TLSv1.2"});
-        customServerSocket.setEnabledCipherSuites(new String[]{"TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"});
-        return customServerSocket;
-    }
+        sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(new KeyManager[]{keyManager}, tm, new SecureRandom());
+        var customServerSockets = sockets.bind(sslContext.getServerSocketFactory(), bindPort, acceptors);
 
-    private Object[] parseGetData(String raw) {
-        try {
-            var splittedRequest = raw.split(" ");
-            var preRawRequest = splittedRequest[1].split("\\?", 2);
-            var handlerName = preRawRequest[0].substring(1);
+        for (var customServerSocket : customServerSockets) {
+            var parameters = customServerSocket.getSSLParameters();
+            parameters.setProtocols(supported(customServerSocket.getSupportedProtocols(), "TLSv1.3", "TLSv1.2"));
+            parameters.setCipherSuites(supported(customServerSocket.getSupportedCipherSuites(), "TLS_AES_128_GCM_SHA256", "TLS_AES_256_GCM_SHA384", "TLS_CHACHA20_POLY1305_SHA256", "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"));
+            parameters.setUseCipherSuitesOrder(true);
+            parameters.setApplicationProtocols(http2 ? new String[]{"h2", "http/1.1"} : new String[]{"http/1.1"});
+            customServerSocket.setSSLParameters(parameters);
+        }
+        return customServerSockets;
+    }
 
-            var rawRequest = preRawRequest.length > 1 ? preRawRequest[1] : "";
-            var splittedRawRequest = rawRequest.split("&");
+    private static String[] supported(String[] supported, String... wanted) {
+        var supportedList = Arrays.asList(supported);
+        return Arrays.stream(wanted).filter(supportedList::contains).toArray(String[]::new);
+    }
 
-            var requestMap = new TreeMap<>();
+    static Map<String, String> parseGetData(String query) {
+        var requestMap = new TreeMap<String, String>();
+        if (query.isEmpty())
+            return requestMap;
 
-            for (var rawSplittedRawRequest : splittedRawRequest) {
-                var splittedSplittedRawRequest = rawSplittedRawRequest.split("=", 2);
+        for (var rawSplittedRawRequest : query.split("&")) {
+            var splittedSplittedRawRequest = rawSplittedRawRequest.split("=", 2);
 
-                if (splittedSplittedRawRequest.length >= 2) {
-                    requestMap.put(splittedSplittedRawRequest[0], URLDecoder.decode(splittedSplittedRawRequest[1], StandardCharsets.UTF_8));
-                } else {
-                    requestMap.put(splittedSplittedRawRequest[0], "");
-                }
+            if (splittedSplittedRawRequest.length >= 2) {
+                requestMap.put(splittedSplittedRawRequest[0], URLDecoder.decode(splittedSplittedRawRequest[1], StandardCharsets.UTF_8));
+            } else {
+                requestMap.put(splittedSplittedRawRequest[0], "");
             }
+        }
+
+        return requestMap;
+    }
+
+    static Map<String, String> parseHeadData(WebserverRequest request) {
+        var requestMap = new TreeMap<String, String>();
+
+        for (var i = 0; i < request.getHeaderCount(); i++) {
+            var name = request.getHeaderName(i);
+            if (!name.equalsIgnoreCase("cookie"))
+                requestMap.put(name, request.getHeaderValue(i));
+        }
+
+        return requestMap;
+    }
+
+    static Map<String, String> parseCookies(String raw) {
+        var cookies = new TreeMap<String, String>();
+        if (raw == null)
+            return cookies;
 
-            return new Object[]{splittedRequest[0], handlerName, requestMap};
-        } catch (ArrayIndexOutOfBoundsException ex) {
-            return new Object[]{"GET", "/", new TreeMap<>()};
+        for (var rawCookie : raw.split(";")) {
+            var cookie = rawCookie.split("=", 2);
+            if (cookie.length == 2)
+                cookies.put(cookie[0].trim(), cookie[1].trim());
         }
+
+        return cookies;
     }
 
-    private Map<String, String> parseHeadData(List<String> raw) {
-        try {
-            var requestMap = new TreeMap<String, String>();
+    static Map<String, String> parsePostData(String raw) {
+        var requestMap = new TreeMap<String, String>();
+
+        for (var rawSplittedRawRequest : raw.split("&")) {
+            var splittedSplittedRawRequest = rawSplittedRawRequest.split("=", 2);
+
+            if (splittedSplittedRawRequest.length >= 2) {
+                requestMap.put(splittedSplittedRawRequest[0], URLDecoder.decode(splittedSplittedRawRequest[1].trim(), StandardCharsets.UTF_8));
+            }
+        }
 
-            raw.stream().map(line -> line.split(":", 2)).filter(splittedLine -> splittedLine.length >= 2).forEach(splittedLine -> requestMap.put(splittedLine[0], splittedLine[1].trim()));
+        return requestMap;
+    }
 
+    static Map<String, String> parsePutData(String raw) {
+        var requestMap = new TreeMap<String, String>();
+        if (raw.isEmpty())
             return requestMap;
-        } catch (ArrayIndexOutOfBoundsException ex) {
-            return new TreeMap<>();
+
+        int i = 0;
+        for (String line : raw.split("\n")) {
+            requestMap.put(String.valueOf(i++), line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
         }
+
+        return requestMap;
     }
 
-    private Map<String, String> parsePostData(String raw) {
-        try {
-            var splittedRawRequest = raw.split("&");
+    private static class ChannelOutputStream extends BufferedOutputStream implements WebserverChannelOutput, WebserverSharedOutput {
 
-            var requestMap = new TreeMap<String, String>();
+        private final SocketChannel channel;
+        private final WebserverMetrics metrics;
 
-            for (var rawSplittedRawRequest : splittedRawRequest) {
-                var splittedSplittedRawRequest = rawSplittedRawRequest.split("=", 2);
+        private ChannelOutputStream(Socket socket, WebserverMetrics metrics) throws IOException {
+            super(new MeteredOutputStream(socket.getOutputStream(), metrics));
+            this.channel = socket.getChannel();
+            this.metrics = metrics;
+        }
 
-                if (splittedSplittedRawRequest.length >= 2) {
-                    requestMap.put(splittedSplittedRawRequest[0], URLDecoder.decode(splittedSplittedRawRequest[1], StandardCharsets.UTF_8));
-                }
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) throws IOException {
+            flush();
+            var end = position + count;
+            while (position < end) {
+                var transferred = file.transferTo(position, end - position, this.channel);
+                if (transferred <= 0 && position >= file.size())
+                    throw new EOFException("file shorter than expected");
+                position += transferred;
+                this.metrics.bytesSent(transferred);
             }
+        }
 
-            return requestMap;
-        } catch (ArrayIndexOutOfBoundsException ex) {
-            return new TreeMap<>();
+        @Override
+        public synchronized void writeShared(byte[] bytes) throws IOException {
+            flush();
+            var buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining())
+                this.channel.write(buffer);
+            this.metrics.bytesSent(bytes.length);
         }
     }
 
-    private Map<String, String> parsePutData(List<String> raw) {
-        var requestMap = new TreeMap<String, String>();
+    private class BlockingConnection {
 
-        boolean read = false;
-        int i = 0;
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final WebserverMetrics metrics;
+        private final Runnable released;
+        private final String clientIp;
+        private final WebserverParser parser = new WebserverParser(MAX_HEAD_SIZE, uploads);
+        private ByteBuffer buffer;
+        private int served;
+
+        private BlockingConnection(Socket socket, InputStream in, OutputStream out, ByteBuffer buffer, WebserverMetrics metrics, Runnable released) {
+            this.socket = socket;
+            this.in = in;
+            this.out = out;
+            this.buffer = buffer;
+            this.metrics = metrics;
+            this.released = released;
+            this.clientIp = socket.getInetAddress().getHostAddress();
+        }
+
+        /**
+         * Answers requests until the connection is closed or continues on
+         * another thread
+         *
+         * @param stage response of the request answered last, null to read the next request
+         * @return true if the connection was handed to another thread
+         * @throws IOException when reading or writing fails
+         */
+        private boolean serve(CompletableFuture<WebserverResponse> stage) throws IOException {
+            var detached = false;
+            try {
+                while (true) {
+                    if (stage == null) {
+                        var request = parser.parse(buffer);
+                        if (request == null) {
+                            if (parser.expectsContinue())
+                                out.write(CONTINUE);
+                            buffer = fill(socket, in, out, parser.isIdle() && served > 0, buffer);
+                            if (buffer == null)
+                                break;
+                            continue;
+                        }
+
+                        request.setClientIp(clientIp);
+                        if (isHttp2Request(request, socket instanceof SSLSocket)) {
+                            var input = buffer;
+                            detached = detach(socket, metrics, released, () -> serveHttp2(socket, in, out, input, request, metrics));
+                            if (!detached)
+                                serveHttp2(socket, in, out, buffer, request);
+                            break;
+                        }
+                        stage = respondAsync(request, ++served, out).toCompletableFuture();
+                    }
+                    if (!stage.isDone()) {
+                        // an AsyncWebserverHandler waits, the worker finishing its response continues the connection
+                        detached = true;
+                        var pending = stage;
+                        pending.whenComplete((response, failure) -> resume(pending));
+                        break;
+                    }
 
-        for (String line : raw) {
-            if (read) {
-                requestMap.put(String.valueOf(i++), line);
-                continue;
+                    var response = join(stage);
+                    stage = null;
+                    if (response != null && response.getConnection() != null) {
+                        var input = buffer;
+                        detached = detach(socket, metrics, released, () -> serveConnection(socket, in, input, response.getConnection()));
+                        if (!detached)
+                            serveConnection(socket, in, buffer, response.getConnection());
+                        break;
+                    }
+                    if (response == null || !response.isKeepAlive())
+                        break;
+                }
+            } catch (WebserverException ex) {
+                writeError(out, ex);
+            } finally {
+                if (!detached)
+                    parser.discard();
             }
+            if (!detached)
+                out.flush();
+            return detached;
+        }
 
-            if (ENCODER.encodeToString(line.getBytes()).equals("DQ==")) {
-                read = true;
+        private void resume(CompletableFuture<WebserverResponse> stage) {
+            var detached = false;
+            try {
+                detached = serve(stage);
+            } catch (IOException ex) {
+                failed(ex, metrics);
+            } finally {
+                if (!detached) {
+                    closeConnection(socket, metrics);
+                    released.run();
+                }
             }
         }
 
-        return requestMap;
+        private WebserverResponse join(CompletableFuture<WebserverResponse> stage) throws IOException {
+            try {
+                return stage.join();
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof IOException)
+                    throw (IOException) ex.getCause();
+                throw new IOException(ex.getCause());
+            }
+        }
+    }
+
+    private static class MeteredOutputStream extends FilterOutputStream {
+
+        private final WebserverMetrics metrics;
+
+        private MeteredOutputStream(OutputStream out, WebserverMetrics metrics) {
+            super(out);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.metrics.bytesSent(1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            this.out.write(bytes, offset, length);
+            this.metrics.bytesSent(length);
+        }
+    }
+
+    private static class MeteredInputStream extends FilterInputStream {
+
+        private final WebserverMetrics metrics;
+
+        private MeteredInputStream(InputStream in, WebserverMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = this.in.read();
+            if (b != -1)
+                this.metrics.bytesReceived(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            var read = this.in.read(bytes, offset, length);
+            if (read > 0)
+                this.metrics.bytesReceived(read);
+            return read;
+        }
     }
 
     public static KeyStore generateKeyStore(File certificate, File key) throws Exception {
+        return generateKeyStore(certificate, key, "password".toCharArray());
+    }
+
+    /**
+     * Generates a key store from PEM files
+     *
+     * @param certificate certificate file (PEM)
+     * @param key         private key file (PEM, PKCS#8)
+     * @param keyPassword password protecting the private key in the key store
+     * @return key store to pass to the constructor or reloadKeyStore
+     * @throws Exception when the files cannot be read or parsed
+     */
+    public static KeyStore generateKeyStore(File certificate, File key, char[] keyPassword) throws Exception {
         var keyStore = KeyStore.getInstance("JKS");
         keyStore.load(null, null);
 
@@ -340,7 +1296,7 @@ public class Webserver {
             }
         }
 
-        keyStore.setKeyEntry("mykey", privateKey, "password".toCharArray(), new Certificate[]{fact.generateCertificate(is)});
+        keyStore.setKeyEntry("mykey", privateKey, keyPassword, new Certificate[]{fact.generateCertificate(is)});
         return keyStore;
     }
 }
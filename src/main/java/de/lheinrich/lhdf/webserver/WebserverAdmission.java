@@ -0,0 +1,131 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class WebserverAdmission {
+
+    final static WebserverAdmission UNLIMITED = new WebserverAdmission(0, 0, 0, 0, 1);
+
+    private final int maxConnections;
+    private final int maxConnectionsPerIp;
+    private final int maxQueued;
+    private final long maxQueueWait;
+    private final byte[] rejection;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Map<String, Integer> connectionsPerIp = new ConcurrentHashMap<>();
+
+    /**
+     * Creates admission limits, all counted without locks
+     *
+     * @param maxConnections      limit open connections (unlimited = 0)
+     * @param maxConnectionsPerIp limit open connections per client IP (unlimited = 0)
+     * @param maxQueued           limit connections or requests waiting for a worker (unlimited = 0)
+     * @param maxQueueWait        reject work that waited longer for a worker, in milliseconds (disable = 0)
+     * @param retryAfter          seconds sent in Retry-After
+     */
+    WebserverAdmission(int maxConnections, int maxConnectionsPerIp, int maxQueued, int maxQueueWait, int retryAfter) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerIp = maxConnectionsPerIp;
+        this.maxQueued = maxQueued;
+        this.maxQueueWait = TimeUnit.MILLISECONDS.toNanos(maxQueueWait);
+        this.rejection = ("HTTP/1.1 503 Service Unavailable\r\nServer: lhdf\r\nRetry-After: " + retryAfter + "\r\nConnection: close\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Admits a new connection, release it with close
+     *
+     * @param clientIp IP the connection is from
+     * @return false if a limit is reached, the connection is not counted then
+     */
+    boolean open(String clientIp) {
+        if (this.maxConnections > 0 && this.connections.incrementAndGet() > this.maxConnections) {
+            this.connections.decrementAndGet();
+            return false;
+        }
+        if (this.maxConnectionsPerIp > 0 && this.connectionsPerIp.merge(clientIp, 1, Integer::sum) > this.maxConnectionsPerIp) {
+            release(clientIp);
+            if (this.maxConnections > 0)
+                this.connections.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases a connection admitted by open
+     *
+     * @param clientIp IP the connection is from
+     */
+    void close(String clientIp) {
+        if (this.maxConnections > 0)
+            this.connections.decrementAndGet();
+        if (this.maxConnectionsPerIp > 0)
+            release(clientIp);
+    }
+
+    /**
+     * Admits work waiting for a worker, take it with dequeue
+     *
+     * @return false if the queue is full, nothing is counted then
+     */
+    boolean enqueue() {
+        if (this.maxQueued > 0 && this.queued.incrementAndGet() > this.maxQueued) {
+            this.queued.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Takes work admitted by enqueue when a worker starts it
+     *
+     * @param queuedAt System.nanoTime() of enqueue
+     * @return false if it waited too long, answer it with the rejection then
+     */
+    boolean dequeue(long queuedAt) {
+        if (this.maxQueued > 0)
+            this.queued.decrementAndGet();
+        // the client has likely given up or will soon, the worker is better spent on fresh work
+        return this.maxQueueWait == 0 || System.nanoTime() - queuedAt <= this.maxQueueWait;
+    }
+
+    /**
+     * The raw 503 Service Unavailable response with Retry-After
+     *
+     * @return response bytes, do not modify
+     */
+    byte[] getRejection() {
+        return this.rejection;
+    }
+
+    private void release(String clientIp) {
+        this.connectionsPerIp.computeIfPresent(clientIp, (ip, count) -> count > 1 ? count - 1 : null);
+    }
+}
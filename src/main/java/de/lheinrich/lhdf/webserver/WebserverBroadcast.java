@@ -0,0 +1,122 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public class WebserverBroadcast {
+
+    private final Set<WebserverConnection> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Adds an event stream or WebSocket, it is removed when it closes
+     *
+     * @param connection connection to send messages to
+     */
+    public void subscribe(WebserverConnection connection) {
+        connection.subscribed(this);
+        this.connections.add(connection);
+        if (!connection.isOpen())
+            unsubscribe(connection);
+    }
+
+    /**
+     * Removes a connection
+     *
+     * @param connection connection to remove
+     */
+    public void unsubscribe(WebserverConnection connection) {
+        this.connections.remove(connection);
+        connection.unsubscribed(this);
+    }
+
+    /**
+     * Get the number of subscribed connections
+     *
+     * @return number of connections
+     */
+    public int size() {
+        return this.connections.size();
+    }
+
+    /**
+     * Sends a message to every connection without waiting for slow clients.
+     * The message is serialized once per protocol and shared by all
+     * connections
+     *
+     * @param data message, sent as text
+     */
+    public void publish(String data) {
+        publish(null, data);
+    }
+
+    /**
+     * Sends a named event to every connection, WebSockets receive the data
+     * only
+     *
+     * @param event event name (none = null)
+     * @param data  message, sent as text
+     */
+    public void publish(String event, String data) {
+        var message = new Message(event, data);
+        for (var connection : this.connections)
+            connection.enqueue(connection.frame(message));
+    }
+
+    static class Message {
+
+        private final String event;
+        private final String data;
+        private volatile byte[] eventStream;
+        private volatile byte[] webSocket;
+
+        private Message(String event, String data) {
+            this.event = event;
+            this.data = data;
+        }
+
+        byte[] eventStream() {
+            var frame = this.eventStream;
+            if (frame == null) {
+                synchronized (this) {
+                    if ((frame = this.eventStream) == null)
+                        this.eventStream = frame = EventStream.encode(this.event, this.data);
+                }
+            }
+            return frame;
+        }
+
+        byte[] webSocket() {
+            var frame = this.webSocket;
+            if (frame == null) {
+                synchronized (this) {
+                    if ((frame = this.webSocket) == null)
+                        this.webSocket = frame = WebSocket.encode(WebSocket.TEXT, this.data.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return frame;
+        }
+    }
+}
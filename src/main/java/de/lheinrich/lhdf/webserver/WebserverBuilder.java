@@ -0,0 +1,176 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.security.KeyStore;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public class WebserverBuilder {
+
+    int port;
+    int sslPort;
+    KeyStore keyStore;
+    char[] keyPassword = "password".toCharArray();
+    int threads;
+    int timeout = 10;
+    int backlog = 50;
+    int selectorThreads;
+    int acceptors = 1;
+    boolean tcpNoDelay = true;
+    int sendBufferSize;
+    int receiveBufferSize;
+    int fastOpen;
+
+    WebserverBuilder() {
+    }
+
+    /**
+     * Serves HTTP on a port
+     *
+     * @param port where to bind for HTTP (disable = 0)
+     * @return this builder
+     */
+    public WebserverBuilder port(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * Serves HTTPS on a port
+     *
+     * @param port        where to bind for HTTPS (disable = 0)
+     * @param keyStore    key store for the ssl certificate
+     * @param keyPassword password of the private key in the key store
+     * @return this builder
+     */
+    public WebserverBuilder sslPort(int port, KeyStore keyStore, char[] keyPassword) {
+        this.sslPort = port;
+        this.keyStore = keyStore;
+        this.keyPassword = keyPassword;
+        return this;
+    }
+
+    /**
+     * Limits the handler threads
+     *
+     * @param threads limit handler threads to n (virtual thread per task = 0, default)
+     * @return this builder
+     */
+    public WebserverBuilder threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Sets the socket timeout
+     *
+     * @param timeout socket timeout in seconds (default = 10)
+     * @return this builder
+     */
+    public WebserverBuilder timeout(int timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Sets the accept backlog of each listening socket
+     *
+     * @param backlog limit connections waiting to be accepted (default = 50)
+     * @return this builder
+     */
+    public WebserverBuilder backlog(int backlog) {
+        this.backlog = backlog;
+        return this;
+    }
+
+    /**
+     * Serves HTTP with the non-blocking selector engine
+     *
+     * @param selectorThreads number of event loops for HTTP (blocking engine = 0, default)
+     * @return this builder
+     */
+    public WebserverBuilder selectorThreads(int selectorThreads) {
+        this.selectorThreads = selectorThreads;
+        return this;
+    }
+
+    /**
+     * Accepts connections on several threads per port. Where SO_REUSEPORT
+     * is supported each acceptor gets its own listening socket and the
+     * kernel balances new connections between them, otherwise the threads
+     * share one socket. The selector engine uses at most one acceptor per
+     * event loop
+     *
+     * @param acceptors number of accepting threads per port (default = 1)
+     * @return this builder
+     */
+    public WebserverBuilder acceptors(int acceptors) {
+        this.acceptors = Math.max(acceptors, 1);
+        return this;
+    }
+
+    /**
+     * Enables or disables Nagle's algorithm on accepted connections
+     *
+     * @param tcpNoDelay whether to send small writes at once (default = true)
+     * @return this builder
+     */
+    public WebserverBuilder tcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    /**
+     * Sets the socket buffer sizes of accepted connections
+     *
+     * @param sendBufferSize    SO_SNDBUF in bytes (system default = 0)
+     * @param receiveBufferSize SO_RCVBUF in bytes, set before binding so large windows are negotiated (system default = 0)
+     * @return this builder
+     */
+    public WebserverBuilder bufferSizes(int sendBufferSize, int receiveBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    /**
+     * Enables TCP Fast Open, if the JDK and operating system offer it as a
+     * socket option of listening sockets. Ignored otherwise
+     *
+     * @param queueLength limit pending Fast Open requests (disable = 0, default)
+     * @return this builder
+     */
+    public WebserverBuilder fastOpen(int queueLength) {
+        this.fastOpen = queueLength;
+        return this;
+    }
+
+    /**
+     * Binds the ports and starts the web server
+     *
+     * @return running web server
+     * @throws Exception when a port is used or SSL fails
+     */
+    public Webserver build() throws Exception {
+        return new Webserver(this);
+    }
+}
@@ -0,0 +1,315 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public class WebserverCache {
+
+    private final static Set<Integer> CACHEABLE = Set.of(200, 203, 204, 300, 301, 308, 404, 410);
+
+    private final Webserver webserver;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long cachedBytes;
+
+    /**
+     * Creates a response cache, see Webserver.createCache
+     *
+     * @param webserver web server the cached handlers run on
+     * @param maxBytes  limit the cached responses to n bytes
+     */
+    WebserverCache(Webserver webserver, long maxBytes) {
+        this.webserver = webserver;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Wraps a handler, so its GET responses are cached per path, query and
+     * the given request headers. Concurrent misses for the same key wait for
+     * one computation. Responses setting cookies, with Cache-Control
+     * no-store, no-cache or private or with another status than 200, 203,
+     * 204, 300, 301, 308, 404 or 410 are not cached
+     *
+     * @param handler handler computing the responses
+     * @param ttl     seconds a response is served from the cache
+     * @param vary    request headers the response depends on, for example Accept-Language
+     * @return handler to register instead of the wrapped one
+     */
+    public AsyncWebserverHandler wrap(WebserverHandler handler, int ttl, String... vary) {
+        if (handler instanceof EventStreamHandler || handler instanceof WebSocketHandler)
+            throw new IllegalArgumentException("event streams and WebSockets cannot be cached");
+        var ttlNanos = TimeUnit.SECONDS.toNanos(ttl);
+        var headers = vary.clone();
+        return new AsyncWebserverHandler() {
+            @Override
+            public CompletionStage<?> handleAsync(WebserverRequest request, WebserverResponse response) {
+                return serve(handler, ttlNanos, headers, request, response);
+            }
+        };
+    }
+
+    /**
+     * Removes the cached responses of a path, for all queries and headers
+     *
+     * @param path path of the request target, for example /users/42
+     */
+    public void invalidate(String path) {
+        var prefix = path + '?';
+        synchronized (this.entries) {
+            var iterator = this.entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                var entry = iterator.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    this.cachedBytes -= entry.getValue().weight;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all cached responses
+     */
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+            this.cachedBytes = 0;
+        }
+    }
+
+    /**
+     * Get the number of requests answered from the cache, including those
+     * that waited for a concurrent miss
+     *
+     * @return hits
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Get the number of requests that computed their response
+     *
+     * @return misses
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Get the size of the cached responses
+     *
+     * @return bytes (approximate, bodies, keys and headers)
+     */
+    public long getSize() {
+        synchronized (this.entries) {
+            return this.cachedBytes;
+        }
+    }
+
+    private CompletionStage<?> serve(WebserverHandler handler, long ttl, String[] vary, WebserverRequest request, WebserverResponse response) {
+        var method = request.getMethod();
+        if (!method.equals("GET") && !method.equals("HEAD"))
+            return run(handler, request, response);
+
+        var key = key(request, vary);
+        var cached = get(key);
+        if (cached != null) {
+            record(request, true);
+            return cached.apply(response);
+        }
+        // a HEAD response has no body to cache
+        if (method.equals("HEAD")) {
+            record(request, false);
+            return run(handler, request, response);
+        }
+
+        var future = new CompletableFuture<Entry>();
+        var leader = this.loading.putIfAbsent(key, future);
+        if (leader != null) {
+            return leader.thenComposeAsync(loaded -> {
+                if (!loaded.cacheable) {
+                    record(request, false);
+                    return run(handler, request, response);
+                }
+                record(request, true);
+                return loaded.apply(response);
+            }, this.webserver.getExecutor());
+        }
+
+        record(request, false);
+        var capture = new CaptureOutput();
+        var captured = new WebserverResponse(capture, request, false, null);
+        run(handler, request, captured).whenComplete((body, failure) -> {
+            this.loading.remove(key, future);
+            if (failure != null) {
+                future.completeExceptionally(failure);
+                return;
+            }
+            try {
+                AsyncWebserverHandler.send(captured, body);
+                captured.finish();
+            } catch (IOException | RuntimeException ex) {
+                future.completeExceptionally(ex);
+                return;
+            }
+            var loaded = new Entry(key, capture, System.nanoTime() + ttl);
+            if (loaded.cacheable)
+                put(key, loaded);
+            future.complete(loaded);
+        });
+        return future.thenCompose(loaded -> loaded.apply(response));
+    }
+
+    private void record(WebserverRequest request, boolean hit) {
+        (hit ? this.hits : this.misses).increment();
+        this.webserver.getMetrics().cache(request.getRoute() != null ? request.getRoute() : request.getHandlerName(), hit);
+    }
+
+    private static CompletionStage<Object> run(WebserverHandler handler, WebserverRequest request, WebserverResponse response) {
+        try {
+            if (handler instanceof AsyncWebserverHandler)
+                return ((AsyncWebserverHandler) handler).handleAsync(request, response).thenApply(body -> body);
+            handler.handle(request, response);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException | RuntimeException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    private static String key(WebserverRequest request, String[] vary) {
+        var builder = new StringBuilder(64).append(request.getPath()).append('?').append(request.getQuery());
+        for (var name : vary) {
+            var value = request.getHeader(name);
+            builder.append('\n').append(value != null ? value : "");
+        }
+        return builder.toString();
+    }
+
+    private Entry get(String key) {
+        synchronized (this.entries) {
+            var entry = this.entries.get(key);
+            if (entry != null && System.nanoTime() - entry.expires > 0) {
+                this.entries.remove(key);
+                this.cachedBytes -= entry.weight;
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    private void put(String key, Entry entry) {
+        if (entry.weight > this.maxBytes / 4)
+            return;
+
+        synchronized (this.entries) {
+            var replaced = this.entries.put(key, entry);
+            if (replaced != null)
+                this.cachedBytes -= replaced.weight;
+            this.cachedBytes += entry.weight;
+
+            // least recently used first
+            var iterator = this.entries.values().iterator();
+            while (this.cachedBytes > this.maxBytes && iterator.hasNext()) {
+                this.cachedBytes -= iterator.next().weight;
+                iterator.remove();
+            }
+        }
+    }
+
+    private static class Entry {
+
+        private final int status;
+        private final List<String[]> headers;
+        private final byte[] body;
+        private final long expires;
+        private final long weight;
+        private final boolean cacheable;
+
+        private Entry(String key, CaptureOutput capture, long expires) {
+            this.status = capture.status;
+            this.headers = capture.headers;
+            this.body = capture.toByteArray();
+            this.expires = expires;
+
+            var weight = (long) this.body.length + key.length();
+            var cacheable = CACHEABLE.contains(this.status);
+            for (var header : this.headers) {
+                weight += header[0].length() + header[1].length();
+                var name = header[0].toLowerCase();
+                if (name.equals("set-cookie"))
+                    cacheable = false;
+                else if (name.equals("cache-control")) {
+                    var value = header[1].toLowerCase();
+                    if (value.contains("no-store") || value.contains("no-cache") || value.contains("private"))
+                        cacheable = false;
+                }
+            }
+            this.weight = weight;
+            this.cacheable = cacheable;
+        }
+
+        private CompletionStage<Object> apply(WebserverResponse response) {
+            response.setStatus(this.status);
+            for (var header : this.headers) {
+                var name = header[0].toLowerCase();
+                if (name.equals("server") || name.equals("content-length"))
+                    continue;
+                if (name.equals("set-cookie")) {
+                    var separator = header[1].indexOf('=');
+                    response.setCookie(header[1].substring(0, separator), header[1].substring(separator + 1));
+                } else {
+                    response.addHeader(header[0], header[1]);
+                }
+            }
+            return CompletableFuture.completedFuture(this.body);
+        }
+    }
+
+    private static class CaptureOutput extends ByteArrayOutputStream implements WebserverHeadOutput {
+
+        private int status;
+        private List<String[]> headers = List.of();
+
+        @Override
+        public void writeHead(int status, List<String[]> headers) {
+            // the cached response is sent through the real one, which compresses it per client
+            this.status = status;
+            this.headers = headers;
+        }
+    }
+}
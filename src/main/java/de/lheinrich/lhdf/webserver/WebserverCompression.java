@@ -0,0 +1,192 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.util.LinkedHashMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class WebserverCompression {
+
+    final static String GZIP = "gzip";
+    final static String DEFLATE = "deflate";
+
+    /**
+     * Bodies of known length up to this size are compressed into memory, so
+     * they are sent with Content-Length and can be cached
+     */
+    final static int MAX_BUFFERED_SIZE = 1024 * 1024;
+
+    private final static int MAX_POOLED = 64;
+
+    private final int minSize;
+    private final int level;
+    private final long cacheSize;
+    private final Queue<Deflater> gzipDeflaters = new ConcurrentLinkedQueue<>();
+    private final Queue<Deflater> zlibDeflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    /**
+     * Creates the compression settings of a web server
+     *
+     * @param minSize   compress bodies of at least n bytes
+     * @param level     Deflater level (1 = fastest, 9 = smallest)
+     * @param cacheSize limit the cache of compressed bodies to n bytes (disable = 0)
+     */
+    WebserverCompression(int minSize, int level, long cacheSize) {
+        this.minSize = minSize;
+        this.level = level;
+        this.cacheSize = cacheSize;
+    }
+
+    int getMinSize() {
+        return this.minSize;
+    }
+
+    /**
+     * Chooses the encoding from an Accept-Encoding header, gzip is preferred
+     * over deflate when both are accepted with the same quality
+     *
+     * @param acceptEncoding value of the header (none = null)
+     * @return gzip, deflate or null for no compression
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return null;
+
+        var gzip = -1f;
+        var deflate = -1f;
+        var any = -1f;
+        for (var entry : acceptEncoding.split(",")) {
+            var parameters = entry.indexOf(';');
+            var coding = (parameters == -1 ? entry : entry.substring(0, parameters)).trim();
+            var quality = parameters == -1 ? 1f : parseQuality(entry.substring(parameters + 1));
+            if (coding.equalsIgnoreCase(GZIP) || coding.equalsIgnoreCase("x-gzip"))
+                gzip = quality;
+            else if (coding.equalsIgnoreCase(DEFLATE))
+                deflate = quality;
+            else if (coding.equals("*"))
+                any = quality;
+        }
+        if (gzip == -1)
+            gzip = any;
+        if (deflate == -1)
+            deflate = any;
+
+        if (gzip > 0 && gzip >= deflate)
+            return GZIP;
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    private static float parseQuality(String parameters) {
+        for (var parameter : parameters.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Float.parseFloat(parameter.substring(2));
+                } catch (NumberFormatException ex) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Whether compressing a content type is worthwhile
+     *
+     * @param contentType value of the Content-Type header (none = null)
+     * @return true for text, JSON, JavaScript and XML
+     */
+    static boolean isCompressible(String contentType) {
+        if (contentType == null)
+            return false;
+        var type = contentType.toLowerCase();
+        return type.startsWith("text/") || type.contains("json") || type.contains("javascript") || type.contains("xml");
+    }
+
+    /**
+     * Takes a Deflater from the pool, return it with release
+     *
+     * @param encoding gzip (raw deflate stream) or deflate (zlib stream)
+     * @return Deflater ready for new input
+     */
+    Deflater borrow(String encoding) {
+        var gzip = encoding.equals(GZIP);
+        var deflater = (gzip ? this.gzipDeflaters : this.zlibDeflaters).poll();
+        if (deflater == null)
+            return new Deflater(this.level, gzip);
+        this.pooled.decrementAndGet();
+        return deflater;
+    }
+
+    /**
+     * Returns a Deflater to the pool, so its native memory is reused
+     *
+     * @param encoding encoding it was borrowed for
+     * @param deflater Deflater to return
+     */
+    void release(String encoding, Deflater deflater) {
+        deflater.reset();
+        if (this.pooled.incrementAndGet() <= MAX_POOLED) {
+            (encoding.equals(GZIP) ? this.gzipDeflaters : this.zlibDeflaters).offer(deflater);
+        } else {
+            this.pooled.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    boolean isCacheEnabled() {
+        return this.cacheSize > 0;
+    }
+
+    byte[] getCached(String key) {
+        synchronized (this.cache) {
+            return this.cache.get(key);
+        }
+    }
+
+    void putCached(String key, byte[] compressed) {
+        var size = compressed.length + key.length();
+        if (size > this.cacheSize / 4)
+            return;
+
+        synchronized (this.cache) {
+            var replaced = this.cache.put(key, compressed);
+            if (replaced != null)
+                this.cachedBytes -= replaced.length + key.length();
+            this.cachedBytes += size;
+
+            var iterator = this.cache.entrySet().iterator();
+            while (this.cachedBytes > this.cacheSize && iterator.hasNext()) {
+                var eldest = iterator.next();
+                this.cachedBytes -= eldest.getValue().length + eldest.getKey().length();
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public abstract class WebserverConnection {
+
+    private final static int MAX_QUEUED = 1024 * 1024;
+    private final static byte[] CLOSE = new byte[0];
+
+    private final WebserverRequest request;
+    private final OutputStream out;
+    private final Queue<byte[]> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final Set<WebserverBroadcast> broadcasts = ConcurrentHashMap.newKeySet();
+    private volatile boolean closing;
+    private volatile Executor executor;
+    private volatile Runnable closer;
+
+    /**
+     * Sends the head of the response and takes the connection over from the
+     * engine that read the request
+     *
+     * @param request  request that opened the connection
+     * @param response response to the request, not committed yet
+     * @throws IOException when sending the head fails
+     */
+    WebserverConnection(WebserverRequest request, WebserverResponse response) throws IOException {
+        this.request = request;
+        this.out = response.takeOver(this);
+    }
+
+    /**
+     * Get the request that opened the connection
+     *
+     * @return request, its body was already read
+     */
+    public WebserverRequest getRequest() {
+        return this.request;
+    }
+
+    /**
+     * Get the IP of the client
+     *
+     * @return client IP
+     */
+    public String getClientIp() {
+        return this.request.getClientIp();
+    }
+
+    /**
+     * Whether messages can still be sent
+     *
+     * @return false once closed by either side
+     */
+    public boolean isOpen() {
+        return !this.closing && !this.closed.get();
+    }
+
+    /**
+     * Closes the connection once the messages queued so far are sent
+     */
+    public void close() {
+        shutdown(null);
+    }
+
+    /**
+     * Queues a frame without blocking, a client that falls more than 1 MiB
+     * behind is disconnected
+     *
+     * @param frame serialized frame, may be shared with other connections
+     * @return false if the connection is closed
+     */
+    boolean enqueue(byte[] frame) {
+        if (!isOpen())
+            return false;
+        if (this.queued.addAndGet(frame.length) > MAX_QUEUED) {
+            abort();
+            return false;
+        }
+        this.queue.add(frame);
+        drain();
+        return true;
+    }
+
+    /**
+     * Sends a last frame and closes the connection once it is sent
+     *
+     * @param frame last frame (none = null)
+     */
+    void shutdown(byte[] frame) {
+        synchronized (this.queue) {
+            if (!isOpen())
+                return;
+            this.closing = true;
+            if (frame != null)
+                this.queue.add(frame);
+            this.queue.add(CLOSE);
+        }
+        drain();
+    }
+
+    /**
+     * Starts sending, called by the engine once the connection is taken over
+     *
+     * @param executor executor frames are written on
+     * @param closer   closes the underlying connection
+     * @return false if the connection was closed already
+     */
+    boolean attach(Executor executor, Runnable closer) {
+        this.closer = closer;
+        this.executor = executor;
+        if (this.closed.get())
+            return false;
+        drain();
+        return true;
+    }
+
+    /**
+     * Reads what the client sent, called by the engine with every input
+     *
+     * @param input bytes received, in read mode
+     */
+    abstract void receive(ByteBuffer input);
+
+    /**
+     * Called once when the connection is gone
+     */
+    abstract void onClosed();
+
+    /**
+     * Unsubscribes the connection and notifies the handler, called by the
+     * engine when the client went away
+     */
+    void closed() {
+        if (!this.closed.compareAndSet(false, true))
+            return;
+        this.queue.clear();
+        for (var broadcast : this.broadcasts)
+            broadcast.unsubscribe(this);
+        try {
+            onClosed();
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Serializes a broadcast message for this kind of connection
+     *
+     * @param message message to send
+     * @return frame, shared by all connections of this kind
+     */
+    abstract byte[] frame(WebserverBroadcast.Message message);
+
+    void subscribed(WebserverBroadcast broadcast) {
+        this.broadcasts.add(broadcast);
+    }
+
+    void unsubscribed(WebserverBroadcast broadcast) {
+        this.broadcasts.remove(broadcast);
+    }
+
+    private void abort() {
+        this.closing = true;
+        var closer = this.closer;
+        if (closer != null)
+            closer.run();
+        closed();
+    }
+
+    private void drain() {
+        var executor = this.executor;
+        if (executor == null || this.queue.isEmpty() || !this.draining.compareAndSet(false, true))
+            return;
+        try {
+            executor.execute(this::write);
+        } catch (RejectedExecutionException ex) {
+            this.draining.set(false);
+            abort();
+        }
+    }
+
+    private void write() {
+        try {
+            byte[] frame;
+            while ((frame = this.queue.poll()) != null) {
+                if (frame == CLOSE) {
+                    this.out.flush();
+                    abort();
+                    return;
+                }
+                this.queued.addAndGet(-frame.length);
+                if (this.out instanceof WebserverSharedOutput)
+                    ((WebserverSharedOutput) this.out).writeShared(frame);
+                else
+                    this.out.write(frame);
+                if (this.queue.isEmpty())
+                    this.out.flush();
+            }
+        } catch (IOException ex) {
+            abort();
+            return;
+        } finally {
+            this.draining.set(false);
+        }
+        // a frame queued while the last one was written
+        drain();
+    }
+}
@@ -0,0 +1,52 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.IOException;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public class WebserverException extends IOException {
+
+    private final static long serialVersionUID = 1L;
+
+    private final int status;
+
+    /**
+     * Creates an exception answered with the given HTTP status
+     *
+     * @param status  HTTP status code, for example 400
+     * @param message reason
+     */
+    public WebserverException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * Get the HTTP status
+     *
+     * @return HTTP status code
+     */
+    public int getStatus() {
+        return this.status;
+    }
+}
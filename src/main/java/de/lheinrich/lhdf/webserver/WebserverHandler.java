@@ -1,7 +1,7 @@
 package de.lheinrich.lhdf.webserver;
 
+import java.io.IOException;
 import java.util.Map;
-import java.util.TreeMap;
 
 /*
  * Copyright (c) 2018 Lennart Heinrich
@@ -27,30 +27,76 @@ import java.util.TreeMap;
 
 public abstract class WebserverHandler {
 
-    private final Map<String, String> setCookies = new TreeMap<>();
+    private final static ThreadLocal<WebserverResponse> RESPONSE = new ThreadLocal<>();
 
     /**
-     * Set a Cookie
+     * Set a Cookie for the response to the request currently processed by
+     * this thread. Streaming and asynchronous handlers set cookies on the
+     * response they are given
      *
      * @param name  Name of the cookie
      * @param value Value of the cookie
+     * @throws IllegalStateException when called outside of process
      */
     public void setCookie(String name, String value) {
-        this.setCookies.remove(name);
-        this.setCookies.put(name, value);
+        current().setCookie(name, value);
     }
 
     /**
-     * Get the Cookie Map
+     * Get the Cookie Map of the response to the request currently processed
+     * by this thread
      *
-     * @return TreeMap Name and value of the cookies
+     * @return Map Name and value of the cookies
+     * @throws IllegalStateException when called outside of process
      */
     public Map<String, String> getCookies() {
-        return this.setCookies;
+        return current().getCookies();
     }
 
     /**
-     * Task handling
+     * Get the response to the request currently processed by this thread,
+     * to set status codes or headers from process
+     *
+     * @return response, null outside of process
+     */
+    protected WebserverResponse getResponse() {
+        return RESPONSE.get();
+    }
+
+    /**
+     * Request handling, answers with the result of process as UTF-8 text.
+     * Override (or extend StreamingWebserverHandler) to set status codes and
+     * headers or to stream the body
+     *
+     * @param request  Request sent from client
+     * @param response Response to write
+     * @throws IOException when writing the response fails
+     */
+    public void handle(WebserverRequest request, WebserverResponse response) throws IOException {
+        var post_put = request.getMethod().equalsIgnoreCase("put") ? Webserver.parsePutData(request.getBodyString()) : Webserver.parsePostData(request.getBodyString());
+
+        String[] result;
+        var previous = RESPONSE.get();
+        RESPONSE.set(response);
+        try {
+            result = process(request.getHandlerName(), Webserver.parseGetData(request.getQuery()), Webserver.parseHeadData(request), post_put, request.getCookies(), request.getClientIp());
+        } finally {
+            if (previous != null)
+                RESPONSE.set(previous);
+            else
+                RESPONSE.remove();
+        }
+
+        if (result == null) {
+            response.setStatus(501);
+            return;
+        }
+        response.setContentType(result[0] + "; charset=utf-8");
+        response.send(result[1]);
+    }
+
+    /**
+     * Task handling, override unless handle is overridden
      *
      * @param name     Requested name
      * @param get      HTML GET Header
@@ -58,7 +104,18 @@ public abstract class WebserverHandler {
      * @param post_put HTML POST or PUT Header (default is PUT)
      * @param cookies  Cookies sent from client
      * @param clientIp IP Request is from
-     * @return String array for output (0 = Content-Type, 1 = Content)
+     * @return String array for output (0 = Content-Type, 1 = Content), null
+     * answers 501 Not Implemented
      */
-    public abstract String[] process(String name, Map<String, String> get, Map<String, String> head, Map<String, String> post_put, Map<String, String> cookies, String clientIp);
+    public String[] process(String name, Map<String, String> get, Map<String, String> head, Map<String, String> post_put, Map<String, String> cookies, String clientIp) {
+        return null;
+    }
+
+    private static WebserverResponse current() {
+        // a cookie set without a request would reach every user of this handler
+        var response = RESPONSE.get();
+        if (response == null)
+            throw new IllegalStateException("no request is processed by this thread, set the cookie on the response");
+        return response;
+    }
 }
@@ -0,0 +1,138 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public class WebserverHistogram {
+
+    private final static int SUB_BUCKET_BITS = 6;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final static int MAX_MAGNITUDE = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value without locking. Values are kept in log-linear buckets
+     * (64 per power of two), so percentiles are accurate to about 1.6%. Values
+     * above 2^41 are recorded as 2^41
+     *
+     * @param value value to record, for example nanoseconds
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        this.counts.incrementAndGet(index(value));
+        this.count.increment();
+        this.sum.add(value);
+
+        var current = this.max.get();
+        while (value > current && !this.max.compareAndSet(current, value))
+            current = this.max.get();
+    }
+
+    /**
+     * Get the number of recorded values
+     *
+     * @return count
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * Get the sum of all recorded values
+     *
+     * @return sum
+     */
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    /**
+     * Get the largest recorded value
+     *
+     * @return exact maximum, 0 if empty
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Get the mean of all recorded values
+     *
+     * @return mean, 0 if empty
+     */
+    public double getMean() {
+        var count = getCount();
+        return count == 0 ? 0 : (double) getSum() / count;
+    }
+
+    /**
+     * Get the value below which the given percentage of values fall
+     *
+     * @param percentile percentile from 0 to 100, for example 99.9
+     * @return highest value of the bucket the percentile falls in, 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        // counted from the buckets, so concurrent records cannot push the rank past the end
+        var total = 0L;
+        for (var i = 0; i < this.counts.length(); i++)
+            total += this.counts.get(i);
+        if (total == 0)
+            return 0;
+
+        var rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        var seen = 0L;
+        for (var i = 0; i < this.counts.length(); i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValue(i), getMax());
+        }
+        return getMax();
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        var magnitude = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_MAGNITUDE);
+        var subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        if (magnitude == MAX_MAGNITUDE && value >>> (MAX_MAGNITUDE + 1) != 0)
+            subBucket = SUB_BUCKETS - 1;
+        return SUB_BUCKETS + (magnitude - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        var magnitude = SUB_BUCKET_BITS + (index - SUB_BUCKETS) / SUB_BUCKETS;
+        var subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        var shift = magnitude - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,505 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/**
+ * HPACK header compression (RFC 7541) for HTTP/2
+ */
+class WebserverHpack {
+
+    private final static String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    // Huffman code of every byte (RFC 7541 Appendix B), EOS is never sent
+    private final static int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    private final static byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    private final static Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private final static Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+    private final static int[] HUFFMAN_TREE;
+
+    static {
+        for (var i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+
+        // binary tree as array: two children per node, leaves are stored as -(symbol + 1)
+        var tree = new int[512 * 2];
+        var nodes = 1;
+        for (var symbol = 0; symbol < 256; symbol++) {
+            var node = 0;
+            for (var bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                var index = node * 2 + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+                if (bit == 0) {
+                    tree[index] = -(symbol + 1);
+                } else {
+                    if (tree[index] == 0)
+                        tree[index] = nodes++;
+                    node = tree[index];
+                }
+            }
+        }
+        HUFFMAN_TREE = tree;
+    }
+
+    /**
+     * Decodes header blocks of one connection
+     */
+    static class Decoder {
+
+        private final Table table;
+        private final int maxTableSize;
+
+        /**
+         * Creates a decoder
+         *
+         * @param maxTableSize SETTINGS_HEADER_TABLE_SIZE announced to the client
+         */
+        Decoder(int maxTableSize) {
+            this.table = new Table(maxTableSize);
+            this.maxTableSize = maxTableSize;
+        }
+
+        /**
+         * Decodes a complete header block
+         *
+         * @param block header block fragments joined
+         * @return name and value of every header field in order
+         * @throws WebserverHttp2.Http2Exception when the block is malformed (COMPRESSION_ERROR)
+         */
+        List<String[]> decode(byte[] block) throws WebserverHttp2.Http2Exception {
+            var fields = new ArrayList<String[]>();
+            var position = new int[]{0};
+            while (position[0] < block.length) {
+                var first = block[position[0]] & 0xFF;
+                if ((first & 0x80) != 0) {
+                    var field = get(readInt(block, position, 7));
+                    fields.add(new String[]{field[0], field[1]});
+                } else if ((first & 0xE0) == 0x20) {
+                    var size = readInt(block, position, 5);
+                    if (size > this.maxTableSize)
+                        throw error("table size update too large");
+                    this.table.setMaxSize(size);
+                } else {
+                    var indexing = (first & 0xC0) == 0x40;
+                    var index = readInt(block, position, indexing ? 6 : 4);
+                    var name = index == 0 ? readString(block, position) : get(index)[0];
+                    var value = readString(block, position);
+                    if (indexing)
+                        this.table.add(name, value);
+                    fields.add(new String[]{name, value});
+                }
+            }
+            return fields;
+        }
+
+        private String[] get(int index) throws WebserverHttp2.Http2Exception {
+            if (index <= 0)
+                throw error("invalid index");
+            if (index <= STATIC_TABLE.length)
+                return STATIC_TABLE[index - 1];
+            var field = this.table.get(index - STATIC_TABLE.length - 1);
+            if (field == null)
+                throw error("invalid index");
+            return field;
+        }
+
+        private static int readInt(byte[] block, int[] position, int prefix) throws WebserverHttp2.Http2Exception {
+            var max = (1 << prefix) - 1;
+            var value = block[position[0]++] & max;
+            if (value < max)
+                return value;
+
+            for (var shift = 0; shift <= 28; shift += 7) {
+                if (position[0] >= block.length)
+                    throw error("truncated integer");
+                var next = block[position[0]++] & 0xFF;
+                value += (next & 0x7F) << shift;
+                if (value < 0)
+                    break;
+                if ((next & 0x80) == 0)
+                    return value;
+            }
+            throw error("integer overflow");
+        }
+
+        private static String readString(byte[] block, int[] position) throws WebserverHttp2.Http2Exception {
+            if (position[0] >= block.length)
+                throw error("truncated string");
+            var huffman = (block[position[0]] & 0x80) != 0;
+            var length = readInt(block, position, 7);
+            if (length > block.length - position[0])
+                throw error("truncated string");
+
+            var start = position[0];
+            position[0] += length;
+            if (!huffman)
+                return new String(block, start, length, StandardCharsets.ISO_8859_1);
+            return huffmanDecode(block, start, length);
+        }
+
+        private static String huffmanDecode(byte[] block, int start, int length) throws WebserverHttp2.Http2Exception {
+            var decoded = new byte[length * 8 / 5 + 1];
+            var count = 0;
+            var node = 0;
+            var depth = 0;
+            var padding = true;
+            for (var i = start; i < start + length; i++) {
+                for (var bit = 7; bit >= 0; bit--) {
+                    var one = (block[i] >>> bit) & 1;
+                    var next = HUFFMAN_TREE[node * 2 + one];
+                    if (next == 0)
+                        throw error("invalid huffman code");
+                    padding &= one == 1;
+                    depth++;
+                    if (next < 0) {
+                        decoded[count++] = (byte) (-next - 1);
+                        node = 0;
+                        depth = 0;
+                        padding = true;
+                    } else {
+                        node = next;
+                    }
+                }
+            }
+            // only a prefix of EOS (at most 7 one bits) may remain
+            if (depth > 7 || !padding)
+                throw error("invalid huffman padding");
+            return new String(decoded, 0, count, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Encodes header blocks of one connection, blocks must be sent in the
+     * order they were encoded
+     */
+    static class Encoder {
+
+        private final Table table = new Table(4096);
+        private int pendingMaxSize = -1;
+
+        /**
+         * Applies SETTINGS_HEADER_TABLE_SIZE of the client
+         *
+         * @param maxSize maximum size of the dynamic table
+         */
+        void setMaxTableSize(int maxSize) {
+            this.pendingMaxSize = Math.min(maxSize, 4096);
+        }
+
+        /**
+         * Starts a header block, announcing a changed table size
+         *
+         * @param out header block
+         */
+        void begin(ByteArrayOutputStream out) {
+            if (this.pendingMaxSize != -1) {
+                this.table.setMaxSize(this.pendingMaxSize);
+                writeInt(out, 0x20, 5, this.pendingMaxSize);
+                this.pendingMaxSize = -1;
+            }
+        }
+
+        /**
+         * Encodes one header field
+         *
+         * @param out   header block
+         * @param name  lower case name
+         * @param value value
+         */
+        void encode(ByteArrayOutputStream out, String name, String value) {
+            var staticIndex = STATIC_FIELDS.get(name + '\0' + value);
+            if (staticIndex != null) {
+                writeInt(out, 0x80, 7, staticIndex);
+                return;
+            }
+            var dynamicIndex = this.table.indexOf(name, value);
+            if (dynamicIndex != -1) {
+                writeInt(out, 0x80, 7, STATIC_TABLE.length + dynamicIndex + 1);
+                return;
+            }
+
+            var nameIndex = STATIC_NAMES.get(name);
+            if (nameIndex == null) {
+                var dynamicName = this.table.indexOfName(name);
+                nameIndex = dynamicName == -1 ? 0 : STATIC_TABLE.length + dynamicName + 1;
+            }
+
+            // values changing with every response would only evict reusable entries
+            if (isIndexable(name, value)) {
+                writeInt(out, 0x40, 6, nameIndex);
+                this.table.add(name, value);
+            } else {
+                writeInt(out, 0x00, 4, nameIndex);
+            }
+            if (nameIndex == 0)
+                writeString(out, name);
+            writeString(out, value);
+        }
+
+        private boolean isIndexable(String name, String value) {
+            switch (name) {
+                case "content-length":
+                case "content-range":
+                case "etag":
+                case "last-modified":
+                case "date":
+                case "expires":
+                case "set-cookie":
+                case "location":
+                    return false;
+                default:
+                    // table sizes count octets, so only ASCII values are indexed
+                    for (var i = 0; i < value.length(); i++) {
+                        if (value.charAt(i) >= 0x80)
+                            return false;
+                    }
+                    return 32 + name.length() + value.length() <= this.table.maxSize / 2;
+            }
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int flags, int prefix, int value) {
+            var max = (1 << prefix) - 1;
+            if (value < max) {
+                out.write(flags | value);
+                return;
+            }
+            out.write(flags | max);
+            value -= max;
+            while (value >= 0x80) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String value) {
+            var bytes = value.getBytes(StandardCharsets.UTF_8);
+            var bits = 0L;
+            for (var b : bytes)
+                bits += HUFFMAN_LENGTHS[b & 0xFF];
+            var huffmanLength = (int) ((bits + 7) / 8);
+            if (huffmanLength >= bytes.length) {
+                writeInt(out, 0x00, 7, bytes.length);
+                out.write(bytes, 0, bytes.length);
+                return;
+            }
+
+            writeInt(out, 0x80, 7, huffmanLength);
+            var current = 0L;
+            var pending = 0;
+            for (var b : bytes) {
+                var symbol = b & 0xFF;
+                current = (current << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+                pending += HUFFMAN_LENGTHS[symbol];
+                while (pending >= 8) {
+                    pending -= 8;
+                    out.write((int) (current >>> pending));
+                }
+            }
+            // pad with the most significant bits of EOS
+            if (pending > 0)
+                out.write((int) ((current << (8 - pending)) | (0xFF >>> pending)));
+        }
+    }
+
+    private static class Table {
+
+        // newest entry last
+        private final List<String[]> entries = new ArrayList<>();
+        private int maxSize;
+        private int size;
+
+        private Table(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        private String[] get(int index) {
+            return index < this.entries.size() ? this.entries.get(this.entries.size() - 1 - index) : null;
+        }
+
+        private int indexOf(String name, String value) {
+            for (var i = this.entries.size() - 1; i >= 0; i--) {
+                var entry = this.entries.get(i);
+                if (entry[0].equals(name) && entry[1].equals(value))
+                    return this.entries.size() - 1 - i;
+            }
+            return -1;
+        }
+
+        private int indexOfName(String name) {
+            for (var i = this.entries.size() - 1; i >= 0; i--) {
+                if (this.entries.get(i)[0].equals(name))
+                    return this.entries.size() - 1 - i;
+            }
+            return -1;
+        }
+
+        private void add(String name, String value) {
+            var entrySize = 32 + name.length() + value.length();
+            if (entrySize > this.maxSize) {
+                this.entries.clear();
+                this.size = 0;
+                return;
+            }
+            this.size += entrySize;
+            this.entries.add(new String[]{name, value});
+            evict();
+        }
+
+        private void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict();
+        }
+
+        private void evict() {
+            while (this.size > this.maxSize) {
+                var eldest = this.entries.remove(0);
+                this.size -= 32 + eldest[0].length() + eldest[1].length();
+            }
+        }
+    }
+
+    private static WebserverHttp2.Http2Exception error(String message) {
+        return new WebserverHttp2.Http2Exception(WebserverHttp2.COMPRESSION_ERROR, message);
+    }
+}
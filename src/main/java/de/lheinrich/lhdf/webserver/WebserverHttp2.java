@@ -0,0 +1,943 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/**
+ * One HTTP/2 connection (RFC 7540). Frames are read by the connection's
+ * thread, every stream is answered on the executor and its DATA frames are
+ * sent as the flow control windows allow
+ */
+class WebserverHttp2 {
+
+    final static byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    final static byte[] PREFACE_REST = "SM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    final static int NO_ERROR = 0x0;
+    final static int PROTOCOL_ERROR = 0x1;
+    final static int INTERNAL_ERROR = 0x2;
+    final static int FLOW_CONTROL_ERROR = 0x3;
+    final static int STREAM_CLOSED = 0x5;
+    final static int FRAME_SIZE_ERROR = 0x6;
+    final static int REFUSED_STREAM = 0x7;
+    final static int COMPRESSION_ERROR = 0x9;
+    final static int ENHANCE_YOUR_CALM = 0xb;
+
+    private final static int DATA = 0x0;
+    private final static int HEADERS = 0x1;
+    private final static int PRIORITY = 0x2;
+    private final static int RST_STREAM = 0x3;
+    private final static int SETTINGS = 0x4;
+    private final static int PUSH_PROMISE = 0x5;
+    private final static int PING = 0x6;
+    private final static int GOAWAY = 0x7;
+    private final static int WINDOW_UPDATE = 0x8;
+    private final static int CONTINUATION = 0x9;
+
+    private final static int FLAG_END_STREAM = 0x1;
+    private final static int FLAG_ACK = 0x1;
+    private final static int FLAG_END_HEADERS = 0x4;
+    private final static int FLAG_PADDED = 0x8;
+    private final static int FLAG_PRIORITY = 0x20;
+
+    private final static int MAX_FRAME_SIZE = 16384;
+    private final static int MAX_CONCURRENT_STREAMS = 100;
+    private final static int MAX_RESETS = MAX_CONCURRENT_STREAMS * 2;
+    private final static int DEFAULT_WINDOW = 65535;
+    private final static int RECEIVE_WINDOW = 1024 * 1024;
+    private final static int STREAM_MEMORY = 64 * 1024;
+    private final static int CONNECTION_WINDOW = MAX_CONCURRENT_STREAMS * STREAM_MEMORY;
+    private final static int DRAIN_POLL = 500;
+    private final static List<String> CONNECTION_HEADERS = Arrays.asList("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+    private final Webserver webserver;
+    private final ExecutorService executor;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final ByteBuffer buffer;
+    private final String clientIp;
+    private final WebserverUploads uploads;
+    private final WebserverHpack.Decoder decoder = new WebserverHpack.Decoder(4096);
+    private final WebserverHpack.Encoder encoder = new WebserverHpack.Encoder();
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicInteger resets = new AtomicInteger();
+    private final Object writeLock = new Object();
+    private final Object windowLock = new Object();
+    private final byte[] frameHeader = new byte[9];
+    private int frameHeaderLength;
+    private int soTimeout = -1;
+    private long connectionWindow = DEFAULT_WINDOW;
+    private int initialWindow = DEFAULT_WINDOW;
+    private volatile int peerMaxFrameSize = MAX_FRAME_SIZE;
+    private int lastStreamId;
+    private ByteArrayOutputStream headerBlock;
+    private int headerStreamId;
+    private boolean headerEndStream;
+    private volatile boolean closed;
+    private boolean goingAway;
+
+    /**
+     * Creates an HTTP/2 connection on an established socket
+     *
+     * @param webserver web server the requests are dispatched to
+     * @param executor  executor streams are answered on
+     * @param socket    connection
+     * @param in        input of the socket
+     * @param out       buffered output of the socket
+     * @param buffer    bytes already read from the socket, in read mode
+     */
+    WebserverHttp2(Webserver webserver, ExecutorService executor, Socket socket, InputStream in, OutputStream out, ByteBuffer buffer) {
+        this.webserver = webserver;
+        this.executor = executor;
+        this.socket = socket;
+        this.in = new BufferedInputStream(in, MAX_FRAME_SIZE);
+        this.out = out;
+        this.buffer = buffer;
+        this.clientIp = socket.getInetAddress().getHostAddress();
+        this.uploads = webserver.getUploads();
+    }
+
+    /**
+     * Serves the connection until the client closes it or it is idle
+     *
+     * @param preface         client preface still expected on the connection
+     * @param upgradeRequest  request of an h2c upgrade, answered as stream 1 (none = null)
+     * @param upgradeSettings decoded HTTP2-Settings header of the upgrade (none = null)
+     * @throws IOException when reading or writing fails
+     */
+    void serve(byte[] preface, WebserverRequest upgradeRequest, byte[] upgradeSettings) throws IOException {
+        try {
+            setTimeout(this.webserver.getTimeout() * 1000);
+            var received = new byte[preface.length];
+            readFully(received, received.length);
+            if (!Arrays.equals(received, preface))
+                throw new Http2Exception(PROTOCOL_ERROR, "invalid connection preface");
+
+            sendSettings();
+            if (upgradeSettings != null)
+                applySettings(upgradeSettings);
+            if (upgradeRequest != null) {
+                var stream = new Stream(1);
+                this.lastStreamId = 1;
+                this.streams.put(1, stream);
+                this.open.incrementAndGet();
+                dispatch(stream, upgradeRequest);
+            }
+
+            while (readFrame()) {
+                // frames are handled as they are read
+            }
+            if (!this.goingAway)
+                goAway(NO_ERROR);
+        } catch (Http2Exception ex) {
+            goAway(ex.getError());
+        } finally {
+            this.closed = true;
+            synchronized (this.windowLock) {
+                this.windowLock.notifyAll();
+            }
+            for (var stream : this.streams.values()) {
+                stream.discard();
+                if (stream.connection != null)
+                    stream.connection.closed();
+            }
+        }
+    }
+
+    private boolean readFrame() throws IOException {
+        // idle connections time out once every stream is answered
+        while (this.frameHeaderLength < this.frameHeader.length) {
+            if (this.webserver.isDraining()) {
+                // clients open no further streams, the open ones are answered before the connection closes
+                if (!this.goingAway)
+                    goAway(NO_ERROR);
+                if (this.streams.isEmpty())
+                    return false;
+            }
+            setTimeout(this.goingAway ? DRAIN_POLL : idleTimeout());
+            try {
+                var read = read(this.frameHeader, this.frameHeaderLength, this.frameHeader.length - this.frameHeaderLength);
+                if (read == -1)
+                    return false;
+                this.frameHeaderLength += read;
+            } catch (SocketTimeoutException ex) {
+                if (this.streams.isEmpty())
+                    return false;
+            }
+        }
+        this.frameHeaderLength = 0;
+
+        var length = ((this.frameHeader[0] & 0xFF) << 16) | ((this.frameHeader[1] & 0xFF) << 8) | (this.frameHeader[2] & 0xFF);
+        var type = this.frameHeader[3] & 0xFF;
+        var flags = this.frameHeader[4] & 0xFF;
+        var streamId = readInt(this.frameHeader, 5) & 0x7FFFFFFF;
+        if (length > MAX_FRAME_SIZE)
+            throw new Http2Exception(FRAME_SIZE_ERROR, "frame too large");
+
+        setTimeout(this.webserver.getTimeout() * 1000);
+        var payload = new byte[length];
+        readFully(payload, length);
+
+        if (this.headerBlock != null && (type != CONTINUATION || streamId != this.headerStreamId))
+            throw new Http2Exception(PROTOCOL_ERROR, "expected CONTINUATION");
+
+        switch (type) {
+            case DATA:
+                onData(streamId, flags, payload);
+                break;
+            case HEADERS:
+                onHeaders(streamId, flags, payload);
+                break;
+            case PRIORITY:
+                break;
+            case RST_STREAM:
+                onReset(streamId, payload);
+                break;
+            case SETTINGS:
+                onSettings(streamId, flags, payload);
+                break;
+            case PUSH_PROMISE:
+                throw new Http2Exception(PROTOCOL_ERROR, "clients cannot push");
+            case PING:
+                if (length != 8)
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "invalid PING");
+                if ((flags & FLAG_ACK) == 0)
+                    sendFrame(PING, FLAG_ACK, 0, payload);
+                break;
+            case GOAWAY:
+                // the client opens no further streams and closes the connection when it is done
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, payload);
+                break;
+            case CONTINUATION:
+                if (this.headerBlock == null)
+                    throw new Http2Exception(PROTOCOL_ERROR, "unexpected CONTINUATION");
+                this.headerBlock.write(payload, 0, payload.length);
+                if (this.headerBlock.size() > Webserver.MAX_HEAD_SIZE * 2)
+                    throw new Http2Exception(ENHANCE_YOUR_CALM, "header block too large");
+                if ((flags & FLAG_END_HEADERS) != 0)
+                    onHeaderBlock();
+                break;
+            default:
+                // unknown frame types are ignored
+                break;
+        }
+        return true;
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0 || streamId % 2 == 0)
+            throw new Http2Exception(PROTOCOL_ERROR, "invalid stream id");
+
+        var offset = 0;
+        var end = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (payload.length == 0)
+                throw new Http2Exception(PROTOCOL_ERROR, "invalid padding");
+            offset = 1;
+            end -= payload[0] & 0xFF;
+        }
+        if ((flags & FLAG_PRIORITY) != 0)
+            offset += 5;
+        if (offset > end)
+            throw new Http2Exception(PROTOCOL_ERROR, "invalid padding");
+
+        this.headerBlock = new ByteArrayOutputStream(Math.max(end - offset, 64));
+        this.headerBlock.write(payload, offset, end - offset);
+        this.headerStreamId = streamId;
+        this.headerEndStream = (flags & FLAG_END_STREAM) != 0;
+        if ((flags & FLAG_END_HEADERS) != 0)
+            onHeaderBlock();
+    }
+
+    private void onHeaderBlock() throws IOException {
+        var block = this.headerBlock.toByteArray();
+        this.headerBlock = null;
+        // decoded even if the stream is refused, the table state is shared by all streams
+        var fields = this.decoder.decode(block);
+
+        var stream = this.streams.get(this.headerStreamId);
+        if (stream != null) {
+            // trailers, ignored
+            if (stream.remoteClosed || !this.headerEndStream)
+                throw new Http2Exception(PROTOCOL_ERROR, "unexpected HEADERS");
+            complete(stream);
+            return;
+        }
+        if (this.headerStreamId <= this.lastStreamId)
+            throw new Http2Exception(STREAM_CLOSED, "stream already closed");
+        this.lastStreamId = this.headerStreamId;
+
+        // streams reset by the client count until their handler returns, so resetting does not free a slot
+        if (this.goingAway || this.open.get() >= MAX_CONCURRENT_STREAMS) {
+            sendReset(this.headerStreamId, REFUSED_STREAM);
+            return;
+        }
+
+        stream = new Stream(this.headerStreamId);
+        if (!stream.setHeaders(fields)) {
+            sendReset(stream.id, PROTOCOL_ERROR);
+            return;
+        }
+        this.streams.put(stream.id, stream);
+        this.open.incrementAndGet();
+        if (stream.headSize > Webserver.MAX_HEAD_SIZE) {
+            reject(stream, 431);
+            return;
+        }
+        if (this.headerEndStream)
+            complete(stream);
+    }
+
+    private void onData(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0)
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+
+        var offset = 0;
+        var end = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (payload.length == 0 || (payload[0] & 0xFF) >= payload.length)
+                throw new Http2Exception(PROTOCOL_ERROR, "invalid padding");
+            offset = 1;
+            end -= payload[0] & 0xFF;
+        }
+        var endStream = (flags & FLAG_END_STREAM) != 0;
+
+        var stream = this.streams.get(streamId);
+        if (stream == null || stream.remoteClosed) {
+            if (streamId > this.lastStreamId)
+                throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream");
+            synchronized (this.writeLock) {
+                if (payload.length > 0)
+                    writeWindowUpdate(0, payload.length);
+                writeFrame(RST_STREAM, 0, streamId, intBytes(STREAM_CLOSED), 0, 4);
+                this.out.flush();
+            }
+            return;
+        }
+
+        stream.pending += payload.length;
+        if (!stream.append(payload, offset, end - offset)) {
+            reject(stream, 413);
+            return;
+        }
+        // bytes spooled to a temp file leave memory, the windows open again at once. Bytes held in
+        // memory are returned once the handler is done with the request
+        if (stream.body.isSpooled())
+            replenish(stream, !endStream);
+        if (endStream)
+            complete(stream);
+    }
+
+    private void onReset(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4)
+            throw new Http2Exception(FRAME_SIZE_ERROR, "invalid RST_STREAM");
+        if (streamId == 0)
+            throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+
+        var stream = this.streams.remove(streamId);
+        if (stream != null) {
+            stream.discard();
+            stream.reset = true;
+            if (!stream.dispatched)
+                release(stream);
+            synchronized (this.windowLock) {
+                this.windowLock.notifyAll();
+            }
+            if (stream.connection != null)
+                stream.connection.closed();
+            // rapid reset: every stream opened and cancelled at once costs handler work
+            if (this.resets.incrementAndGet() > MAX_RESETS)
+                throw new Http2Exception(ENHANCE_YOUR_CALM, "too many streams reset");
+        }
+    }
+
+    private void onSettings(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId != 0)
+            throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on a stream");
+        if ((flags & FLAG_ACK) != 0) {
+            if (payload.length != 0)
+                throw new Http2Exception(FRAME_SIZE_ERROR, "invalid SETTINGS ACK");
+            return;
+        }
+        if (payload.length % 6 != 0)
+            throw new Http2Exception(FRAME_SIZE_ERROR, "invalid SETTINGS");
+
+        applySettings(payload);
+        sendFrame(SETTINGS, FLAG_ACK, 0, new byte[0]);
+    }
+
+    private void applySettings(byte[] payload) throws IOException {
+        for (var i = 0; i + 6 <= payload.length; i += 6) {
+            var id = ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+            var value = readInt(payload, i + 2);
+            switch (id) {
+                case 0x1:
+                    synchronized (this.writeLock) {
+                        this.encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    }
+                    break;
+                case 0x2:
+                    if (value != 0 && value != 1)
+                        throw new Http2Exception(PROTOCOL_ERROR, "invalid SETTINGS_ENABLE_PUSH");
+                    break;
+                case 0x4:
+                    if (value < 0)
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, "invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    synchronized (this.windowLock) {
+                        var delta = value - this.initialWindow;
+                        this.initialWindow = value;
+                        for (var stream : this.streams.values())
+                            stream.window += delta;
+                        this.windowLock.notifyAll();
+                    }
+                    break;
+                case 0x5:
+                    if (value < MAX_FRAME_SIZE || value > 0xFFFFFF)
+                        throw new Http2Exception(PROTOCOL_ERROR, "invalid SETTINGS_MAX_FRAME_SIZE");
+                    this.peerMaxFrameSize = value;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void onWindowUpdate(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4)
+            throw new Http2Exception(FRAME_SIZE_ERROR, "invalid WINDOW_UPDATE");
+        var increment = readInt(payload, 0) & 0x7FFFFFFF;
+
+        if (streamId == 0) {
+            if (increment == 0)
+                throw new Http2Exception(PROTOCOL_ERROR, "zero WINDOW_UPDATE");
+            synchronized (this.windowLock) {
+                this.connectionWindow += increment;
+                if (this.connectionWindow > Integer.MAX_VALUE)
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, "window too large");
+                this.windowLock.notifyAll();
+            }
+            return;
+        }
+
+        var stream = this.streams.get(streamId);
+        if (stream == null)
+            return;
+        var overflow = false;
+        synchronized (this.windowLock) {
+            stream.window += increment;
+            overflow = increment == 0 || stream.window > Integer.MAX_VALUE;
+            this.windowLock.notifyAll();
+        }
+        if (overflow)
+            reset(stream, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+    }
+
+    private void dispatch(Stream stream, WebserverRequest request) {
+        stream.remoteClosed = true;
+        stream.dispatched = true;
+        request.setClientIp(this.clientIp);
+        try {
+            this.executor.execute(() -> respond(stream, request));
+        } catch (RejectedExecutionException ex) {
+            this.streams.remove(stream.id);
+            release(stream);
+            try {
+                sendReset(stream.id, REFUSED_STREAM);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void respond(Stream stream, WebserverRequest request) {
+        // an AsyncWebserverHandler releases this worker, the stream is finished by the worker completing its stage
+        var response = new WebserverResponse(stream.output, request, true, null, this.webserver.getCompression());
+        this.webserver.dispatchAsync(request, response).whenComplete((dispatched, failure) -> finish(stream, response, failure == null ? dispatched : null));
+    }
+
+    private void finish(Stream stream, WebserverResponse response, Boolean dispatched) {
+        try {
+            if (dispatched == null) {
+                // writing the response failed
+                if (!this.closed && !stream.reset)
+                    reset(stream, INTERNAL_ERROR);
+            } else if (!dispatched) {
+                reset(stream, INTERNAL_ERROR);
+            } else if (response.getConnection() != null) {
+                // an event stream, the stream ends when it is closed
+                stream.connection = response.getConnection();
+                if (stream.connection.attach(this.webserver.getConnectionExecutor(), () -> end(stream)) && !stream.reset && !this.closed)
+                    return;
+                end(stream);
+            } else {
+                stream.output.close();
+            }
+        } catch (IOException ex) {
+            if (!this.closed && !stream.reset)
+                reset(stream, INTERNAL_ERROR);
+        }
+        this.streams.remove(stream.id);
+        if (!stream.reset)
+            this.resets.updateAndGet(count -> count > 0 ? count - 1 : 0);
+        release(stream);
+    }
+
+    private void end(Stream stream) {
+        this.streams.remove(stream.id);
+        try {
+            stream.output.close();
+        } catch (IOException ignore) {
+        }
+        stream.connection.closed();
+        release(stream);
+    }
+
+    private void release(Stream stream) {
+        // once per stream, when its handler returned or it ended before being dispatched
+        if (!stream.released.compareAndSet(false, true))
+            return;
+        this.open.decrementAndGet();
+        try {
+            replenish(stream, false);
+        } catch (IOException ignore) {
+        }
+    }
+
+    private void replenish(Stream stream, boolean streamWindow) throws IOException {
+        var count = stream.pending;
+        stream.pending = 0;
+        if (count == 0 || this.closed)
+            return;
+        synchronized (this.writeLock) {
+            writeWindowUpdate(0, count);
+            if (streamWindow)
+                writeWindowUpdate(stream.id, count);
+            this.out.flush();
+        }
+    }
+
+    private void complete(Stream stream) throws IOException {
+        WebserverRequest request;
+        try {
+            request = stream.toRequest();
+        } catch (IOException ex) {
+            reject(stream, 507);
+            return;
+        }
+        dispatch(stream, request);
+    }
+
+    private void reject(Stream stream, int status) throws IOException {
+        stream.discard();
+        this.streams.remove(stream.id);
+        stream.remoteClosed = true;
+        release(stream);
+        writeHeaders(stream, status, new ArrayList<>(), true);
+        // the response is complete, the rest of the request is not needed
+        sendReset(stream.id, NO_ERROR);
+    }
+
+    private void reset(Stream stream, int error) {
+        stream.reset = true;
+        this.streams.remove(stream.id);
+        if (!stream.dispatched)
+            release(stream);
+        synchronized (this.windowLock) {
+            this.windowLock.notifyAll();
+        }
+        try {
+            sendReset(stream.id, error);
+        } catch (IOException ignore) {
+        }
+    }
+
+    private void writeHeaders(Stream stream, int status, List<String[]> fields, boolean endStream) throws IOException {
+        synchronized (this.writeLock) {
+            checkOpen(stream);
+
+            // encoded while holding the lock, header blocks must reach the client in the order they change the table
+            var block = new ByteArrayOutputStream(256);
+            this.encoder.begin(block);
+            this.encoder.encode(block, ":status", Integer.toString(status));
+            for (var field : fields) {
+                var name = field[0].toLowerCase();
+                if (!CONNECTION_HEADERS.contains(name))
+                    this.encoder.encode(block, name, field[1]);
+            }
+
+            var bytes = block.toByteArray();
+            var offset = 0;
+            var type = HEADERS;
+            do {
+                var count = Math.min(bytes.length - offset, this.peerMaxFrameSize);
+                var last = offset + count == bytes.length;
+                var flags = (last ? FLAG_END_HEADERS : 0) | (type == HEADERS && endStream ? FLAG_END_STREAM : 0);
+                writeFrame(type, flags, stream.id, bytes, offset, count);
+                offset += count;
+                type = CONTINUATION;
+            } while (offset < bytes.length);
+            if (endStream)
+                this.out.flush();
+        }
+    }
+
+    private void writeData(Stream stream, byte[] bytes, int length, boolean endStream) throws IOException {
+        var offset = 0;
+        do {
+            var count = offset == length ? 0 : acquireWindow(stream, Math.min(length - offset, this.peerMaxFrameSize));
+            var last = endStream && offset + count == length;
+            synchronized (this.writeLock) {
+                checkOpen(stream);
+                writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.id, bytes, offset, count);
+                if (last)
+                    this.out.flush();
+            }
+            offset += count;
+        } while (offset < length);
+    }
+
+    private int acquireWindow(Stream stream, int wanted) throws IOException {
+        synchronized (this.windowLock) {
+            while (!this.closed && !stream.reset && (this.connectionWindow <= 0 || stream.window <= 0)) {
+                try {
+                    this.windowLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted");
+                }
+            }
+            checkOpen(stream);
+            var count = (int) Math.min(wanted, Math.min(this.connectionWindow, stream.window));
+            this.connectionWindow -= count;
+            stream.window -= count;
+            return count;
+        }
+    }
+
+    private void checkOpen(Stream stream) throws IOException {
+        if (this.closed)
+            throw new IOException("connection closed");
+        if (stream.reset)
+            throw new IOException("stream reset");
+    }
+
+    private void sendSettings() throws IOException {
+        var settings = new byte[18];
+        writeSetting(settings, 0, 0x3, MAX_CONCURRENT_STREAMS);
+        writeSetting(settings, 6, 0x4, RECEIVE_WINDOW);
+        writeSetting(settings, 12, 0x6, Webserver.MAX_HEAD_SIZE);
+        synchronized (this.writeLock) {
+            writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+            writeWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+            this.out.flush();
+        }
+    }
+
+    private void sendReset(int streamId, int error) throws IOException {
+        sendFrame(RST_STREAM, 0, streamId, intBytes(error));
+    }
+
+    private void goAway(int error) {
+        this.goingAway = true;
+        var payload = new byte[8];
+        System.arraycopy(intBytes(this.lastStreamId), 0, payload, 0, 4);
+        System.arraycopy(intBytes(error), 0, payload, 4, 4);
+        try {
+            sendFrame(GOAWAY, 0, 0, payload);
+        } catch (IOException ignore) {
+        }
+    }
+
+    private void sendFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        synchronized (this.writeLock) {
+            writeFrame(type, flags, streamId, payload, 0, payload.length);
+            this.out.flush();
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        writeFrame(WINDOW_UPDATE, 0, streamId, intBytes(increment), 0, 4);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+        var header = new byte[9];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        System.arraycopy(intBytes(streamId), 0, header, 5, 4);
+        this.out.write(header);
+        this.out.write(payload, offset, length);
+    }
+
+    private void setTimeout(int timeout) throws IOException {
+        if (timeout != this.soTimeout) {
+            this.socket.setSoTimeout(timeout);
+            this.soTimeout = timeout;
+        }
+    }
+
+    private int idleTimeout() {
+        var keepAliveTimeout = this.webserver.getKeepAliveTimeout();
+        return (keepAliveTimeout > 0 ? keepAliveTimeout : this.webserver.getTimeout()) * 1000;
+    }
+
+    private int read(byte[] bytes, int offset, int length) throws IOException {
+        if (this.buffer.hasRemaining()) {
+            var count = Math.min(length, this.buffer.remaining());
+            this.buffer.get(bytes, offset, count);
+            return count;
+        }
+        return this.in.read(bytes, offset, length);
+    }
+
+    private void readFully(byte[] bytes, int length) throws IOException {
+        var offset = 0;
+        while (offset < length) {
+            var read = read(bytes, offset, length - offset);
+            if (read == -1)
+                throw new EOFException("connection closed");
+            offset += read;
+        }
+    }
+
+    private static void writeSetting(byte[] bytes, int offset, int id, int value) {
+        bytes[offset] = (byte) (id >>> 8);
+        bytes[offset + 1] = (byte) id;
+        System.arraycopy(intBytes(value), 0, bytes, offset + 2, 4);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private class Stream {
+
+        private final int id;
+        private final StreamOutput output = new StreamOutput();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile WebserverConnection connection;
+        private volatile boolean dispatched;
+        private int pending;
+        private long window;
+        private volatile boolean reset;
+        private boolean remoteClosed;
+        private String method;
+        private String path;
+        private final List<String> names = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+        private int headSize;
+        private WebserverSpool body;
+
+        private Stream(int id) {
+            this.id = id;
+            synchronized (windowLock) {
+                this.window = initialWindow;
+            }
+        }
+
+        private boolean setHeaders(List<String[]> fields) {
+            var regular = false;
+            String authority = null;
+            StringBuilder cookie = null;
+            for (var field : fields) {
+                var name = field[0];
+                var value = field[1];
+                this.headSize += 32 + name.length() + value.length();
+
+                if (name.startsWith(":")) {
+                    if (regular)
+                        return false;
+                    if (name.equals(":method"))
+                        this.method = value;
+                    else if (name.equals(":path"))
+                        this.path = value;
+                    else if (name.equals(":authority"))
+                        authority = value;
+                    else if (!name.equals(":scheme"))
+                        return false;
+                    continue;
+                }
+
+                regular = true;
+                if (!name.equals(name.toLowerCase()) || CONNECTION_HEADERS.contains(name) || name.equals("te") && !value.equals("trailers"))
+                    return false;
+                if (name.equals("cookie")) {
+                    // cookies may be split into several fields
+                    cookie = cookie == null ? new StringBuilder(value) : cookie.append("; ").append(value);
+                    continue;
+                }
+                this.names.add(name);
+                this.values.add(value);
+            }
+
+            if (this.method == null || this.path == null || this.path.isEmpty())
+                return false;
+            if (cookie != null) {
+                this.names.add("cookie");
+                this.values.add(cookie.toString());
+            }
+            if (authority != null && !this.names.contains("host")) {
+                this.names.add("host");
+                this.values.add(authority);
+            }
+            return true;
+        }
+
+        private boolean append(byte[] bytes, int offset, int length) {
+            // at most STREAM_MEMORY per stream stays in memory, all streams together fit the connection window
+            if (this.body == null)
+                this.body = uploads.newSpool(0, STREAM_MEMORY);
+            if (this.body.size() + length > uploads.getMaxBodySize())
+                return false;
+            try {
+                this.body.write(bytes, offset, length);
+                return true;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+
+        private WebserverRequest toRequest() throws IOException {
+            var content = new byte[0];
+            if (this.body != null) {
+                this.body.close();
+                if (!this.body.isSpooled())
+                    content = this.body.toBytes();
+            }
+            var request = new WebserverRequest(this.method, this.path, "HTTP/2.0", this.names.toArray(new String[0]), this.values.toArray(new String[0]), this.names.size(), content);
+            request.setBody(this.body != null && this.body.isSpooled() ? this.body : null, uploads);
+            // the request owns the temp file now
+            this.body = null;
+            return request;
+        }
+
+        private void discard() {
+            if (this.body != null) {
+                this.body.delete();
+                this.body = null;
+            }
+        }
+
+        private class StreamOutput extends OutputStream implements WebserverHeadOutput {
+
+            private final byte[] data = new byte[MAX_FRAME_SIZE];
+            private int length;
+            private boolean ended;
+
+            @Override
+            public void writeHead(int status, List<String[]> fields) throws IOException {
+                writeHeaders(Stream.this, status, fields, false);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int count) throws IOException {
+                while (count > 0) {
+                    var copy = Math.min(count, this.data.length - this.length);
+                    System.arraycopy(bytes, offset, this.data, this.length, copy);
+                    this.length += copy;
+                    offset += copy;
+                    count -= copy;
+                    if (this.length == this.data.length) {
+                        writeData(Stream.this, this.data, this.length, false);
+                        this.length = 0;
+                    }
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (this.length > 0) {
+                    writeData(Stream.this, this.data, this.length, false);
+                    this.length = 0;
+                }
+                synchronized (writeLock) {
+                    out.flush();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (this.ended)
+                    return;
+                this.ended = true;
+                writeData(Stream.this, this.data, this.length, true);
+                this.length = 0;
+            }
+        }
+    }
+
+    static class Http2Exception extends IOException {
+
+        private final static long serialVersionUID = 1L;
+
+        private final int error;
+
+        /**
+         * Creates a connection error, answered with GOAWAY
+         *
+         * @param error   HTTP/2 error code
+         * @param message reason
+         */
+        Http2Exception(int error, String message) {
+            super(message);
+            this.error = error;
+        }
+
+        int getError() {
+            return this.error;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package de.lheinrich.lhdf.webserver;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class WebserverKeyManager extends X509ExtendedKeyManager {
+
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    /**
+     * Creates a key manager whose certificates can be replaced at runtime
+     *
+     * @param keyStore    key store for the ssl certificate
+     * @param keyPassword password of the private key
+     * @throws GeneralSecurityException when the key cannot be recovered
+     */
+    WebserverKeyManager(KeyStore keyStore, char[] keyPassword) throws GeneralSecurityException {
+        reload(keyStore, keyPassword);
+    }
+
+    /**
+     * Replaces the certificates used for new handshakes, handshakes already
+     * running finish with the previous ones
+     *
+     * @param keyStore    key store for the ssl certificate
+     * @param keyPassword password of the private key
+     * @throws GeneralSecurityException when the key cannot be recovered
+     */
+    synchronized void reload(KeyStore keyStore, char[] keyPassword) throws GeneralSecurityException {
+        var keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
+        keyManagerFactory.init(keyStore, keyPassword);
+
+        X509ExtendedKeyManager keyManager = null;
+        for (var candidate : keyManagerFactory.getKeyManagers()) {
+            if (candidate instanceof X509ExtendedKeyManager)
+                keyManager = (X509ExtendedKeyManager) candidate;
+        }
+        if (keyManager == null)
+            throw new KeyStoreException("no X.509 key manager available");
+
+        this.previous = this.current;
+        this.current = new Generation(this.current == null ? 0 : this.current.id + 1, keyManager);
+    }
+
+    @Override
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+        return null;
+    }
+
+    @Override
+    public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+        return null;
+    }
+
+    @Override
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+        var generation = this.current;
+        var aliases = generation.keyManager.getServerAliases(keyType, issuers);
+        if (aliases == null)
+            return null;
+        for (var i = 0; i < aliases.length; i++)
+            aliases[i] = generation.tag(aliases[i]);
+        return aliases;
+    }
+
+    @Override
+    public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+        var generation = this.current;
+        return generation.tag(generation.keyManager.chooseServerAlias(keyType, issuers, socket));
+    }
+
+    @Override
+    public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+        var generation = this.current;
+        return generation.tag(generation.keyManager.chooseEngineServerAlias(keyType, issuers, engine));
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain(String alias) {
+        var generation = find(alias);
+        return generation == null ? null : generation.keyManager.getCertificateChain(untag(alias));
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(String alias) {
+        var generation = find(alias);
+        return generation == null ? null : generation.keyManager.getPrivateKey(untag(alias));
+    }
+
+    private Generation find(String alias) {
+        // aliases carry the generation they were chosen from, so a reload during a handshake cannot mix certificates and keys
+        var separator = alias == null ? -1 : alias.indexOf(':');
+        if (separator == -1)
+            return null;
+        var id = alias.substring(0, separator);
+        for (var generation : new Generation[]{this.current, this.previous}) {
+            if (generation != null && Integer.toString(generation.id).equals(id))
+                return generation;
+        }
+        return null;
+    }
+
+    private static String untag(String alias) {
+        return alias.substring(alias.indexOf(':') + 1);
+    }
+
+    private static class Generation {
+
+        private final int id;
+        private final X509ExtendedKeyManager keyManager;
+
+        private Generation(int id, X509ExtendedKeyManager keyManager) {
+            this.id = id;
+            this.keyManager = keyManager;
+        }
+
+        private String tag(String alias) {
+            return alias == null ? null : this.id + ":" + alias;
+        }
+    }
+}
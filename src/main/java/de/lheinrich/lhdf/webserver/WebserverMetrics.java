@@ -0,0 +1,108 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.util.function.LongSupplier;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public interface WebserverMetrics {
+
+    /**
+     * Records nothing, used while no metrics are set
+     */
+    WebserverMetrics NONE = new WebserverMetrics() {
+    };
+
+    /**
+     * Called for every answered request, also for event streams and
+     * WebSockets once their head is sent
+     *
+     * @param route  pattern of the matched route, the handler name or "not found"
+     * @param method request method
+     * @param status response status
+     * @param nanos  time from routing until the response was finished
+     */
+    default void request(String route, String method, int status, long nanos) {
+    }
+
+    /**
+     * Called when a connection was accepted (after the TLS handshake)
+     */
+    default void connectionOpened() {
+    }
+
+    /**
+     * Called when a connection was closed
+     */
+    default void connectionClosed() {
+    }
+
+    /**
+     * Called with the duration of every successful TLS handshake
+     *
+     * @param nanos handshake duration
+     */
+    default void handshake(long nanos) {
+    }
+
+    /**
+     * Called for bytes read from clients
+     *
+     * @param bytes number of bytes
+     */
+    default void bytesReceived(long bytes) {
+    }
+
+    /**
+     * Called for bytes written to clients
+     *
+     * @param bytes number of bytes
+     */
+    default void bytesSent(long bytes) {
+    }
+
+    /**
+     * Called for every GET or HEAD request answered by a WebserverCache
+     *
+     * @param route pattern of the matched route or the handler name
+     * @param hit   whether the response came from the cache
+     */
+    default void cache(String route, boolean hit) {
+    }
+
+    /**
+     * Called for failures that do not reach a handler
+     *
+     * @param type socket, timeout, io, accept, handshake, handler or overload (rejected by admission limits)
+     */
+    default void error(String type) {
+    }
+
+    /**
+     * Called once when set, for values sampled from the server
+     *
+     * @param name  gauge name, for example executor_queue_depth
+     * @param value current value
+     */
+    default void gauge(String name, LongSupplier value) {
+    }
+}
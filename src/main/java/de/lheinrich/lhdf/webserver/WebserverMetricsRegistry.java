@@ -0,0 +1,274 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public class WebserverMetricsRegistry implements WebserverMetrics {
+
+    private final static double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<String, Map<String, RouteMetrics>> routes = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder[]> cache = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final WebserverHistogram handshakes = new WebserverHistogram();
+
+    @Override
+    public void request(String route, String method, int status, long nanos) {
+        var methods = this.routes.get(route);
+        if (methods == null)
+            methods = this.routes.computeIfAbsent(route, key -> new ConcurrentHashMap<>());
+        var metrics = methods.get(method);
+        if (metrics == null)
+            metrics = methods.computeIfAbsent(method, key -> new RouteMetrics());
+
+        metrics.statuses[Math.min(Math.max(status / 100, 1), 5) - 1].increment();
+        metrics.latency.record(nanos);
+    }
+
+    @Override
+    public void connectionOpened() {
+        this.connections.increment();
+        this.activeConnections.increment();
+    }
+
+    @Override
+    public void connectionClosed() {
+        this.activeConnections.decrement();
+    }
+
+    @Override
+    public void handshake(long nanos) {
+        this.handshakes.record(nanos);
+    }
+
+    @Override
+    public void bytesReceived(long bytes) {
+        this.bytesReceived.add(bytes);
+    }
+
+    @Override
+    public void bytesSent(long bytes) {
+        this.bytesSent.add(bytes);
+    }
+
+    @Override
+    public void cache(String route, boolean hit) {
+        var counters = this.cache.get(route);
+        if (counters == null)
+            counters = this.cache.computeIfAbsent(route, key -> new LongAdder[]{new LongAdder(), new LongAdder()});
+        counters[hit ? 0 : 1].increment();
+    }
+
+    @Override
+    public void error(String type) {
+        this.errors.computeIfAbsent(type, key -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void gauge(String name, LongSupplier value) {
+        this.gauges.put(name, value);
+    }
+
+    /**
+     * Get the number of requests answered for a route
+     *
+     * @param route  pattern of the route, the handler name or "not found"
+     * @param method request method
+     * @return number of requests
+     */
+    public long getRequests(String route, String method) {
+        var latency = getLatency(route, method);
+        return latency == null ? 0 : latency.getCount();
+    }
+
+    /**
+     * Get the latency histogram of a route in nanoseconds
+     *
+     * @param route  pattern of the route, the handler name or "not found"
+     * @param method request method
+     * @return histogram, null if no request was answered yet
+     */
+    public WebserverHistogram getLatency(String route, String method) {
+        var methods = this.routes.get(route);
+        var metrics = methods == null ? null : methods.get(method);
+        return metrics == null ? null : metrics.latency;
+    }
+
+    /**
+     * Get the TLS handshake duration histogram in nanoseconds
+     *
+     * @return histogram
+     */
+    public WebserverHistogram getHandshakes() {
+        return this.handshakes;
+    }
+
+    /**
+     * Get the number of open connections
+     *
+     * @return active connections
+     */
+    public long getActiveConnections() {
+        return this.activeConnections.sum();
+    }
+
+    /**
+     * Get the number of bytes read from clients
+     *
+     * @return bytes received
+     */
+    public long getBytesReceived() {
+        return this.bytesReceived.sum();
+    }
+
+    /**
+     * Get the number of bytes written to clients
+     *
+     * @return bytes sent
+     */
+    public long getBytesSent() {
+        return this.bytesSent.sum();
+    }
+
+    /**
+     * Get the number of requests of a route answered from a WebserverCache
+     *
+     * @param route pattern of the route or the handler name
+     * @return cache hits
+     */
+    public long getCacheHits(String route) {
+        var counters = this.cache.get(route);
+        return counters == null ? 0 : counters[0].sum();
+    }
+
+    /**
+     * Get the number of requests of a route a WebserverCache computed
+     *
+     * @param route pattern of the route or the handler name
+     * @return cache misses
+     */
+    public long getCacheMisses(String route) {
+        var counters = this.cache.get(route);
+        return counters == null ? 0 : counters[1].sum();
+    }
+
+    /**
+     * Get the number of errors of a type
+     *
+     * @param type socket, timeout, io, accept, handshake, handler or overload
+     * @return number of errors
+     */
+    public long getErrors(String type) {
+        var errors = this.errors.get(type);
+        return errors == null ? 0 : errors.sum();
+    }
+
+    /**
+     * Formats all metrics in the Prometheus text format
+     *
+     * @return metrics text
+     */
+    public String format() {
+        var builder = new StringBuilder(4096);
+        builder.append("# TYPE lhdf_requests_total counter\n");
+        var sorted = new TreeMap<String, Map<String, RouteMetrics>>(this.routes);
+        sorted.forEach((route, methods) -> new TreeMap<>(methods).forEach((method, metrics) -> {
+            for (var i = 0; i < metrics.statuses.length; i++) {
+                var count = metrics.statuses[i].sum();
+                if (count > 0)
+                    builder.append("lhdf_requests_total{route=\"").append(escape(route)).append("\",method=\"").append(escape(method)).append("\",status=\"").append(i + 1).append("xx\"} ").append(count).append('\n');
+            }
+        }));
+
+        builder.append("# TYPE lhdf_request_duration_seconds summary\n");
+        sorted.forEach((route, methods) -> new TreeMap<>(methods).forEach((method, metrics) ->
+                summary(builder, "lhdf_request_duration_seconds", "route=\"" + escape(route) + "\",method=\"" + escape(method) + "\"", metrics.latency)));
+
+        builder.append("# TYPE lhdf_tls_handshake_duration_seconds summary\n");
+        summary(builder, "lhdf_tls_handshake_duration_seconds", "", this.handshakes);
+
+        builder.append("# TYPE lhdf_connections_total counter\nlhdf_connections_total ").append(this.connections.sum()).append('\n');
+        builder.append("# TYPE lhdf_connections_active gauge\nlhdf_connections_active ").append(this.activeConnections.sum()).append('\n');
+        builder.append("# TYPE lhdf_received_bytes_total counter\nlhdf_received_bytes_total ").append(this.bytesReceived.sum()).append('\n');
+        builder.append("# TYPE lhdf_sent_bytes_total counter\nlhdf_sent_bytes_total ").append(this.bytesSent.sum()).append('\n');
+
+        builder.append("# TYPE lhdf_cache_requests_total counter\n");
+        new TreeMap<>(this.cache).forEach((route, counters) -> {
+            builder.append("lhdf_cache_requests_total{route=\"").append(escape(route)).append("\",result=\"hit\"} ").append(counters[0].sum()).append('\n');
+            builder.append("lhdf_cache_requests_total{route=\"").append(escape(route)).append("\",result=\"miss\"} ").append(counters[1].sum()).append('\n');
+        });
+
+        builder.append("# TYPE lhdf_errors_total counter\n");
+        new TreeMap<>(this.errors).forEach((type, count) -> builder.append("lhdf_errors_total{type=\"").append(escape(type)).append("\"} ").append(count.sum()).append('\n'));
+
+        new TreeMap<>(this.gauges).forEach((name, value) -> builder.append("# TYPE lhdf_").append(name).append(" gauge\nlhdf_").append(name).append(' ').append(value.getAsLong()).append('\n'));
+        return builder.toString();
+    }
+
+    /**
+     * Creates a handler answering with the metrics in the Prometheus text
+     * format, register it with Webserver.registerRoute
+     *
+     * @return metrics handler
+     */
+    public StreamingWebserverHandler createHandler() {
+        return new StreamingWebserverHandler() {
+            @Override
+            public void handle(WebserverRequest request, WebserverResponse response) throws IOException {
+                response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+                response.setHeader("Cache-Control", "no-store");
+                response.send(format());
+            }
+        };
+    }
+
+    private static void summary(StringBuilder builder, String name, String labels, WebserverHistogram histogram) {
+        var separator = labels.isEmpty() ? "" : ",";
+        for (var quantile : QUANTILES)
+            builder.append(name).append("{").append(labels).append(separator).append("quantile=\"").append(quantile).append("\"} ").append(histogram.getValueAtPercentile(quantile * 100) / 1e9).append('\n');
+        var braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        builder.append(name).append("_sum").append(braces).append(' ').append(histogram.getSum() / 1e9).append('\n');
+        builder.append(name).append("_count").append(braces).append(' ').append(histogram.getCount()).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static class RouteMetrics {
+
+        private final LongAdder[] statuses = {new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder()};
+        private final WebserverHistogram latency = new WebserverHistogram();
+    }
+}
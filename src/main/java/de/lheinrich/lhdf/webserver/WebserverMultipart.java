@@ -0,0 +1,239 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class WebserverMultipart {
+
+    private final static int MAX_PARTS = 1000;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final WebserverUploads uploads;
+    private final byte[] buffer = new byte[64 * 1024];
+    private int position;
+    private int limit;
+
+    private WebserverMultipart(InputStream in, String boundary, WebserverUploads uploads) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.uploads = uploads;
+        // the first delimiter is not preceded by a line break
+        this.buffer[0] = '\r';
+        this.buffer[1] = '\n';
+        this.limit = 2;
+    }
+
+    /**
+     * Parses a multipart/form-data body while reading it, each part is
+     * spooled to a temp file above the upload threshold
+     *
+     * @param in       body
+     * @param boundary boundary parameter of the Content-Type
+     * @param uploads  upload settings
+     * @return parts in the order sent, delete them when no longer needed
+     * @throws IOException when the body is malformed or can not be read
+     */
+    static List<WebserverPart> parse(InputStream in, String boundary, WebserverUploads uploads) throws IOException {
+        if (boundary == null || boundary.isEmpty() || boundary.length() > 70)
+            throw new WebserverException(400, "Bad Request");
+
+        var parts = new ArrayList<WebserverPart>();
+        try {
+            new WebserverMultipart(in, boundary, uploads).parse(parts);
+        } catch (IOException | RuntimeException ex) {
+            for (var part : parts)
+                part.delete();
+            throw ex;
+        }
+        return parts;
+    }
+
+    /**
+     * Reads the boundary parameter of a multipart Content-Type
+     *
+     * @param contentType value of the Content-Type header (none = null)
+     * @return boundary, null if it is not a multipart/form-data type
+     */
+    static String boundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase().startsWith("multipart/form-data"))
+            return null;
+        return parameters(contentType).get("boundary");
+    }
+
+    private void parse(List<WebserverPart> parts) throws IOException {
+        // preamble
+        if (!skipToDelimiter(null))
+            throw new WebserverException(400, "Bad Request");
+
+        while (true) {
+            if (!ensure(2))
+                throw new WebserverException(400, "Bad Request");
+            if (this.buffer[this.position] == '-' && this.buffer[this.position + 1] == '-')
+                return;
+            // transport padding after the boundary
+            var line = readLine(Webserver.MAX_HEAD_SIZE);
+            if (!line.trim().isEmpty())
+                throw new WebserverException(400, "Bad Request");
+            if (parts.size() == MAX_PARTS)
+                throw new WebserverException(413, "Payload Too Large");
+
+            var headers = new TreeMap<String, String>();
+            var headSize = 0;
+            while (!(line = readLine(Webserver.MAX_HEAD_SIZE)).isEmpty()) {
+                if ((headSize += line.length()) > Webserver.MAX_HEAD_SIZE)
+                    throw new WebserverException(431, "Request Header Fields Too Large");
+                var colon = line.indexOf(':');
+                if (colon <= 0)
+                    throw new WebserverException(400, "Bad Request");
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+
+            var disposition = parameters(headers.getOrDefault("content-disposition", ""));
+            var content = this.uploads.newSpool(0);
+            var part = new WebserverPart(disposition.getOrDefault("name", ""), disposition.get("filename"), headers, content);
+            parts.add(part);
+            try {
+                if (!skipToDelimiter(content))
+                    throw new WebserverException(400, "Bad Request");
+            } finally {
+                content.close();
+            }
+        }
+    }
+
+    private boolean skipToDelimiter(OutputStream out) throws IOException {
+        // bytes that may start a delimiter are kept until the next read decides
+        while (true) {
+            var index = indexOf(this.delimiter, this.position, this.limit);
+            if (index != -1) {
+                if (out != null)
+                    out.write(this.buffer, this.position, index - this.position);
+                this.position = index + this.delimiter.length;
+                return true;
+            }
+            var safe = Math.max(this.position, this.limit - this.delimiter.length + 1);
+            if (out != null)
+                out.write(this.buffer, this.position, safe - this.position);
+            this.position = safe;
+            if (!fill())
+                return false;
+        }
+    }
+
+    private String readLine(int maxLength) throws IOException {
+        while (true) {
+            for (var i = this.position; i < this.limit; i++) {
+                if (this.buffer[i] == '\n') {
+                    var end = i > this.position && this.buffer[i - 1] == '\r' ? i - 1 : i;
+                    // browsers send file names as UTF-8
+                    var line = new String(this.buffer, this.position, end - this.position, StandardCharsets.UTF_8);
+                    this.position = i + 1;
+                    return line;
+                }
+            }
+            if (this.limit - this.position > maxLength)
+                throw new WebserverException(431, "Request Header Fields Too Large");
+            if (!fill())
+                throw new WebserverException(400, "Bad Request");
+        }
+    }
+
+    private boolean ensure(int count) throws IOException {
+        while (this.limit - this.position < count) {
+            if (!fill())
+                return false;
+        }
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        if (this.position > 0) {
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, this.limit - this.position);
+            this.limit -= this.position;
+            this.position = 0;
+        }
+        if (this.limit == this.buffer.length)
+            throw new WebserverException(431, "Request Header Fields Too Large");
+        var read = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+        if (read == -1)
+            return false;
+        this.limit += read;
+        return true;
+    }
+
+    private int indexOf(byte[] pattern, int start, int end) {
+        var first = pattern[0];
+        var last = end - pattern.length;
+        outer:
+        for (var i = start; i <= last; i++) {
+            if (this.buffer[i] != first)
+                continue;
+            for (var j = 1; j < pattern.length; j++) {
+                if (this.buffer[i + j] != pattern[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static Map<String, String> parameters(String value) {
+        var parameters = new TreeMap<String, String>();
+        var i = value.indexOf(';');
+        while (i != -1 && i < value.length()) {
+            var equals = value.indexOf('=', i);
+            if (equals == -1)
+                break;
+            var name = value.substring(i + 1, equals).trim().toLowerCase();
+            String parameter;
+            var start = equals + 1;
+            while (start < value.length() && value.charAt(start) == ' ')
+                start++;
+            if (start < value.length() && value.charAt(start) == '"') {
+                var builder = new StringBuilder();
+                var j = start + 1;
+                for (; j < value.length() && value.charAt(j) != '"'; j++) {
+                    if (value.charAt(j) == '\\' && j + 1 < value.length())
+                        j++;
+                    builder.append(value.charAt(j));
+                }
+                parameter = builder.toString();
+                i = value.indexOf(';', j);
+            } else {
+                i = value.indexOf(';', start);
+                parameter = value.substring(start, i == -1 ? value.length() : i).trim();
+            }
+            parameters.putIfAbsent(name, parameter);
+        }
+        return parameters;
+    }
+}
@@ -0,0 +1,393 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class WebserverParser {
+
+    private final static byte[] EMPTY = new byte[0];
+    private final static String[] METHODS = {"GET", "POST", "PUT", "HEAD", "DELETE", "OPTIONS", "PATCH", "TRACE", "CONNECT"};
+    private final static String[] VERSIONS = {"HTTP/1.1", "HTTP/1.0"};
+    private final static String[] HEADERS = {"Host", "Connection", "Content-Length", "Content-Type", "Transfer-Encoding", "Cookie", "Accept", "Accept-Encoding", "Accept-Language", "User-Agent", "Referer", "Origin", "Authorization", "Cache-Control", "Pragma", "Upgrade", "Expect", "If-None-Match", "If-Modified-Since", "Range"};
+
+    private final static int REQUEST_LINE = 0;
+    private final static int HEADER = 1;
+    private final static int BODY = 2;
+    private final static int CHUNK_SIZE = 3;
+    private final static int CHUNK_DATA = 4;
+    private final static int CHUNK_END = 5;
+    private final static int TRAILER = 6;
+
+    private final int maxHeadSize;
+    private final long maxBodySize;
+    private final WebserverUploads uploads;
+
+    private int state = REQUEST_LINE;
+    private int headSize;
+    private String method;
+    private String target;
+    private String version;
+    private String[] headerNames = new String[16];
+    private String[] headerValues = new String[16];
+    private int headerCount;
+    private long contentLength;
+    private boolean hasContentLength;
+    private boolean chunked;
+    private WebserverSpool body;
+    private long bodyLength;
+    private long chunkRemaining;
+    private boolean expectContinue;
+
+    /**
+     * Creates a parser for one connection, requests are parsed one after another
+     *
+     * @param maxHeadSize limit request line and headers to n bytes
+     * @param maxBodySize limit body to n bytes
+     */
+    WebserverParser(int maxHeadSize, int maxBodySize) {
+        this(maxHeadSize, new WebserverUploads(maxBodySize, maxBodySize, null));
+    }
+
+    /**
+     * Creates a parser for one connection, bodies above the upload threshold
+     * are spooled to a temp file while they arrive
+     *
+     * @param maxHeadSize limit request line and headers to n bytes
+     * @param uploads     body size limit and spooling
+     */
+    WebserverParser(int maxHeadSize, WebserverUploads uploads) {
+        this.maxHeadSize = maxHeadSize;
+        this.maxBodySize = uploads.getMaxBodySize();
+        this.uploads = uploads;
+    }
+
+    /**
+     * Consumes bytes from a heap buffer until a request is complete, bytes of
+     * an unfinished line are left in the buffer for the next call
+     *
+     * @param buffer buffer in read mode
+     * @return complete request, null if more bytes are needed
+     * @throws WebserverException when the request is malformed or too large
+     */
+    WebserverRequest parse(ByteBuffer buffer) throws WebserverException {
+        var array = buffer.array();
+        var offset = buffer.arrayOffset();
+
+        while (buffer.hasRemaining()) {
+            if (state == BODY || state == CHUNK_DATA) {
+                var count = (int) Math.min(buffer.remaining(), state == BODY ? contentLength - bodyLength : chunkRemaining);
+                if (body == null)
+                    body = uploads.newSpool(0);
+                try {
+                    body.write(array, offset + buffer.position(), count);
+                } catch (IOException ex) {
+                    discard();
+                    throw new WebserverException(507, "Insufficient Storage");
+                }
+                buffer.position(buffer.position() + count);
+                bodyLength += count;
+
+                if (state == BODY) {
+                    if (bodyLength == contentLength)
+                        return complete();
+                } else if ((chunkRemaining -= count) == 0) {
+                    state = CHUNK_END;
+                }
+                continue;
+            }
+
+            var start = offset + buffer.position();
+            var end = offset + buffer.limit();
+            var lineEnd = -1;
+            for (var i = start; i < end; i++) {
+                if (array[i] == '\n') {
+                    lineEnd = i;
+                    break;
+                }
+            }
+
+            // every line is limited, callers grow their buffer as long as a line is unfinished
+            if (lineEnd == -1) {
+                checkLine(end - start);
+                return null;
+            }
+
+            buffer.position(lineEnd + 1 - offset);
+            checkLine(lineEnd + 1 - start);
+            if (state <= HEADER || state == TRAILER)
+                headSize += lineEnd + 1 - start;
+            if (lineEnd > start && array[lineEnd - 1] == '\r')
+                lineEnd--;
+
+            var request = parseLine(array, start, lineEnd);
+            if (request != null)
+                return request;
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the temp file of an unfinished body, called when the
+     * connection closes
+     */
+    void discard() {
+        if (body != null) {
+            body.delete();
+            body = null;
+        }
+    }
+
+    /**
+     * Whether no byte of the next request was consumed yet
+     *
+     * @return true between two requests
+     */
+    boolean isIdle() {
+        return state == REQUEST_LINE && headSize == 0;
+    }
+
+    /**
+     * Whether the client waits for "100 Continue" before sending the body,
+     * reset once queried
+     *
+     * @return true once after the head of such a request was parsed
+     */
+    boolean expectsContinue() {
+        var expect = expectContinue;
+        expectContinue = false;
+        return expect;
+    }
+
+    private void checkLine(int length) throws WebserverException {
+        if (state <= HEADER || state == TRAILER) {
+            // trailers count toward the head limit
+            if (headSize + length > maxHeadSize)
+                throw new WebserverException(431, "Request Header Fields Too Large");
+        } else if (length > maxHeadSize) {
+            throw new WebserverException(400, "Bad Request");
+        }
+    }
+
+    private WebserverRequest parseLine(byte[] array, int start, int end) throws WebserverException {
+        switch (state) {
+            case REQUEST_LINE:
+                // robustness: ignore empty lines between pipelined requests
+                if (start != end)
+                    parseRequestLine(array, start, end);
+                return null;
+            case HEADER:
+                if (start == end)
+                    return startBody();
+                parseHeader(array, start, end);
+                return null;
+            case CHUNK_SIZE:
+                chunkRemaining = parseHex(array, start, end);
+                if (chunkRemaining == 0)
+                    state = TRAILER;
+                else if (bodyLength + chunkRemaining > maxBodySize)
+                    throw new WebserverException(413, "Payload Too Large");
+                else
+                    state = CHUNK_DATA;
+                return null;
+            case CHUNK_END:
+                if (start != end)
+                    throw new WebserverException(400, "Bad Request");
+                state = CHUNK_SIZE;
+                return null;
+            case TRAILER:
+                return start == end ? complete() : null;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private void parseRequestLine(byte[] array, int start, int end) throws WebserverException {
+        var firstSpace = indexOf(array, start, end, (byte) ' ');
+        var lastSpace = lastIndexOf(array, start, end, (byte) ' ');
+        if (firstSpace == -1 || lastSpace == firstSpace)
+            throw new WebserverException(400, "Bad Request");
+
+        method = token(METHODS, array, start, firstSpace);
+        target = new String(array, firstSpace + 1, lastSpace - firstSpace - 1, StandardCharsets.ISO_8859_1).trim();
+        version = token(VERSIONS, array, lastSpace + 1, end);
+        if (target.isEmpty() || !version.startsWith("HTTP/"))
+            throw new WebserverException(400, "Bad Request");
+        state = HEADER;
+    }
+
+    private void parseHeader(byte[] array, int start, int end) throws WebserverException {
+        var colon = indexOf(array, start, end, (byte) ':');
+        if (colon <= start)
+            throw new WebserverException(400, "Bad Request");
+
+        var valueStart = colon + 1;
+        while (valueStart < end && (array[valueStart] == ' ' || array[valueStart] == '\t'))
+            valueStart++;
+        var valueEnd = end;
+        while (valueEnd > valueStart && (array[valueEnd - 1] == ' ' || array[valueEnd - 1] == '\t'))
+            valueEnd--;
+
+        var name = token(HEADERS, array, start, colon);
+        if (name.equalsIgnoreCase("Content-Length")) {
+            var length = parseDecimal(array, valueStart, valueEnd);
+            // a repeated header has to agree, otherwise the body boundary is ambiguous
+            if (hasContentLength && length != contentLength)
+                throw new WebserverException(400, "Bad Request");
+            contentLength = length;
+            hasContentLength = true;
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+            chunked = endsWithIgnoreCase(array, valueStart, valueEnd, "chunked");
+        } else if (name.equalsIgnoreCase("Expect")) {
+            expectContinue = endsWithIgnoreCase(array, valueStart, valueEnd, "100-continue");
+        }
+
+        if (headerCount == headerNames.length) {
+            headerNames = Arrays.copyOf(headerNames, headerCount * 2);
+            headerValues = Arrays.copyOf(headerValues, headerCount * 2);
+        }
+        headerNames[headerCount] = name;
+        headerValues[headerCount++] = new String(array, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+    }
+
+    private WebserverRequest startBody() throws WebserverException {
+        if (chunked) {
+            state = CHUNK_SIZE;
+            return null;
+        }
+        if (contentLength > maxBodySize)
+            throw new WebserverException(413, "Payload Too Large");
+        if (contentLength == 0) {
+            expectContinue = false;
+            return complete();
+        }
+
+        body = uploads.newSpool(contentLength);
+        state = BODY;
+        return null;
+    }
+
+    private WebserverRequest complete() throws WebserverException {
+        var content = EMPTY;
+        if (body != null) {
+            try {
+                body.close();
+                if (!body.isSpooled())
+                    content = body.toBytes();
+            } catch (IOException ex) {
+                discard();
+                throw new WebserverException(507, "Insufficient Storage");
+            }
+        }
+        var request = new WebserverRequest(method, target, version, Arrays.copyOf(headerNames, headerCount), Arrays.copyOf(headerValues, headerCount), headerCount, content);
+        request.setBody(body != null && body.isSpooled() ? body : null, uploads);
+
+        state = REQUEST_LINE;
+        headSize = 0;
+        Arrays.fill(headerNames, 0, headerCount, null);
+        Arrays.fill(headerValues, 0, headerCount, null);
+        headerCount = 0;
+        contentLength = 0;
+        hasContentLength = false;
+        chunked = false;
+        expectContinue = false;
+        body = null;
+        bodyLength = 0;
+        return request;
+    }
+
+    private static String token(String[] known, byte[] array, int start, int end) {
+        // known tokens sent in their usual case are returned as constants, so the common case needs no allocation
+        for (var candidate : known) {
+            if (candidate.length() != end - start)
+                continue;
+            var matches = true;
+            for (var i = 0; i < candidate.length() && matches; i++)
+                matches = array[start + i] == candidate.charAt(i);
+            if (matches)
+                return candidate;
+        }
+        return new String(array, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int indexOf(byte[] array, int start, int end, byte value) {
+        for (var i = start; i < end; i++) {
+            if (array[i] == value)
+                return i;
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] array, int start, int end, byte value) {
+        for (var i = end - 1; i >= start; i--) {
+            if (array[i] == value)
+                return i;
+        }
+        return -1;
+    }
+
+    private static long parseDecimal(byte[] array, int start, int end) throws WebserverException {
+        if (start == end || end - start > 18)
+            throw new WebserverException(400, "Bad Request");
+        var value = 0L;
+        for (var i = start; i < end; i++) {
+            var digit = array[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new WebserverException(400, "Bad Request");
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static long parseHex(byte[] array, int start, int end) throws WebserverException {
+        var extension = indexOf(array, start, end, (byte) ';');
+        if (extension != -1)
+            end = extension;
+        while (end > start && (array[end - 1] == ' ' || array[end - 1] == '\t'))
+            end--;
+        if (start == end || end - start > 15)
+            throw new WebserverException(400, "Bad Request");
+
+        var value = 0L;
+        for (var i = start; i < end; i++) {
+            var digit = Character.digit(array[i], 16);
+            if (digit == -1)
+                throw new WebserverException(400, "Bad Request");
+            value = value * 16 + digit;
+        }
+        return value;
+    }
+
+    private static boolean endsWithIgnoreCase(byte[] array, int start, int end, String suffix) {
+        if (end - start < suffix.length())
+            return false;
+        for (int i = end - suffix.length(), j = 0; i < end; i++, j++) {
+            if (Character.toLowerCase((char) (array[i] & 0xFF)) != suffix.charAt(j))
+                return false;
+        }
+        return true;
+    }
+}
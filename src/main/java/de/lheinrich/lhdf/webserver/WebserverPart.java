@@ -0,0 +1,136 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public class WebserverPart {
+
+    private final String name;
+    private final String fileName;
+    private final Map<String, String> headers;
+    private final WebserverSpool content;
+
+    WebserverPart(String name, String fileName, Map<String, String> headers, WebserverSpool content) {
+        this.name = name;
+        this.fileName = fileName;
+        this.headers = headers;
+        this.content = content;
+    }
+
+    /**
+     * Get the name of the form field
+     *
+     * @return name from Content-Disposition
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Get the name of the uploaded file
+     *
+     * @return file name as sent by the client, null for plain form fields
+     */
+    public String getFileName() {
+        return this.fileName;
+    }
+
+    /**
+     * Get the content type of the part
+     *
+     * @return content type, null if not sent
+     */
+    public String getContentType() {
+        return getHeader("content-type");
+    }
+
+    /**
+     * Get a header of the part, ignoring the case of its name
+     *
+     * @param name Name of the header
+     * @return value, null if not sent
+     */
+    public String getHeader(String name) {
+        return this.headers.get(name.toLowerCase());
+    }
+
+    /**
+     * Get the size of the content
+     *
+     * @return bytes
+     */
+    public long getSize() {
+        return this.content.size();
+    }
+
+    /**
+     * Opens the content, large parts are read from a temp file so they never
+     * have to fit into memory
+     *
+     * @return stream, close it after reading
+     * @throws IOException when the temp file can not be opened
+     */
+    public InputStream getInputStream() throws IOException {
+        return this.content.openStream();
+    }
+
+    /**
+     * Get the content in memory, use getInputStream for large files
+     *
+     * @return content
+     * @throws IOException when the temp file can not be read
+     */
+    public byte[] getBytes() throws IOException {
+        return this.content.toBytes();
+    }
+
+    /**
+     * Get the content as text
+     *
+     * @return content decoded as UTF-8
+     * @throws IOException when the temp file can not be read
+     */
+    public String getString() throws IOException {
+        return new String(this.content.toBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Saves the content to a file, a spooled part is moved instead of copied
+     * where possible. The part is read from this file afterwards
+     *
+     * @param target file to write, replaced if it exists
+     * @throws IOException when the file can not be written
+     */
+    public void saveTo(Path target) throws IOException {
+        this.content.moveTo(target);
+    }
+
+    void delete() {
+        this.content.delete();
+    }
+}
@@ -0,0 +1,392 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public class WebserverRequest {
+
+    private final String method;
+    private final String target;
+    private final String version;
+    private final String[] headerNames;
+    private final String[] headerValues;
+    private final int headerCount;
+    private final byte[] body;
+    private WebserverSpool spool;
+    private WebserverUploads uploads = WebserverUploads.DEFAULT;
+    private List<WebserverPart> parts;
+    private String path;
+    private String clientIp;
+    private String handlerName;
+    private String route;
+    private String[] pathParameterNames;
+    private int[] pathParameterBounds;
+    private String allow;
+    private Map<String, String> pathParameters;
+    private Map<String, String> headers;
+    private Map<String, String> parameters;
+    private Map<String, String> cookies;
+
+    WebserverRequest(String method, String target, String version, String[] headerNames, String[] headerValues, int headerCount, byte[] body) {
+        this.method = method;
+        this.target = target;
+        this.version = version;
+        this.headerNames = headerNames;
+        this.headerValues = headerValues;
+        this.headerCount = headerCount;
+        this.body = body;
+    }
+
+    /**
+     * Get the request method
+     *
+     * @return method, for example GET
+     */
+    public String getMethod() {
+        return this.method;
+    }
+
+    /**
+     * Get the raw request target
+     *
+     * @return path and query as sent, for example /users?id=1
+     */
+    public String getTarget() {
+        return this.target;
+    }
+
+    /**
+     * Get the path of the request target
+     *
+     * @return path without query
+     */
+    public String getPath() {
+        if (this.path == null) {
+            var query = this.target.indexOf('?');
+            this.path = query == -1 ? this.target : this.target.substring(0, query);
+        }
+        return this.path;
+    }
+
+    /**
+     * Get the raw query of the request target
+     *
+     * @return query without "?" (empty if none)
+     */
+    public String getQuery() {
+        var query = this.target.indexOf('?');
+        return query == -1 ? "" : this.target.substring(query + 1);
+    }
+
+    /**
+     * Get the protocol version
+     *
+     * @return version, for example HTTP/1.1
+     */
+    public String getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Get a header, ignoring the case of its name
+     *
+     * @param name Name of the header
+     * @return value of the first header with this name, null if not sent
+     */
+    public String getHeader(String name) {
+        for (var i = 0; i < this.headerCount; i++) {
+            if (this.headerNames[i].equalsIgnoreCase(name))
+                return this.headerValues[i];
+        }
+        return null;
+    }
+
+    /**
+     * Get all headers
+     *
+     * @return Map Name (case insensitive) and value of the headers
+     */
+    public Map<String, String> getHeaders() {
+        if (this.headers == null) {
+            var headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+            for (var i = 0; i < this.headerCount; i++)
+                headers.putIfAbsent(this.headerNames[i], this.headerValues[i]);
+            this.headers = Collections.unmodifiableMap(headers);
+        }
+        return this.headers;
+    }
+
+    int getHeaderCount() {
+        return this.headerCount;
+    }
+
+    String getHeaderName(int index) {
+        return this.headerNames[index];
+    }
+
+    String getHeaderValue(int index) {
+        return this.headerValues[index];
+    }
+
+    /**
+     * Get the url-decoded query parameters
+     *
+     * @return Map Name and value of the parameters
+     */
+    public Map<String, String> getParameters() {
+        if (this.parameters == null)
+            this.parameters = Webserver.parseGetData(getQuery());
+        return this.parameters;
+    }
+
+    /**
+     * Get the pattern of the matched route
+     *
+     * @return pattern as registered, for example /users/{id} (null if dispatched by handler name)
+     */
+    public String getRoute() {
+        return this.route;
+    }
+
+    /**
+     * Get a url-decoded path parameter, the rest matched by a trailing
+     * wildcard is named "*"
+     *
+     * @param name Name of the parameter, for example id for /users/{id}
+     * @return value of the parameter, null if the route has none with this name
+     */
+    public String getPathParameter(String name) {
+        var index = indexOfPathParameter(name);
+        return index == -1 ? null : decodePathParameter(index);
+    }
+
+    /**
+     * Get a path parameter as sent, without url-decoding
+     *
+     * @param name Name of the parameter
+     * @return raw value of the parameter, null if the route has none with this name
+     */
+    String getRawPathParameter(String name) {
+        var index = indexOfPathParameter(name);
+        return index == -1 ? null : getPath().substring(this.pathParameterBounds[index * 2], this.pathParameterBounds[index * 2 + 1]);
+    }
+
+    private int indexOfPathParameter(String name) {
+        if (this.pathParameterNames == null)
+            return -1;
+        for (var i = 0; i < this.pathParameterNames.length; i++) {
+            if (this.pathParameterNames[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Get all url-decoded path parameters
+     *
+     * @return Map Name and value of the path parameters
+     */
+    public Map<String, String> getPathParameters() {
+        if (this.pathParameters == null) {
+            var pathParameters = new TreeMap<String, String>();
+            if (this.pathParameterNames != null) {
+                for (var i = 0; i < this.pathParameterNames.length; i++)
+                    pathParameters.put(this.pathParameterNames[i], decodePathParameter(i));
+            }
+            this.pathParameters = Collections.unmodifiableMap(pathParameters);
+        }
+        return this.pathParameters;
+    }
+
+    private String decodePathParameter(int index) {
+        var value = getPath().substring(this.pathParameterBounds[index * 2], this.pathParameterBounds[index * 2 + 1]);
+        return value.indexOf('%') == -1 ? value : URLDecoder.decode(value.replace("+", "%2B"), StandardCharsets.UTF_8);
+    }
+
+    void setRoute(String route, String[] pathParameterNames, int[] pathParameterBounds, String allow) {
+        this.route = route;
+        this.pathParameterNames = pathParameterNames;
+        this.pathParameterBounds = pathParameterBounds;
+        this.allow = allow;
+        this.pathParameters = null;
+    }
+
+    /**
+     * Methods the matched path allows, set when only the method did not match
+     *
+     * @return value of the Allow header, null if the method matched
+     */
+    String getAllow() {
+        return this.allow;
+    }
+
+    /**
+     * Get the Cookies sent from the client
+     *
+     * @return Map Name and value of the cookies
+     */
+    public Map<String, String> getCookies() {
+        if (this.cookies == null)
+            this.cookies = Webserver.parseCookies(getHeader("cookie"));
+        return this.cookies;
+    }
+
+    /**
+     * Get the request body, a body spooled to disk is read into memory. Use
+     * getBodyStream or getParts for large uploads
+     *
+     * @return body (empty if none)
+     */
+    public byte[] getBody() {
+        if (this.spool == null)
+            return this.body;
+        try {
+            return this.spool.toBytes();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Get the request body as text
+     *
+     * @return body decoded as UTF-8
+     */
+    public String getBodyString() {
+        return new String(getBody(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Opens the request body, bodies above the upload threshold are read
+     * from a temp file
+     *
+     * @return stream, close it after reading
+     * @throws IOException when the temp file can not be opened
+     */
+    public InputStream getBodyStream() throws IOException {
+        return this.spool != null ? this.spool.openStream() : new ByteArrayInputStream(this.body);
+    }
+
+    /**
+     * Get the size of the request body
+     *
+     * @return bytes
+     */
+    public long getBodyLength() {
+        return this.spool != null ? this.spool.size() : this.body.length;
+    }
+
+    /**
+     * Get the parts of a multipart/form-data body, parsed once while
+     * streaming the body. Parts above the upload threshold are spooled to
+     * temp files, which are deleted after the response
+     *
+     * @return parts in the order sent (empty if the body is not multipart)
+     * @throws IOException when the body is malformed (WebserverException) or can not be read
+     */
+    public List<WebserverPart> getParts() throws IOException {
+        if (this.parts == null) {
+            var boundary = WebserverMultipart.boundary(getHeader("content-type"));
+            if (boundary == null)
+                return Collections.emptyList();
+            try (var in = getBodyStream()) {
+                this.parts = WebserverMultipart.parse(in, boundary, this.uploads);
+            }
+        }
+        return this.parts;
+    }
+
+    /**
+     * Get the first part of a multipart/form-data body with a name
+     *
+     * @param name Name of the form field
+     * @return part, null if not sent
+     * @throws IOException when the body is malformed (WebserverException) or can not be read
+     */
+    public WebserverPart getPart(String name) throws IOException {
+        for (var part : getParts()) {
+            if (part.getName().equals(name))
+                return part;
+        }
+        return null;
+    }
+
+    void setBody(WebserverSpool spool, WebserverUploads uploads) {
+        this.spool = spool;
+        this.uploads = uploads;
+    }
+
+    /**
+     * Deletes the temp files of the body and its parts
+     */
+    void discard() {
+        if (this.parts != null) {
+            for (var part : this.parts)
+                part.delete();
+        }
+        if (this.spool != null)
+            this.spool.delete();
+    }
+
+    /**
+     * Get the client address
+     *
+     * @return IP Request is from
+     */
+    public String getClientIp() {
+        return this.clientIp;
+    }
+
+    void setClientIp(String clientIp) {
+        this.clientIp = clientIp;
+    }
+
+    String getHandlerName() {
+        if (this.handlerName == null) {
+            var path = getPath();
+            var handlerName = (path.startsWith("/") ? path.substring(1) : path).toLowerCase();
+            if (handlerName.startsWith("/"))
+                handlerName = handlerName.substring(2);
+            this.handlerName = handlerName;
+        }
+        return this.handlerName;
+    }
+
+    boolean isKeepAliveRequested() {
+        var connection = getHeader("connection");
+        connection = connection == null ? "" : connection.toLowerCase();
+        if (connection.contains("close"))
+            return false;
+        return !"HTTP/1.0".equals(this.version) || connection.contains("keep-alive");
+    }
+}
@@ -0,0 +1,698 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+public class WebserverResponse {
+
+    private final static byte[] CRLF = {'\r', '\n'};
+    private final static byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private final static byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private final static Map<Integer, String> REASONS = new TreeMap<>();
+
+    static {
+        REASONS.put(100, "Continue");
+        REASONS.put(101, "Switching Protocols");
+        REASONS.put(200, "OK");
+        REASONS.put(201, "Created");
+        REASONS.put(202, "Accepted");
+        REASONS.put(204, "No Content");
+        REASONS.put(206, "Partial Content");
+        REASONS.put(301, "Moved Permanently");
+        REASONS.put(302, "Found");
+        REASONS.put(303, "See Other");
+        REASONS.put(304, "Not Modified");
+        REASONS.put(307, "Temporary Redirect");
+        REASONS.put(308, "Permanent Redirect");
+        REASONS.put(400, "Bad Request");
+        REASONS.put(401, "Unauthorized");
+        REASONS.put(403, "Forbidden");
+        REASONS.put(404, "Not Found");
+        REASONS.put(405, "Method Not Allowed");
+        REASONS.put(408, "Request Timeout");
+        REASONS.put(409, "Conflict");
+        REASONS.put(411, "Length Required");
+        REASONS.put(412, "Precondition Failed");
+        REASONS.put(413, "Payload Too Large");
+        REASONS.put(416, "Range Not Satisfiable");
+        REASONS.put(429, "Too Many Requests");
+        REASONS.put(431, "Request Header Fields Too Large");
+        REASONS.put(500, "Internal Server Error");
+        REASONS.put(501, "Not Implemented");
+        REASONS.put(502, "Bad Gateway");
+        REASONS.put(503, "Service Unavailable");
+        REASONS.put(504, "Gateway Timeout");
+    }
+
+    private final OutputStream out;
+    private final WebserverRequest request;
+    private final WebserverCompression compression;
+    private final boolean head;
+    private final boolean chunkedAllowed;
+    private final List<String[]> headers = new ArrayList<>();
+    private final Map<String, String> cookies = new TreeMap<>();
+    private final BodyOutputStream body = new BodyOutputStream();
+    private boolean keepAlive;
+    private String keepAliveHeader;
+    private int status = 200;
+    private long contentLength = -1;
+    private boolean committed;
+    private boolean chunked;
+    private boolean finished;
+    private String encoding;
+    private Deflater deflater;
+    private CRC32 crc;
+    private byte[] deflated;
+    private ByteArrayOutputStream buffer;
+    private String cacheKey;
+    private byte[] cachedBody;
+    private WebserverConnection connection;
+    private BooleanSupplier draining;
+
+    /**
+     * Creates the response for one request
+     *
+     * @param out             raw connection output
+     * @param request         request to answer
+     * @param keepAlive       whether the connection may be kept alive
+     * @param keepAliveHeader value of the Keep-Alive header (none = null)
+     */
+    WebserverResponse(OutputStream out, WebserverRequest request, boolean keepAlive, String keepAliveHeader) {
+        this(out, request, keepAlive, keepAliveHeader, null);
+    }
+
+    /**
+     * Creates the response for one request, compressing the body if the
+     * client accepts it
+     *
+     * @param out             raw connection output
+     * @param request         request to answer
+     * @param keepAlive       whether the connection may be kept alive
+     * @param keepAliveHeader value of the Keep-Alive header (none = null)
+     * @param compression     compression settings (disable = null)
+     */
+    WebserverResponse(OutputStream out, WebserverRequest request, boolean keepAlive, String keepAliveHeader, WebserverCompression compression) {
+        this.out = out;
+        this.request = request;
+        this.compression = compression;
+        this.head = request.getMethod().equals("HEAD");
+        this.chunkedAllowed = !"HTTP/1.0".equals(request.getVersion()) && !(out instanceof WebserverHeadOutput);
+        this.keepAlive = keepAlive;
+        this.keepAliveHeader = keepAliveHeader;
+    }
+
+    /**
+     * Set the status code (default is 200)
+     *
+     * @param status HTTP status code
+     */
+    public void setStatus(int status) {
+        checkNotCommitted();
+        this.status = status;
+    }
+
+    /**
+     * Get the status code
+     *
+     * @return HTTP status code
+     */
+    public int getStatus() {
+        return this.status;
+    }
+
+    /**
+     * Set a header, replacing headers with the same name
+     *
+     * @param name  Name of the header
+     * @param value Value of the header
+     */
+    public void setHeader(String name, String value) {
+        checkNotCommitted();
+        this.headers.removeIf(header -> header[0].equalsIgnoreCase(name));
+        this.headers.add(new String[]{name, value});
+    }
+
+    /**
+     * Add a header, keeping headers with the same name
+     *
+     * @param name  Name of the header
+     * @param value Value of the header
+     */
+    public void addHeader(String name, String value) {
+        checkNotCommitted();
+        this.headers.add(new String[]{name, value});
+    }
+
+    /**
+     * Get a header, ignoring the case of its name
+     *
+     * @param name Name of the header
+     * @return value of the first header with this name, null if not set
+     */
+    public String getHeader(String name) {
+        for (var header : this.headers) {
+            if (header[0].equalsIgnoreCase(name))
+                return header[1];
+        }
+        return null;
+    }
+
+    /**
+     * Set the Content-Type header
+     *
+     * @param contentType for example text/html; charset=utf-8
+     */
+    public void setContentType(String contentType) {
+        setHeader("Content-Type", contentType);
+    }
+
+    /**
+     * Set the length of the body, bodies of unknown length are sent chunked
+     *
+     * @param contentLength length in bytes
+     */
+    public void setContentLength(long contentLength) {
+        checkNotCommitted();
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * Set a Cookie
+     *
+     * @param name  Name of the cookie
+     * @param value Value of the cookie
+     */
+    public void setCookie(String name, String value) {
+        checkNotCommitted();
+        this.cookies.put(name, value);
+    }
+
+    /**
+     * Get the Cookies set for this response
+     *
+     * @return Map Name and value of the cookies
+     */
+    public Map<String, String> getCookies() {
+        return this.cookies;
+    }
+
+    /**
+     * Whether the status line and headers were already sent
+     *
+     * @return true after the first body byte was written
+     */
+    public boolean isCommitted() {
+        return this.committed;
+    }
+
+    /**
+     * Sends a complete body with its exact length
+     *
+     * @param body content
+     * @throws IOException when writing fails
+     */
+    public void send(byte[] body) throws IOException {
+        if (!this.committed)
+            this.contentLength = body.length;
+        write(body);
+    }
+
+    /**
+     * Sends a complete text body encoded as UTF-8
+     *
+     * @param body content
+     * @throws IOException when writing fails
+     */
+    public void send(String body) throws IOException {
+        send(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a part of the body
+     *
+     * @param bytes content
+     * @throws IOException when writing fails
+     */
+    public void write(byte[] bytes) throws IOException {
+        this.body.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes a part of the body
+     *
+     * @param buffer content, consumed from its position to its limit
+     * @throws IOException when writing fails
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            this.body.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+
+        var bytes = new byte[Math.min(buffer.remaining(), 8192)];
+        while (buffer.hasRemaining()) {
+            var count = Math.min(buffer.remaining(), bytes.length);
+            buffer.get(bytes, 0, count);
+            this.body.write(bytes, 0, count);
+        }
+    }
+
+    /**
+     * Writes a part of the body, copying the stream until its end
+     *
+     * @param in content, not closed
+     * @throws IOException when reading or writing fails
+     */
+    public void write(InputStream in) throws IOException {
+        in.transferTo(this.body);
+    }
+
+    /**
+     * Writes a file region as body part. On plain connections the file is
+     * sent with FileChannel.transferTo (zero-copy), otherwise it is copied
+     *
+     * @param channel  file to send, not closed
+     * @param position first byte
+     * @param count    number of bytes
+     * @throws IOException when reading or writing fails
+     */
+    public void transfer(FileChannel channel, long position, long count) throws IOException {
+        if (!this.committed && this.contentLength == -1)
+            this.contentLength = count;
+        this.body.transfer(channel, position, count);
+    }
+
+    /**
+     * Whether transfer sends files without copying them through the heap
+     *
+     * @return true on plain (not encrypted) connections
+     */
+    public boolean isZeroCopy() {
+        return this.out instanceof WebserverChannelOutput;
+    }
+
+    /**
+     * Get the body as stream, bytes written are sent as they are flushed
+     *
+     * @return body stream, closing it finishes the response
+     */
+    public OutputStream getOutputStream() {
+        return this.body;
+    }
+
+    /**
+     * Flushes the body written so far to the client
+     *
+     * @throws IOException when writing fails
+     */
+    public void flush() throws IOException {
+        this.body.flush();
+    }
+
+    /**
+     * Completes the response, sending the headers if nothing was written
+     *
+     * @throws IOException when writing fails
+     */
+    void finish() throws IOException {
+        if (this.finished || this.connection != null)
+            return;
+        if (!this.committed && this.contentLength == -1)
+            this.contentLength = 0;
+        commit();
+        if (this.deflater != null)
+            this.body.finishCompression();
+        if (this.buffer != null) {
+            var compressed = this.buffer.toByteArray();
+            this.buffer = null;
+            if (this.cacheKey != null)
+                this.compression.putCached(this.cacheKey, compressed);
+            this.contentLength = compressed.length;
+            writeHead(false);
+            this.out.write(compressed);
+        }
+        this.body.flushChunk();
+        if (this.chunked)
+            this.out.write(LAST_CHUNK);
+        this.finished = true;
+    }
+
+    /**
+     * Whether the connection may be used for the next request
+     *
+     * @return false when the body was delimited by closing the connection
+     */
+    boolean isKeepAlive() {
+        return this.keepAlive && this.connection == null;
+    }
+
+    /**
+     * Sends the head and hands the connection over, the body is neither
+     * chunked nor compressed and the response is never finished
+     *
+     * @param connection event stream or WebSocket taking the connection over
+     * @return raw connection output
+     * @throws IOException when writing fails
+     */
+    OutputStream takeOver(WebserverConnection connection) throws IOException {
+        checkNotCommitted();
+        this.connection = connection;
+        commit();
+        this.out.flush();
+        return this.out;
+    }
+
+    /**
+     * Get the event stream or WebSocket the connection was handed over to
+     *
+     * @return connection, null if the response is a regular one
+     */
+    WebserverConnection getConnection() {
+        return this.connection;
+    }
+
+    /**
+     * Closes the connection after this response if the server starts
+     * draining before the head is written
+     *
+     * @param draining whether the server is shutting down
+     */
+    void setDraining(BooleanSupplier draining) {
+        this.draining = draining;
+    }
+
+    /**
+     * Discards the status, headers and cookies set so far, so an error can be
+     * sent instead
+     */
+    void reset() {
+        checkNotCommitted();
+        this.status = 200;
+        this.contentLength = -1;
+        this.headers.clear();
+        this.cookies.clear();
+        this.keepAliveHeader = null;
+    }
+
+    private void checkNotCommitted() {
+        if (this.committed)
+            throw new IllegalStateException("response already committed");
+    }
+
+    private void commit() throws IOException {
+        if (this.committed)
+            return;
+        this.committed = true;
+
+        var noBody = this.status == 204 || this.status == 304 || this.status < 200;
+        if (!noBody && this.compression != null && this.connection == null)
+            startCompression();
+
+        // compressed bodies of known length are sent by finish, once their length is known
+        if (this.buffer == null) {
+            writeHead(noBody);
+            if (this.cachedBody != null && !this.head)
+                this.out.write(this.cachedBody);
+        }
+        if (this.crc != null)
+            this.body.writeCompressed(GZIP_HEADER, 0, GZIP_HEADER.length);
+    }
+
+    private void startCompression() throws IOException {
+        if (!WebserverCompression.isCompressible(getHeader("Content-Type")) || getHeader("Content-Encoding") != null || getHeader("Content-Range") != null)
+            return;
+
+        var vary = getHeader("Vary");
+        if (vary == null)
+            this.headers.add(new String[]{"Vary", "Accept-Encoding"});
+        else if (!vary.toLowerCase().contains("accept-encoding"))
+            replaceHeader("Vary", vary + ", Accept-Encoding");
+
+        if (this.contentLength == 0 || this.contentLength != -1 && this.contentLength < this.compression.getMinSize())
+            return;
+        this.encoding = WebserverCompression.negotiate(this.request.getHeader("accept-encoding"));
+        if (this.encoding == null)
+            return;
+
+        this.headers.add(new String[]{"Content-Encoding", this.encoding});
+        var eTag = getHeader("ETag");
+        if (eTag != null && !eTag.startsWith("W/")) {
+            // the compressed representation is not byte-identical to the entity the tag was made for
+            eTag = "W/" + eTag;
+            replaceHeader("ETag", eTag);
+        }
+
+        if (eTag != null && this.compression.isCacheEnabled()) {
+            this.cacheKey = this.encoding + " " + this.request.getPath() + " " + eTag;
+            this.cachedBody = this.compression.getCached(this.cacheKey);
+            if (this.cachedBody != null) {
+                this.contentLength = this.cachedBody.length;
+                return;
+            }
+        }
+
+        if (this.head) {
+            // the compressed length is unknown without compressing
+            this.contentLength = -1;
+            return;
+        }
+
+        this.deflater = this.compression.borrow(this.encoding);
+        this.deflated = new byte[8192];
+        if (this.contentLength != -1 && this.contentLength <= WebserverCompression.MAX_BUFFERED_SIZE) {
+            this.buffer = new ByteArrayOutputStream((int) this.contentLength / 2 + 64);
+        } else {
+            this.contentLength = -1;
+            this.cacheKey = null;
+        }
+        if (this.encoding.equals(WebserverCompression.GZIP))
+            this.crc = new CRC32();
+    }
+
+    private void replaceHeader(String name, String value) {
+        for (var header : this.headers) {
+            if (header[0].equalsIgnoreCase(name))
+                header[1] = value;
+        }
+    }
+
+    private void writeHead(boolean noBody) throws IOException {
+        if (this.keepAlive && this.draining != null && this.draining.getAsBoolean())
+            this.keepAlive = false;
+        if (this.contentLength == -1 && !noBody) {
+            if (this.chunkedAllowed && !this.head && this.connection == null)
+                this.chunked = true;
+            else if (!this.head)
+                this.keepAlive = false;
+        }
+
+        if (this.out instanceof WebserverHeadOutput) {
+            // HTTP/2 frames the body itself and has no connection headers
+            var fields = new ArrayList<String[]>(this.headers.size() + this.cookies.size() + 2);
+            fields.add(new String[]{"server", "lhdf"});
+            fields.addAll(this.headers);
+            if (this.contentLength != -1 && !noBody)
+                fields.add(new String[]{"content-length", Long.toString(this.contentLength)});
+            this.cookies.forEach((name, value) -> fields.add(new String[]{"set-cookie", name + "=" + value}));
+            ((WebserverHeadOutput) this.out).writeHead(this.status, fields);
+            return;
+        }
+
+        var builder = new StringBuilder(256);
+        builder.append("HTTP/1.1 ").append(this.status).append(' ').append(REASONS.getOrDefault(this.status, "Unknown")).append("\r\nServer: lhdf\r\n");
+        if (this.status == 101) {
+            builder.append("Connection: Upgrade\r\n");
+        } else if (this.keepAlive) {
+            builder.append("Connection: keep-alive\r\n");
+            if (this.keepAliveHeader != null)
+                builder.append("Keep-Alive: ").append(this.keepAliveHeader).append("\r\n");
+        } else {
+            builder.append("Connection: close\r\n");
+        }
+        for (var header : this.headers)
+            builder.append(header[0]).append(": ").append(header[1]).append("\r\n");
+        if (this.chunked)
+            builder.append("Transfer-Encoding: chunked\r\n");
+        else if (this.contentLength != -1 && !noBody)
+            builder.append("Content-Length: ").append(this.contentLength).append("\r\n");
+        this.cookies.forEach((name, value) -> builder.append("Set-Cookie: ").append(name).append("=").append(value).append("\r\n"));
+        builder.append("\r\n");
+
+        this.out.write(builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private class BodyOutputStream extends OutputStream {
+
+        private final byte[] chunk = new byte[8192];
+        private int chunkLength;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (finished)
+                throw new IOException("response already finished");
+            commit();
+            if (head || length == 0 || cachedBody != null)
+                return;
+            if (deflater != null) {
+                if (crc != null)
+                    crc.update(bytes, offset, length);
+                deflater.setInput(bytes, offset, length);
+                while (!deflater.needsInput())
+                    deflate(Deflater.NO_FLUSH);
+                return;
+            }
+            writeRaw(bytes, offset, length);
+        }
+
+        private void writeRaw(byte[] bytes, int offset, int length) throws IOException {
+            if (!chunked) {
+                out.write(bytes, offset, length);
+                return;
+            }
+
+            if (chunkLength + length <= chunk.length) {
+                System.arraycopy(bytes, offset, chunk, chunkLength, length);
+                chunkLength += length;
+                return;
+            }
+            flushChunk();
+            if (length < chunk.length) {
+                System.arraycopy(bytes, offset, chunk, 0, length);
+                chunkLength = length;
+            } else {
+                writeChunk(bytes, offset, length);
+            }
+        }
+
+        private void transfer(FileChannel channel, long position, long count) throws IOException {
+            if (finished)
+                throw new IOException("response already finished");
+            commit();
+            if (head || count == 0 || cachedBody != null)
+                return;
+            if (!chunked && deflater == null && isZeroCopy()) {
+                ((WebserverChannelOutput) out).transferFrom(channel, position, count);
+                return;
+            }
+
+            var buffer = ByteBuffer.allocate((int) Math.min(count, 65536));
+            var end = position + count;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                var read = channel.read(buffer, position);
+                if (read == -1)
+                    throw new EOFException("file shorter than expected");
+                position += read;
+                write(buffer.array(), 0, read);
+            }
+        }
+
+        private int deflate(int flush) throws IOException {
+            var count = deflater.deflate(deflated, 0, deflated.length, flush);
+            if (count > 0)
+                writeCompressed(deflated, 0, count);
+            return count;
+        }
+
+        private void writeCompressed(byte[] bytes, int offset, int length) throws IOException {
+            if (buffer != null)
+                buffer.write(bytes, offset, length);
+            else
+                writeRaw(bytes, offset, length);
+        }
+
+        private void finishCompression() throws IOException {
+            deflater.finish();
+            while (!deflater.finished())
+                deflate(Deflater.NO_FLUSH);
+            if (crc != null) {
+                var trailer = new byte[8];
+                writeIntLE(trailer, 0, crc.getValue());
+                writeIntLE(trailer, 4, deflater.getBytesRead());
+                writeCompressed(trailer, 0, trailer.length);
+            }
+            compression.release(encoding, deflater);
+            deflater = null;
+        }
+
+        private void writeIntLE(byte[] bytes, int offset, long value) {
+            for (var i = 0; i < 4; i++)
+                bytes[offset + i] = (byte) (value >>> (i * 8));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            commit();
+            // push what was compressed so far, so streamed responses reach the client
+            if (deflater != null && buffer == null) {
+                int count;
+                do {
+                    count = deflate(Deflater.SYNC_FLUSH);
+                } while (count == deflated.length);
+            }
+            flushChunk();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            out.flush();
+        }
+
+        private void flushChunk() throws IOException {
+            if (chunkLength > 0) {
+                writeChunk(chunk, 0, chunkLength);
+                chunkLength = 0;
+            }
+        }
+
+        private void writeChunk(byte[] bytes, int offset, int length) throws IOException {
+            out.write(Integer.toHexString(length).getBytes(StandardCharsets.ISO_8859_1));
+            out.write(CRLF);
+            out.write(bytes, offset, length);
+            out.write(CRLF);
+        }
+    }
+}
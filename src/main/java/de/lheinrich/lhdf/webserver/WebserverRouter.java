@@ -0,0 +1,361 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class WebserverRouter {
+
+    final static String ANY = "*";
+
+    private final List<Route> routes = new ArrayList<>();
+    private final Map<String, WebserverHandler> names = new TreeMap<>();
+    private volatile Snapshot snapshot = new Snapshot(new Node(), Collections.emptyMap(), 0);
+
+    /**
+     * Adds or replaces a route
+     *
+     * @param method  request method (any = "*")
+     * @param pattern path pattern, for example /users/{id} or /static/*
+     * @param handler WebserverHandler instance
+     */
+    synchronized void register(String method, String pattern, WebserverHandler handler) {
+        var route = new Route(method.toUpperCase(), normalize(pattern), handler);
+        this.routes.removeIf(existing -> existing.method.equals(route.method) && existing.pattern.equals(route.pattern));
+        this.routes.add(route);
+        compile();
+    }
+
+    /**
+     * Removes a route
+     *
+     * @param method  request method (any = "*")
+     * @param pattern path pattern as registered
+     */
+    synchronized void unregister(String method, String pattern) {
+        var upperMethod = method.toUpperCase();
+        var normalized = normalize(pattern);
+        this.routes.removeIf(existing -> existing.method.equals(upperMethod) && existing.pattern.equals(normalized));
+        compile();
+    }
+
+    /**
+     * Adds or replaces a flat handler name (case insensitive)
+     *
+     * @param name    handler name
+     * @param handler WebserverHandler instance
+     */
+    synchronized void registerName(String name, WebserverHandler handler) {
+        this.names.put(name.toLowerCase(), handler);
+        compile();
+    }
+
+    /**
+     * Removes a flat handler name
+     *
+     * @param name handler name
+     */
+    synchronized void unregisterName(String name) {
+        this.names.remove(name.toLowerCase());
+        compile();
+    }
+
+    /**
+     * Finds the handler for a request and stores the matched route in it
+     *
+     * @param request request to route
+     * @return handler, null if neither a route nor a name matches
+     */
+    WebserverHandler route(WebserverRequest request) {
+        var current = this.snapshot;
+        var path = request.getPath();
+
+        // static routes are matched without allocating, parameters need a second walk recording their bounds
+        int[] bounds = null;
+        var route = match(current.root, request.getMethod(), path, 0, null, 0);
+        if (route != null && route.paramNames.length > 0) {
+            bounds = new int[current.maxParams * 2];
+            route = match(current.root, request.getMethod(), path, 0, bounds, 0);
+        }
+        if (route == null && current.root.hasRoutes) {
+            // the path exists, but not for this method
+            route = match(current.root, null, path, 0, null, 0);
+            if (route != null) {
+                request.setRoute(route.pattern, null, null, route.allow);
+                return null;
+            }
+        }
+        if (route != null) {
+            request.setRoute(route.pattern, route.paramNames, bounds, null);
+            return route.handler;
+        }
+
+        var handlerName = request.getHandlerName();
+        var handler = current.names.get(handlerName);
+        if (handler != null)
+            return handler;
+        return current.names.get("not found");
+    }
+
+    /**
+     * Names the route a request was dispatched to, for metrics
+     *
+     * @param request routed request
+     * @return pattern of the matched route, the handler name or "not found"
+     */
+    String label(WebserverRequest request) {
+        if (request.getRoute() != null)
+            return request.getRoute();
+        var handlerName = request.getHandlerName();
+        return this.snapshot.names.containsKey(handlerName) ? handlerName : "not found";
+    }
+
+    private void compile() {
+        var root = new Node();
+        var maxParams = 0;
+        for (var route : this.routes) {
+            var node = root;
+            for (var segment : route.segments) {
+                if (segment.equals("*"))
+                    break;
+                if (segment.startsWith("{") && segment.endsWith("}")) {
+                    if (node.param == null)
+                        node.param = new Node();
+                    node = node.param;
+                } else {
+                    node = node.child(segment);
+                }
+            }
+            if (route.wildcard)
+                node.wildcards = add(node.wildcards, route);
+            else
+                node.routes = add(node.routes, route);
+            node.hasRoutes = true;
+            root.hasRoutes = true;
+            maxParams = Math.max(maxParams, route.paramNames.length);
+        }
+        root.complete();
+        this.snapshot = new Snapshot(root, new TreeMap<>(this.names), maxParams);
+    }
+
+    private static Route match(Node node, String method, String path, int position, int[] bounds, int param) {
+        var length = path.length();
+        while (position < length && path.charAt(position) == '/')
+            position++;
+
+        if (position == length) {
+            var route = find(node.routes, method);
+            if (route == null && (route = find(node.wildcards, method)) != null && bounds != null) {
+                bounds[param * 2] = length;
+                bounds[param * 2 + 1] = length;
+            }
+            return route;
+        }
+
+        var end = path.indexOf('/', position);
+        if (end == -1)
+            end = length;
+
+        var child = node.find(path, position, end);
+        if (child != null) {
+            var route = match(child, method, path, end, bounds, param);
+            if (route != null)
+                return route;
+        }
+
+        if (node.param != null) {
+            var route = match(node.param, method, path, end, bounds, param + 1);
+            if (route != null) {
+                if (bounds != null) {
+                    bounds[param * 2] = position;
+                    bounds[param * 2 + 1] = end;
+                }
+                return route;
+            }
+        }
+
+        var route = find(node.wildcards, method);
+        if (route != null && bounds != null) {
+            bounds[param * 2] = position;
+            bounds[param * 2 + 1] = length;
+        }
+        return route;
+    }
+
+    private static Route find(Route[] routes, String method) {
+        if (routes == null)
+            return null;
+        if (method == null)
+            return routes[0];
+
+        Route any = null;
+        Route get = null;
+        for (var route : routes) {
+            if (route.method.equals(method))
+                return route;
+            if (route.method.equals(ANY))
+                any = route;
+            else if (route.method.equals("GET"))
+                get = route;
+        }
+        if (any != null)
+            return any;
+        return method.equals("HEAD") ? get : null;
+    }
+
+    private static Route[] add(Route[] routes, Route route) {
+        if (routes == null)
+            return new Route[]{route};
+        var result = Arrays.copyOf(routes, routes.length + 1);
+        result[routes.length] = route;
+        return result;
+    }
+
+    private static String normalize(String pattern) {
+        var builder = new StringBuilder();
+        for (var segment : pattern.split("/")) {
+            if (!segment.isEmpty())
+                builder.append('/').append(segment);
+        }
+        return builder.length() == 0 ? "/" : builder.toString();
+    }
+
+    static class Route {
+
+        private final String method;
+        private final String pattern;
+        private final WebserverHandler handler;
+        private final String[] segments;
+        private final String[] paramNames;
+        private final boolean wildcard;
+        private String allow;
+
+        private Route(String method, String pattern, WebserverHandler handler) {
+            this.method = method;
+            this.pattern = pattern;
+            this.handler = handler;
+            this.segments = pattern.equals("/") ? new String[0] : pattern.substring(1).split("/");
+
+            var paramNames = new ArrayList<String>();
+            for (var i = 0; i < this.segments.length; i++) {
+                var segment = this.segments[i];
+                if (segment.equals("*") && i != this.segments.length - 1)
+                    throw new IllegalArgumentException("wildcard must be the last segment: " + pattern);
+                if (segment.startsWith("{") && segment.endsWith("}"))
+                    paramNames.add(segment.substring(1, segment.length() - 1));
+                else if (segment.equals("*"))
+                    paramNames.add("*");
+            }
+            this.paramNames = paramNames.toArray(new String[0]);
+            this.wildcard = this.segments.length > 0 && this.segments[this.segments.length - 1].equals("*");
+        }
+    }
+
+    private static class Node {
+
+        private final Map<String, Node> building = new TreeMap<>();
+        private String[] keys;
+        private Node[] children;
+        private Node param;
+        private Route[] routes;
+        private Route[] wildcards;
+        private boolean hasRoutes;
+
+        private Node child(String segment) {
+            return this.building.computeIfAbsent(segment, key -> new Node());
+        }
+
+        private void complete() {
+            // sorted arrays, searched by comparing the path in place
+            this.keys = this.building.keySet().toArray(new String[0]);
+            this.children = this.building.values().toArray(new Node[0]);
+            this.building.clear();
+            for (var child : this.children)
+                child.complete();
+            if (this.param != null)
+                this.param.complete();
+
+            var methods = new TreeSet<String>();
+            for (var routes : new Route[][]{this.routes, this.wildcards}) {
+                if (routes != null) {
+                    for (var route : routes)
+                        methods.add(route.method);
+                }
+            }
+            if (methods.contains("GET"))
+                methods.add("HEAD");
+            var allow = String.join(", ", methods);
+            for (var routes : new Route[][]{this.routes, this.wildcards}) {
+                if (routes != null) {
+                    for (var route : routes)
+                        route.allow = allow;
+                }
+            }
+        }
+
+        private Node find(String path, int start, int end) {
+            var low = 0;
+            var high = this.keys.length - 1;
+            while (low <= high) {
+                var middle = (low + high) >>> 1;
+                var compare = compare(this.keys[middle], path, start, end);
+                if (compare < 0)
+                    low = middle + 1;
+                else if (compare > 0)
+                    high = middle - 1;
+                else
+                    return this.children[middle];
+            }
+            return null;
+        }
+
+        private static int compare(String key, String path, int start, int end) {
+            var length = Math.min(key.length(), end - start);
+            for (var i = 0; i < length; i++) {
+                var difference = key.charAt(i) - path.charAt(start + i);
+                if (difference != 0)
+                    return difference;
+            }
+            return key.length() - (end - start);
+        }
+    }
+
+    private static class Snapshot {
+
+        private final Node root;
+        private final Map<String, WebserverHandler> names;
+        private final int maxParams;
+
+        private Snapshot(Node root, Map<String, WebserverHandler> names, int maxParams) {
+            this.root = root;
+            this.names = names;
+            this.maxParams = maxParams;
+        }
+    }
+}
@@ -0,0 +1,697 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class WebserverSelector {
+
+    private final static int MAX_PENDING = 256 * 1024;
+
+    private final Webserver webserver;
+    private final ExecutorService executor;
+    private final WebserverSockets sockets;
+    private final List<ServerSocketChannel> serverChannels;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger open = new AtomicInteger();
+
+    /**
+     * Starts the event loops accepting on bound channels, channel i is
+     * accepted by loop i modulo the number of loops
+     *
+     * @param webserver      web server the requests are dispatched to
+     * @param executor       executor handlers are run on
+     * @param sockets        options of accepted connections
+     * @param serverChannels bound listening channels
+     * @param threads        number of event loops
+     * @throws IOException when a selector can not be opened
+     */
+    WebserverSelector(Webserver webserver, ExecutorService executor, WebserverSockets sockets, List<ServerSocketChannel> serverChannels, int threads) throws IOException {
+        this.webserver = webserver;
+        this.executor = executor;
+        this.sockets = sockets;
+        this.serverChannels = serverChannels;
+
+        loops = new EventLoop[threads];
+        for (var i = 0; i < threads; i++)
+            loops[i] = new EventLoop("lhdf-selector-" + i);
+
+        for (var i = 0; i < serverChannels.size(); i++) {
+            var serverChannel = serverChannels.get(i);
+            var loop = loops[i % threads];
+            serverChannel.configureBlocking(false);
+            loop.execute(() -> {
+                try {
+                    serverChannel.register(loop.selector, SelectionKey.OP_ACCEPT);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            });
+        }
+        for (var loop : loops)
+            loop.thread.start();
+    }
+
+    /**
+     * Closes the port and all connections
+     */
+    void close() {
+        closeChannels();
+        for (var loop : loops)
+            loop.close();
+    }
+
+    /**
+     * Closes the port and idle keep-alive connections, the others are closed
+     * once their response is written
+     */
+    void drain() {
+        closeChannels();
+        for (var loop : loops)
+            loop.execute(loop::closeIdle);
+    }
+
+    /**
+     * Get the number of connections still serving HTTP/1.1, without event
+     * streams, WebSockets and connections handed over to HTTP/2
+     *
+     * @return open connections
+     */
+    int getOpenConnections() {
+        return open.get();
+    }
+
+    private void closeChannels() {
+        for (var serverChannel : serverChannels) {
+            try {
+                serverChannel.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    private void accept(EventLoop acceptor, ServerSocketChannel serverChannel) {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                try {
+                    sockets.configure(channel);
+                } catch (IOException ex) {
+                    webserver.getMetrics().error("socket");
+                    acceptor.close(channel);
+                    continue;
+                }
+                // balanced by SO_REUSEPORT when every loop accepts, saving the hand-off
+                if (serverChannels.size() >= loops.length) {
+                    acceptor.register(channel);
+                } else {
+                    var loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                    var finalChannel = channel;
+                    loop.execute(() -> loop.register(finalChannel));
+                }
+            }
+        } catch (IOException ex) {
+            if (serverChannel.isOpen())
+                webserver.getMetrics().error("accept");
+        }
+    }
+
+    private class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private EventLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void register(SocketChannel channel) {
+            var admission = webserver.getAdmission();
+            String clientIp;
+            try {
+                clientIp = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+            } catch (IOException ex) {
+                close(channel);
+                return;
+            }
+            if (!admission.open(clientIp)) {
+                webserver.getMetrics().error("overload");
+                try {
+                    // a fresh socket buffer takes the short response without blocking
+                    channel.write(ByteBuffer.wrap(admission.getRejection()));
+                    channel.shutdownOutput();
+                } catch (IOException ex) {
+                }
+                close(channel);
+                return;
+            }
+
+            var connection = new Connection(this, channel, clientIp, admission);
+            try {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException ex) {
+                admission.close(clientIp);
+                close(channel);
+            }
+        }
+
+        private void close(SocketChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+            }
+        }
+
+        private void closeIdle() {
+            for (var key : selector.keys()) {
+                if (key.attachment() instanceof Connection && ((Connection) key.attachment()).isIdle())
+                    ((Connection) key.attachment()).close();
+            }
+        }
+
+        private void close() {
+            execute(() -> {
+                for (var key : selector.keys()) {
+                    if (key.attachment() instanceof Connection)
+                        ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            var lastCheck = System.currentTimeMillis();
+            try {
+                while (selector.isOpen()) {
+                    selector.select(1000);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+                    if (!selector.isOpen())
+                        break;
+
+                    var keys = selector.selectedKeys();
+                    for (var key : keys) {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable()) {
+                            accept(this, (ServerSocketChannel) key.channel());
+                            continue;
+                        }
+                        var connection = (Connection) key.attachment();
+                        if (key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.write();
+                    }
+                    keys.clear();
+
+                    var now = System.currentTimeMillis();
+                    if (now - lastCheck >= 1000) {
+                        lastCheck = now;
+                        for (var key : selector.keys()) {
+                            if (key.attachment() instanceof Connection)
+                                ((Connection) key.attachment()).checkTimeout(now);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException ex) {
+            }
+        }
+    }
+
+    private class Connection {
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final String clientIp;
+        private final WebserverAdmission admission;
+        private final Queue<Object> output = new ConcurrentLinkedQueue<>();
+        private final Object outputLock = new Object();
+        private final WebserverMetrics metrics = webserver.getMetrics();
+        private final WebserverParser parser = new WebserverParser(Webserver.MAX_HEAD_SIZE, webserver.getUploads());
+        private SelectionKey key;
+        private ByteBuffer input = ByteBuffer.allocate(8192).flip();
+        private long pending;
+        private volatile boolean closed;
+        private boolean detached;
+        private int served;
+        private boolean processing;
+        private boolean keepAlive = true;
+        private WebserverConnection upgraded;
+        private long lastActive = System.currentTimeMillis();
+        private boolean counted = true;
+
+        private Connection(EventLoop loop, SocketChannel channel, String clientIp, WebserverAdmission admission) {
+            this.loop = loop;
+            this.channel = channel;
+            this.clientIp = clientIp;
+            this.admission = admission;
+            metrics.connectionOpened();
+            open.incrementAndGet();
+        }
+
+        private void uncount() {
+            if (counted) {
+                counted = false;
+                open.decrementAndGet();
+            }
+        }
+
+        private boolean isIdle() {
+            return !processing && upgraded == null && !detached && output.isEmpty() && parser.isIdle() && served > 0;
+        }
+
+        private void read() {
+            try {
+                input.compact();
+                if (!input.hasRemaining())
+                    input = ByteBuffer.allocate(input.capacity() * 2).put(input.flip());
+
+                var read = channel.read(input);
+                input.flip();
+                if (read == -1) {
+                    close();
+                    return;
+                }
+                metrics.bytesReceived(read);
+                lastActive = System.currentTimeMillis();
+
+                if (upgraded != null)
+                    receive();
+                else
+                    process();
+            } catch (IOException ex) {
+                metrics.error("socket");
+                close();
+            }
+        }
+
+        private void process() {
+            WebserverRequest request;
+            try {
+                request = parser.parse(input);
+            } catch (WebserverException ex) {
+                var error = new ByteArrayOutputStream();
+                try {
+                    Webserver.writeError(error, ex);
+                } catch (IOException ignore) {
+                }
+                keepAlive = false;
+                enqueue(ByteBuffer.wrap(error.toByteArray()));
+                write();
+                return;
+            }
+
+            if (request == null) {
+                if (parser.expectsContinue()) {
+                    enqueue(ByteBuffer.wrap(Webserver.CONTINUE));
+                    write();
+                }
+                if (key.isValid())
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                return;
+            }
+
+            request.setClientIp(clientIp);
+            if (webserver.isHttp2Request(request, false)) {
+                detach(request);
+                return;
+            }
+
+            if (!admission.enqueue()) {
+                reject();
+                return;
+            }
+
+            // pipelined requests stay buffered until this one is answered
+            processing = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            var number = ++served;
+            var queuedAt = System.nanoTime();
+            try {
+                executor.execute(() -> {
+                    if (!admission.dequeue(queuedAt)) {
+                        loop.execute(() -> {
+                            processing = false;
+                            reject();
+                        });
+                        return;
+                    }
+                    // asynchronous handlers release this worker, the response completes on another
+                    var out = new ConnectionOutputStream();
+                    webserver.respondAsync(request, number, out).whenComplete((response, failure) -> {
+                        try {
+                            if (failure == null) {
+                                out.flush();
+                                if (response != null && response.getConnection() != null)
+                                    loop.execute(() -> upgrade(response.getConnection()));
+                                else
+                                    loop.execute(() -> complete(response != null && response.isKeepAlive()));
+                                return;
+                            }
+                            if (!closed)
+                                failure.printStackTrace();
+                        } catch (IOException | RuntimeException ex) {
+                            if (!closed)
+                                ex.printStackTrace();
+                        }
+                        loop.execute(this::close);
+                    });
+                });
+            } catch (RejectedExecutionException ex) {
+                admission.dequeue(queuedAt);
+                close();
+            }
+        }
+
+        private void reject() {
+            metrics.error("overload");
+            keepAlive = false;
+            enqueue(ByteBuffer.wrap(admission.getRejection()));
+            write();
+        }
+
+        private void detach(WebserverRequest request) {
+            // HTTP/2 multiplexes streams itself, the connection leaves the event loop and is served blocking
+            processing = true;
+            key.cancel();
+            loop.execute(() -> {
+                try {
+                    // the key is deregistered by the select before tasks run
+                    channel.configureBlocking(true);
+                    // the connection is read as long as it is open, its streams run on the executor
+                    webserver.getConnectionExecutor().execute(() -> {
+                        try {
+                            webserver.serveDetached(channel.socket(), input, request);
+                        } finally {
+                            admission.close(clientIp);
+                        }
+                    });
+                    detached = true;
+                    uncount();
+                } catch (IOException | RejectedExecutionException ex) {
+                    close();
+                }
+            });
+        }
+
+        private void upgrade(WebserverConnection connection) {
+            // an event stream or WebSocket, it stays on the event loop without blocking a worker
+            upgraded = connection;
+            processing = false;
+            uncount();
+            if (!key.isValid() || !connection.attach(webserver.getConnectionExecutor(), () -> loop.execute(this::close))) {
+                close();
+                return;
+            }
+            receive();
+        }
+
+        private void receive() {
+            if (!input.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                return;
+            }
+
+            // messages of one connection are handled one after another
+            processing = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            try {
+                executor.execute(() -> {
+                    upgraded.receive(input);
+                    loop.execute(() -> {
+                        processing = false;
+                        if (key.isValid())
+                            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    });
+                });
+            } catch (RejectedExecutionException ex) {
+                close();
+            }
+        }
+
+        private void complete(boolean keep) {
+            keepAlive = keep;
+            processing = false;
+            lastActive = System.currentTimeMillis();
+            write();
+        }
+
+        private void enqueue(ByteBuffer buffer) {
+            synchronized (outputLock) {
+                pending += buffer.remaining();
+            }
+            output.add(buffer);
+        }
+
+        private void write() {
+            if (!key.isValid())
+                return;
+            try {
+                Object item;
+                while ((item = output.peek()) != null) {
+                    long written;
+                    boolean done;
+                    if (item instanceof FileRegion) {
+                        var region = (FileRegion) item;
+                        written = region.channel.transferTo(region.position, region.remaining, channel);
+                        region.position += written;
+                        region.remaining -= written;
+                        if (written == 0 && region.position >= region.channel.size())
+                            throw new EOFException("file shorter than expected");
+                        done = region.remaining == 0;
+                    } else {
+                        var buffer = (ByteBuffer) item;
+                        written = channel.write(buffer);
+                        done = !buffer.hasRemaining();
+                    }
+
+                    if (written > 0) {
+                        metrics.bytesSent(written);
+                        lastActive = System.currentTimeMillis();
+                        synchronized (outputLock) {
+                            pending -= written;
+                            outputLock.notifyAll();
+                        }
+                    }
+                    if (!done) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    output.poll();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+                // a worker is still writing the response
+                if (processing || upgraded != null)
+                    return;
+                if (!keepAlive) {
+                    close();
+                    return;
+                }
+                process();
+            } catch (IOException ex) {
+                metrics.error("socket");
+                close();
+            }
+        }
+
+        private void checkTimeout(long now) {
+            // a response begun before shutdown may have kept the connection alive
+            if (webserver.isDraining() && isIdle()) {
+                close();
+                return;
+            }
+            // handlers may compute as long as they need, but a stalled client is dropped
+            if ((processing || upgraded != null) && output.isEmpty())
+                return;
+            var idle = output.isEmpty() && parser.isIdle() && served > 0 ? webserver.getKeepAliveTimeout() : webserver.getTimeout();
+            if (idle > 0 && now - lastActive > idle * 1000L) {
+                metrics.error("timeout");
+                close();
+            }
+        }
+
+        private void close() {
+            // the worker serving a detached connection closes it
+            if (closed || detached)
+                return;
+            closed = true;
+            uncount();
+            metrics.connectionClosed();
+            admission.close(clientIp);
+            parser.discard();
+            synchronized (outputLock) {
+                outputLock.notifyAll();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+            }
+            if (upgraded != null) {
+                // handlers are notified on a worker, not on the event loop
+                try {
+                    executor.execute(upgraded::closed);
+                } catch (RejectedExecutionException ex) {
+                    upgraded.closed();
+                }
+            }
+        }
+
+        private class ConnectionOutputStream extends OutputStream implements WebserverChannelOutput, WebserverSharedOutput {
+
+            private byte[] buffer = new byte[8192];
+            private int length;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (length == buffer.length)
+                    flush();
+                buffer[length++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int count) throws IOException {
+                if (count >= buffer.length) {
+                    flush();
+                    send(ByteBuffer.wrap(Arrays.copyOfRange(bytes, offset, offset + count)));
+                    return;
+                }
+                if (length + count > buffer.length)
+                    flush();
+                System.arraycopy(bytes, offset, buffer, length, count);
+                length += count;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (length > 0) {
+                    send(ByteBuffer.wrap(buffer, 0, length));
+                    buffer = new byte[8192];
+                    length = 0;
+                }
+            }
+
+            @Override
+            public void transferFrom(FileChannel file, long position, long count) throws IOException {
+                flush();
+                if (closed)
+                    throw new IOException("connection closed");
+
+                // the caller may close the file on return, so wait until it was sent
+                var region = new FileRegion(file, position, count);
+                synchronized (outputLock) {
+                    pending += count;
+                }
+                output.add(region);
+                loop.execute(Connection.this::write);
+                synchronized (outputLock) {
+                    while (region.remaining > 0 && !closed) {
+                        try {
+                            outputLock.wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("interrupted");
+                        }
+                    }
+                }
+                if (closed)
+                    throw new IOException("connection closed");
+            }
+
+            @Override
+            public void writeShared(byte[] bytes) throws IOException {
+                flush();
+                send(ByteBuffer.wrap(bytes));
+            }
+
+            private void send(ByteBuffer bytes) throws IOException {
+                if (closed)
+                    throw new IOException("connection closed");
+                enqueue(bytes);
+                loop.execute(Connection.this::write);
+
+                // backpressure: the worker waits while the client reads slowly
+                synchronized (outputLock) {
+                    while (pending > MAX_PENDING && !closed) {
+                        try {
+                            outputLock.wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("interrupted");
+                        }
+                    }
+                }
+                if (closed)
+                    throw new IOException("connection closed");
+            }
+        }
+    }
+
+    private static class FileRegion {
+
+        private final FileChannel channel;
+        private volatile long position;
+        private volatile long remaining;
+
+        private FileRegion(FileChannel channel, long position, long remaining) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = remaining;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package de.lheinrich.lhdf.webserver;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class WebserverSockets {
+
+    private final int backlog;
+    private final int acceptors;
+    private final boolean tcpNoDelay;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final int fastOpen;
+
+    WebserverSockets(WebserverBuilder builder) {
+        this.backlog = builder.backlog;
+        this.acceptors = builder.acceptors;
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.sendBufferSize = builder.sendBufferSize;
+        this.receiveBufferSize = builder.receiveBufferSize;
+        this.fastOpen = builder.fastOpen;
+    }
+
+    int getAcceptors() {
+        return this.acceptors;
+    }
+
+    /**
+     * Binds listening channels, one per acceptor when SO_REUSEPORT is
+     * supported, otherwise a single channel
+     *
+     * @param port      where to bind (any free port = 0)
+     * @param acceptors wanted number of channels
+     * @return bound channels in blocking mode
+     * @throws IOException when the port is used
+     */
+    List<ServerSocketChannel> bind(int port, int acceptors) throws IOException {
+        var channels = new ArrayList<ServerSocketChannel>(acceptors);
+        try {
+            do {
+                var channel = ServerSocketChannel.open();
+                channels.add(channel);
+                var reusePort = acceptors > 1 && channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+                configure(channel, reusePort);
+                channel.bind(new InetSocketAddress(port), this.backlog);
+                // an ephemeral port is shared by the following channels
+                port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+                if (!reusePort)
+                    break;
+            } while (channels.size() < acceptors);
+        } catch (IOException ex) {
+            for (var channel : channels)
+                channel.close();
+            throw ex;
+        }
+        return channels;
+    }
+
+    /**
+     * Binds listening TLS sockets, one per acceptor when SO_REUSEPORT is
+     * supported, otherwise a single socket
+     *
+     * @param factory   factory of the SSL context
+     * @param port      where to bind (any free port = 0)
+     * @param acceptors wanted number of sockets
+     * @return bound sockets
+     * @throws IOException when the port is used
+     */
+    List<SSLServerSocket> bind(SSLServerSocketFactory factory, int port, int acceptors) throws IOException {
+        var sockets = new ArrayList<SSLServerSocket>(acceptors);
+        try {
+            do {
+                var socket = (SSLServerSocket) factory.createServerSocket();
+                sockets.add(socket);
+                var reusePort = acceptors > 1 && socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+                socket.setReuseAddress(true);
+                if (reusePort)
+                    socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                if (this.receiveBufferSize > 0)
+                    socket.setReceiveBufferSize(this.receiveBufferSize);
+                var fastOpen = fastOpen(socket.supportedOptions());
+                if (fastOpen != null)
+                    socket.setOption(fastOpen, fastOpenValue(fastOpen));
+                socket.bind(new InetSocketAddress(port), this.backlog);
+                port = socket.getLocalPort();
+                if (!reusePort)
+                    break;
+            } while (sockets.size() < acceptors);
+        } catch (IOException ex) {
+            for (var socket : sockets)
+                socket.close();
+            throw ex;
+        }
+        return sockets;
+    }
+
+    /**
+     * Applies the options of accepted connections
+     *
+     * @param socket accepted connection
+     * @throws IOException when an option can not be set
+     */
+    void configure(Socket socket) throws IOException {
+        socket.setTcpNoDelay(this.tcpNoDelay);
+        if (this.sendBufferSize > 0)
+            socket.setSendBufferSize(this.sendBufferSize);
+    }
+
+    /**
+     * Applies the options of accepted connections
+     *
+     * @param channel accepted connection
+     * @throws IOException when an option can not be set
+     */
+    void configure(NetworkChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, this.tcpNoDelay);
+        if (this.sendBufferSize > 0)
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, this.sendBufferSize);
+    }
+
+    private void configure(ServerSocketChannel channel, boolean reusePort) throws IOException {
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (reusePort)
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        // inherited by accepted connections, it has to be set before the window scale is negotiated
+        if (this.receiveBufferSize > 0)
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, this.receiveBufferSize);
+        var fastOpen = fastOpen(channel.supportedOptions());
+        if (fastOpen != null)
+            channel.setOption(fastOpen, fastOpenValue(fastOpen));
+    }
+
+    @SuppressWarnings("unchecked")
+    private SocketOption<Object> fastOpen(Set<SocketOption<?>> supported) {
+        if (this.fastOpen <= 0)
+            return null;
+        // not a standard option, offered by some JDKs as an extended one
+        for (var option : supported) {
+            if (option.name().equals("TCP_FASTOPEN") && (option.type() == Integer.class || option.type() == Boolean.class))
+                return (SocketOption<Object>) option;
+        }
+        return null;
+    }
+
+    private Object fastOpenValue(SocketOption<Object> option) {
+        return Integer.class.equals(option.type()) ? (Object) this.fastOpen : Boolean.TRUE;
+    }
+}
@@ -0,0 +1,161 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class WebserverSpool extends OutputStream {
+
+    private final static byte[] EMPTY = new byte[0];
+
+    private final int threshold;
+    private final File directory;
+    private byte[] memory;
+    private long length;
+    private Path file;
+    private OutputStream fileOut;
+    private boolean owned = true;
+
+    /**
+     * Creates a spool, see WebserverUploads.newSpool
+     *
+     * @param threshold spool to a temp file above n bytes
+     * @param directory directory for temp files (system default = null)
+     * @param expected  expected size (unknown = 0)
+     */
+    WebserverSpool(int threshold, File directory, long expected) {
+        this.threshold = threshold;
+        this.directory = directory;
+        this.memory = expected > threshold ? EMPTY : new byte[(int) Math.max(expected, 256)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+        if (this.file == null && this.length + count > this.threshold)
+            spill();
+        if (this.file != null) {
+            this.fileOut.write(bytes, offset, count);
+        } else {
+            if (this.length + count > this.memory.length)
+                this.memory = Arrays.copyOf(this.memory, (int) Math.min(Math.max(this.length + count, this.memory.length * 2L), this.threshold));
+            System.arraycopy(bytes, offset, this.memory, (int) this.length, count);
+        }
+        this.length += count;
+    }
+
+    private void spill() throws IOException {
+        this.file = this.directory != null ? Files.createTempFile(this.directory.toPath(), "lhdf-", ".upload") : Files.createTempFile("lhdf-", ".upload");
+        this.fileOut = new BufferedOutputStream(Files.newOutputStream(this.file), 64 * 1024);
+        this.fileOut.write(this.memory, 0, (int) this.length);
+        this.memory = null;
+    }
+
+    /**
+     * Finishes writing, the spool can be read afterwards
+     *
+     * @throws IOException when the temp file can not be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.fileOut != null) {
+            this.fileOut.close();
+            this.fileOut = null;
+        }
+    }
+
+    long size() {
+        return this.length;
+    }
+
+    boolean isSpooled() {
+        return this.file != null;
+    }
+
+    /**
+     * Reads the content into memory
+     *
+     * @return content, the internal array when it has the exact size
+     * @throws IOException when the temp file can not be read
+     */
+    byte[] toBytes() throws IOException {
+        if (this.file != null) {
+            if (this.length > Integer.MAX_VALUE - 8)
+                throw new IOException("spooled content too large for memory: " + this.length + " bytes");
+            return Files.readAllBytes(this.file);
+        }
+        return this.memory.length == this.length ? this.memory : Arrays.copyOf(this.memory, (int) this.length);
+    }
+
+    InputStream openStream() throws IOException {
+        return this.file != null ? Files.newInputStream(this.file) : new ByteArrayInputStream(this.memory, 0, (int) this.length);
+    }
+
+    /**
+     * Moves the content to a file, the spool reads from there afterwards and
+     * does not delete it
+     *
+     * @param target file to write
+     * @throws IOException when the file can not be written
+     */
+    void moveTo(Path target) throws IOException {
+        close();
+        if (this.file != null) {
+            // a rename when both are on the same file system, otherwise a copy
+            Files.move(this.file, target, StandardCopyOption.REPLACE_EXISTING);
+            this.file = target;
+            this.owned = false;
+        } else {
+            Files.write(target, toBytes());
+        }
+    }
+
+    /**
+     * Deletes the temp file, if the content was spooled
+     */
+    void delete() {
+        try {
+            close();
+        } catch (IOException ex) {
+        }
+        if (this.file != null && this.owned) {
+            try {
+                Files.deleteIfExists(this.file);
+            } catch (IOException ex) {
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package de.lheinrich.lhdf.webserver;
+
+import java.io.File;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class WebserverUploads {
+
+    final static WebserverUploads DEFAULT = new WebserverUploads(Webserver.MAX_REQUEST_SIZE, 1024 * 1024, null);
+
+    private final long maxBodySize;
+    private final int threshold;
+    private final File directory;
+
+    /**
+     * Creates upload settings
+     *
+     * @param maxBodySize limit request bodies to n bytes
+     * @param threshold   bodies and parts above n bytes are spooled to a temp file
+     * @param directory   directory for temp files (system default = null)
+     */
+    WebserverUploads(long maxBodySize, int threshold, File directory) {
+        this.maxBodySize = maxBodySize;
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    long getMaxBodySize() {
+        return this.maxBodySize;
+    }
+
+    /**
+     * Creates a buffer for a body or part, held in memory up to the threshold
+     *
+     * @param expected expected size, to size the memory buffer (unknown = 0)
+     * @return empty spool, delete it when no longer needed
+     */
+    WebserverSpool newSpool(long expected) {
+        return new WebserverSpool(this.threshold, this.directory, expected);
+    }
+
+    /**
+     * Creates a buffer for a body held in memory up to the threshold or a
+     * lower limit of the caller
+     *
+     * @param expected  expected size, to size the memory buffer (unknown = 0)
+     * @param maxMemory spool to a temp file above n bytes at the latest
+     * @return empty spool, delete it when no longer needed
+     */
+    WebserverSpool newSpool(long expected, int maxMemory) {
+        return new WebserverSpool(Math.min(this.threshold, maxMemory), this.directory, expected);
+    }
+}
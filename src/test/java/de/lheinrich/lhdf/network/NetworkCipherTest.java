@@ -0,0 +1,146 @@
+package de.lheinrich.lhdf.network;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class NetworkCipherTest {
+
+    private final static String PEER = "peer";
+    private final static byte[] HEADER = {0, 0, 0, 1, 6};
+
+    private final SecretKey key = newKey();
+    private final byte[] clientSalt = NetworkCipher.salt();
+    private final byte[] serverSalt = NetworkCipher.salt();
+
+    @Test
+    void roundTripsWithAesGcm() throws IOException {
+        roundTrip(NetworkCipher.AES_GCM);
+    }
+
+    @Test
+    void roundTripsWithChaCha20Poly1305() throws IOException {
+        assumeTrue(NetworkCipher.isAvailable(NetworkCipher.CHACHA20_POLY1305));
+        roundTrip(NetworkCipher.CHACHA20_POLY1305);
+    }
+
+    @Test
+    void detectsTamperedMessages() throws IOException {
+        var client = cipher(NetworkCipher.AES_GCM, this.serverSalt, true);
+        var server = cipher(NetworkCipher.AES_GCM, this.serverSalt, false);
+
+        var sealed = client.seal(bytes("transfer 10"), HEADER);
+        sealed[3] ^= 1;
+        assertThrows(IOException.class, () -> server.open(sealed, HEADER));
+
+        // the frame header is authenticated as well
+        var other = cipher(NetworkCipher.AES_GCM, this.serverSalt, false);
+        var resealed = cipher(NetworkCipher.AES_GCM, this.serverSalt, true).seal(bytes("transfer 10"), HEADER);
+        assertThrows(IOException.class, () -> other.open(resealed, new byte[]{0, 0, 0, 2, 6}));
+    }
+
+    @Test
+    void rejectsReplayedAndReorderedMessages() throws IOException {
+        var client = cipher(NetworkCipher.AES_GCM, this.serverSalt, true);
+        var server = cipher(NetworkCipher.AES_GCM, this.serverSalt, false);
+
+        var first = client.seal(bytes("first"), HEADER);
+        var second = client.seal(bytes("second"), HEADER);
+        assertThrows(IOException.class, () -> server.open(second, HEADER));
+
+        var replay = cipher(NetworkCipher.AES_GCM, this.serverSalt, false);
+        assertArrayEquals(bytes("first"), replay.open(first, HEADER));
+        assertThrows(IOException.class, () -> replay.open(first, HEADER));
+    }
+
+    @Test
+    void derivesNewKeysForEveryServerSalt() throws IOException {
+        // a recorded handshake replayed to the server meets a new salt, the recorded messages do not open
+        var recorded = cipher(NetworkCipher.AES_GCM, this.serverSalt, true).seal(bytes("authentication"), null);
+        var replayed = cipher(NetworkCipher.AES_GCM, NetworkCipher.salt(), false);
+        assertThrows(IOException.class, () -> replayed.open(recorded, null));
+
+        // the same for the server sending with a reused client salt
+        var first = cipher(NetworkCipher.AES_GCM, this.serverSalt, false).seal(bytes("answer"), null);
+        var second = cipher(NetworkCipher.AES_GCM, NetworkCipher.salt(), false).seal(bytes("answer"), null);
+        assertFalse(Arrays.equals(first, second));
+    }
+
+    @Test
+    void bindsAlgorithmAndPeer() throws IOException {
+        var sealed = cipher(NetworkCipher.AES_GCM, this.serverSalt, true).seal(bytes("hello"), null);
+        var otherPeer = new NetworkCipher(NetworkCipher.AES_GCM, this.key, "other", this.clientSalt, this.serverSalt, false);
+        assertThrows(IOException.class, () -> otherPeer.open(sealed, null));
+
+        assertThrows(IOException.class, () -> cipher("AES/ECB/PKCS5Padding", this.serverSalt, true));
+        assertThrows(IOException.class, () -> new NetworkCipher(NetworkCipher.AES_GCM, this.key, PEER, new byte[4], this.serverSalt, true));
+    }
+
+    private void roundTrip(String algorithm) throws IOException {
+        var client = cipher(algorithm, this.serverSalt, true);
+        var server = cipher(algorithm, this.serverSalt, false);
+        assertEquals(algorithm, client.getAlgorithm());
+
+        for (var i = 0; i < 3; i++) {
+            var message = bytes("request " + i);
+            var sealed = client.seal(message, HEADER);
+            assertEquals(message.length + 16, sealed.length);
+            assertArrayEquals(message, server.open(sealed, HEADER));
+
+            var answer = bytes("response " + i);
+            assertArrayEquals(answer, client.open(server.seal(answer)));
+        }
+        // each direction has its own key
+        var echoed = client.seal(bytes("echo"));
+        assertThrows(IOException.class, () -> client.open(echoed));
+        assertTrue(server.open(echoed).length > 0);
+    }
+
+    private NetworkCipher cipher(String algorithm, byte[] serverSalt, boolean client) throws IOException {
+        return new NetworkCipher(algorithm, this.key, PEER, this.clientSalt, serverSalt, client);
+    }
+
+    private static SecretKey newKey() {
+        var key = new byte[16];
+        new SecureRandom().nextBytes(key);
+        return new SecretKeySpec(key, "AES");
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,154 @@
+package de.lheinrich.lhdf.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class NetworkCodecsTest {
+
+    @Test
+    void roundTripsScalars() throws IOException {
+        assertNull(roundTrip(null));
+        for (var value : new Object[]{true, false, (byte) -3, (short) 300, 'x', 42, -7L, 1.5f, 2.25, "héllo wörld", ""})
+            assertEquals(value, roundTrip(value));
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) roundTrip(new byte[]{1, 2, 3}));
+    }
+
+    @Test
+    void consumesBuffers() throws IOException {
+        var direct = ByteBuffer.allocateDirect(20000);
+        for (var i = 0; i < direct.capacity(); i++)
+            direct.put((byte) i);
+        direct.flip();
+
+        var decoded = (ByteBuffer) NetworkCodecs.decode(NetworkCodecs.encode(direct));
+        assertFalse(direct.hasRemaining());
+        assertEquals(direct.rewind(), decoded);
+    }
+
+    @Test
+    void keepsCollectionTypes() throws IOException {
+        var maps = List.<Map<Object, Object>>of(new HashMap<>(), new LinkedHashMap<>(), new TreeMap<>(), new ConcurrentHashMap<>(), new Hashtable<>(), new ConcurrentSkipListMap<>());
+        for (var map : maps) {
+            map.put("b", 2);
+            map.put("a", new ArrayList<>(List.of(1L, "x")));
+            var decoded = roundTrip(map);
+            assertEquals(map.getClass(), decoded.getClass());
+            assertEquals(map, decoded);
+        }
+
+        var lists = List.<List<Object>>of(new ArrayList<>(), new LinkedList<>(), new Vector<>(), new CopyOnWriteArrayList<>());
+        for (var list : lists) {
+            list.add("a");
+            list.add(null);
+            list.add(new HashMap<>(Map.of("k", 1)));
+            var decoded = roundTrip(list);
+            assertEquals(list.getClass(), decoded.getClass());
+            assertEquals(list, decoded);
+        }
+    }
+
+    @Test
+    void serializesOtherImplementations() throws IOException {
+        // the receiver gets the same class, not a substitute it cannot cast
+        var fixed = Arrays.asList("a", "b");
+        assertEquals(fixed.getClass(), roundTrip(fixed).getClass());
+        var immutable = List.of(1, 2);
+        assertEquals(immutable, roundTrip(immutable));
+
+        var reversed = new TreeMap<String, Integer>(Comparator.reverseOrder());
+        reversed.put("a", 1);
+        reversed.put("b", 2);
+        @SuppressWarnings("unchecked")
+        var decoded = (TreeMap<String, Integer>) roundTrip(reversed);
+        assertEquals("b", decoded.firstKey());
+    }
+
+    @Test
+    void usesRegisteredCodecs() throws IOException {
+        NetworkCodecs.register(250, Temperature.class, new NetworkCodec<Temperature>() {
+            @Override
+            public void write(DataOutput out, Temperature value) throws IOException {
+                out.writeDouble(value.celsius);
+            }
+
+            @Override
+            public Temperature read(DataInput in) throws IOException {
+                return new Temperature(in.readDouble());
+            }
+        });
+        var encoded = NetworkCodecs.encode(new Temperature(21.5));
+        assertEquals(9, encoded.length);
+        assertEquals(21.5, ((Temperature) NetworkCodecs.decode(encoded)).celsius);
+
+        assertThrows(IllegalArgumentException.class, () -> NetworkCodecs.register(16, Temperature.class, null));
+    }
+
+    @Test
+    void rejectsCorruptInput() {
+        // unknown tag, trailing bytes, negative size and a null key in a Hashtable
+        assertThrows(StreamCorruptedException.class, () -> NetworkCodecs.decode(new byte[]{31}));
+        assertThrows(StreamCorruptedException.class, () -> NetworkCodecs.decode(new byte[]{1, 1}));
+        assertThrows(StreamCorruptedException.class, () -> NetworkCodecs.decode(new byte[]{11, -1, -1, -1, -1}));
+        assertThrows(StreamCorruptedException.class, () -> NetworkCodecs.decode(new byte[]{19, 0, 0, 0, 1, 0, 0}));
+    }
+
+    private static Object roundTrip(Object value) throws IOException {
+        return NetworkCodecs.decode(NetworkCodecs.encode(value));
+    }
+
+    private static class Temperature {
+
+        private final double celsius;
+
+        private Temperature(double celsius) {
+            this.celsius = celsius;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package de.lheinrich.lhdf.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class NetworkHandlerTest {
+
+    @Test
+    void failsOutsideOfACall() {
+        var handler = new NetworkHandler() {
+            @Override
+            public void handle() {
+            }
+        };
+        assertThrows(IllegalStateException.class, handler::read);
+        assertThrows(IllegalStateException.class, () -> handler.write("value"));
+    }
+
+    @Test
+    void failsOnThreadsNotHandlingTheCall() throws Exception {
+        var failure = new AtomicReference<Throwable>();
+        var done = new CountDownLatch(1);
+        var handler = new NetworkHandler() {
+            @Override
+            public void handle() {
+                // another thread of the handler must not write into this call
+                var thread = new Thread(() -> {
+                    try {
+                        write("elsewhere");
+                    } catch (Throwable ex) {
+                        failure.set(ex);
+                    }
+                    done.countDown();
+                });
+                thread.start();
+            }
+        };
+
+        handler.init(new NetworkCall.Stream(null, null, null));
+        try {
+            handler.handle();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            handler.release();
+        }
+        assertEquals(IllegalStateException.class, failure.get().getClass());
+    }
+}
@@ -0,0 +1,81 @@
+package de.lheinrich.lhdf.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class NetworkServerTest {
+
+    @Test
+    void opensConnectionsOutsideOfTheLock() throws Exception {
+        // a peer that accepts but never answers the handshake
+        var accepted = new CopyOnWriteArrayList<Socket>();
+        try (var silent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            var acceptor = new Thread(() -> accept(silent, accepted));
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            var server = new NetworkServer("self", 0, "peer", "127.0.0.1", silent.getLocalPort(), "secret", null);
+            var start = System.nanoTime();
+            var first = server.<String>call("method", "a", 0);
+            var second = server.<String>call("method", "b", 0);
+            while (accepted.isEmpty())
+                Thread.sleep(10);
+            Thread.sleep(100);
+
+            // both calls wait for the same connection, neither the callers nor close wait for the handshake
+            assertEquals(1, accepted.size());
+            server.close();
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+            assertFalse(first.isDone());
+
+            for (var socket : accepted)
+                socket.close();
+            assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+            assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private static void accept(ServerSocket serverSocket, List<Socket> accepted) {
+        try {
+            while (true)
+                accepted.add(serverSocket.accept());
+        } catch (IOException ex) {
+            // closed by the test
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package de.lheinrich.lhdf.webserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class WebserverConnectionTest {
+
+    private final List<EventStream> streams = new CopyOnWriteArrayList<>();
+    private final CompletableFuture<String> later = new CompletableFuture<>();
+    private final List<Socket> clients = new ArrayList<>();
+    private Webserver webserver;
+    private int port;
+
+    @BeforeEach
+    void start() throws Exception {
+        try (var probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            this.port = probe.getLocalPort();
+        }
+        // a single worker, every event stream would take it up if it kept reading there
+        this.webserver = Webserver.builder().port(this.port).threads(1).build();
+        this.webserver.registerRoute("GET", "/events", new EventStreamHandler() {
+            @Override
+            public void open(EventStream stream) {
+                streams.add(stream);
+                stream.send("open");
+            }
+        });
+        this.webserver.registerRoute("GET", "/later", new AsyncWebserverHandler() {
+            @Override
+            public CompletionStage<?> handleAsync(WebserverRequest request, WebserverResponse response) {
+                return later;
+            }
+        });
+        this.webserver.registerRoute("GET", "/hello", new WebserverHandler() {
+            @Override
+            public void handle(WebserverRequest request, WebserverResponse response) throws IOException {
+                response.send("hello");
+            }
+        });
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        for (var client : this.clients)
+            client.close();
+        this.webserver.close();
+    }
+
+    @Test
+    void eventStreamsDoNotOccupyTheWorkers() throws IOException {
+        var readers = new ArrayList<BufferedReader>();
+        for (var i = 0; i < 3; i++) {
+            var reader = get("/events", "");
+            assertTrue(readUntil(reader, "data: open"));
+            readers.add(reader);
+        }
+
+        // closed after the answer, so the last line of the body ends
+        var hello = get("/hello", "Connection: close\r\n");
+        assertEquals("HTTP/1.1 200 OK", hello.readLine());
+        assertTrue(readUntil(hello, "hello"));
+
+        // messages are still written to every open stream
+        assertEquals(3, this.streams.size());
+        for (var stream : this.streams)
+            assertTrue(stream.send("later"));
+        for (var reader : readers)
+            assertTrue(readUntil(reader, "data: later"));
+    }
+
+    @Test
+    void asyncHandlersDoNotOccupyTheWorkers() throws IOException {
+        var pending = get("/later", "Connection: close\r\n");
+        var hello = get("/hello", "Connection: close\r\n");
+        assertTrue(readUntil(hello, "hello"));
+
+        this.later.complete("later");
+        assertEquals("HTTP/1.1 200 OK", pending.readLine());
+        assertTrue(readUntil(pending, "later"));
+    }
+
+    @Test
+    void http2ConnectionsDoNotOccupyTheWorkers() throws IOException {
+        // prior knowledge, the stream of the GET has to run while the connection is read
+        var client = http2();
+        http2Get(client, 1, "/hello");
+        assertEquals("hello", readData(client, 1));
+    }
+
+    @Test
+    void asyncHandlersDoNotOccupyHttp2Workers() throws IOException {
+        var client = http2();
+        http2Get(client, 1, "/later");
+        http2Get(client, 3, "/hello");
+        assertEquals("hello", readData(client, 3));
+
+        this.later.complete("later");
+        assertEquals("later", readData(client, 1));
+    }
+
+    private Socket http2() throws IOException {
+        var client = new Socket(InetAddress.getLoopbackAddress(), this.port);
+        client.setSoTimeout(5000);
+        this.clients.add(client);
+        var out = new DataOutputStream(client.getOutputStream());
+        out.write(WebserverHttp2.PREFACE);
+        writeFrame(out, 0x4, 0, 0, new byte[0]);
+        out.flush();
+        return client;
+    }
+
+    private static void http2Get(Socket client, int streamId, String path) throws IOException {
+        var block = new ByteArrayOutputStream();
+        var encoder = new WebserverHpack.Encoder();
+        encoder.begin(block);
+        encoder.encode(block, ":method", "GET");
+        encoder.encode(block, ":scheme", "http");
+        encoder.encode(block, ":path", path);
+        encoder.encode(block, ":authority", "localhost");
+        var out = new DataOutputStream(client.getOutputStream());
+        writeFrame(out, 0x1, 0x1 | 0x4, streamId, block.toByteArray());
+        out.flush();
+    }
+
+    private static void writeFrame(DataOutputStream out, int type, int flags, int streamId, byte[] payload) throws IOException {
+        out.writeByte(payload.length >>> 16);
+        out.writeShort(payload.length);
+        out.writeByte(type);
+        out.writeByte(flags);
+        out.writeInt(streamId);
+        out.write(payload);
+    }
+
+    private static String readData(Socket client, int streamId) throws IOException {
+        // the first DATA frame, other frames and streams are skipped
+        var in = new DataInputStream(client.getInputStream());
+        while (true) {
+            var length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+            var type = in.readUnsignedByte();
+            in.readUnsignedByte();
+            var id = in.readInt() & 0x7FFFFFFF;
+            var payload = new byte[length];
+            in.readFully(payload);
+            if (type == 0x0 && id == streamId && length > 0)
+                return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+
+    private BufferedReader get(String path, String headers) throws IOException {
+        var client = new Socket(InetAddress.getLoopbackAddress(), this.port);
+        client.setSoTimeout(5000);
+        this.clients.add(client);
+        client.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n" + headers + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        client.getOutputStream().flush();
+        return new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static boolean readUntil(BufferedReader reader, String expected) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null)
+            if (line.endsWith(expected))
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,279 @@
+package de.lheinrich.lhdf.webserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class WebserverHttp2Test {
+
+    private final static int DATA = 0x0;
+    private final static int HEADERS = 0x1;
+    private final static int RST_STREAM = 0x3;
+    private final static int SETTINGS = 0x4;
+    private final static int PING = 0x6;
+    private final static int GOAWAY = 0x7;
+    private final static int WINDOW_UPDATE = 0x8;
+
+    private final static int FLAG_END_STREAM = 0x1;
+    private final static int FLAG_END_HEADERS = 0x4;
+
+    private final CountDownLatch unblock = new CountDownLatch(1);
+    private final AtomicInteger started = new AtomicInteger();
+    private final List<Frame> received = new ArrayList<>();
+    private final WebserverHpack.Encoder encoder = new WebserverHpack.Encoder();
+    private Webserver webserver;
+    private ExecutorService executor;
+    private ServerSocket serverSocket;
+    private Socket client;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    @BeforeEach
+    void connect() throws Exception {
+        this.webserver = Webserver.builder().build();
+        this.webserver.registerRoute("GET", "/hello", new WebserverHandler() {
+            @Override
+            public void handle(WebserverRequest request, WebserverResponse response) throws IOException {
+                response.send("hello");
+            }
+        });
+        this.webserver.registerRoute("GET", "/block", new WebserverHandler() {
+            @Override
+            public void handle(WebserverRequest request, WebserverResponse response) throws IOException {
+                started.incrementAndGet();
+                try {
+                    unblock.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                response.send("done");
+            }
+        });
+        this.webserver.registerRoute("POST", "/upload", new WebserverHandler() {
+            @Override
+            public void handle(WebserverRequest request, WebserverResponse response) throws IOException {
+                response.send(String.valueOf(request.getBodyLength()));
+            }
+        });
+
+        this.executor = Executors.newCachedThreadPool();
+        this.serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        this.client = new Socket(InetAddress.getLoopbackAddress(), this.serverSocket.getLocalPort());
+        this.client.setSoTimeout(5000);
+        var socket = this.serverSocket.accept();
+        this.executor.execute(() -> {
+            try (socket) {
+                new WebserverHttp2(this.webserver, this.executor, socket, socket.getInputStream(), new BufferedOutputStream(socket.getOutputStream()), ByteBuffer.allocate(0))
+                        .serve(WebserverHttp2.PREFACE, null, null);
+            } catch (IOException ignore) {
+            }
+        });
+
+        this.in = new DataInputStream(this.client.getInputStream());
+        this.out = new DataOutputStream(new BufferedOutputStream(this.client.getOutputStream()));
+        this.out.write(WebserverHttp2.PREFACE);
+        writeFrame(SETTINGS, 0, 0, new byte[0]);
+        // the server settings, its connection window and the settings ACK are read up to here
+        sync();
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        this.unblock.countDown();
+        this.client.close();
+        this.serverSocket.close();
+        this.webserver.close();
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    void answersRequests() throws IOException {
+        request(1, "GET", "/hello", true);
+        this.out.flush();
+        var headers = readFrame(HEADERS);
+        assertEquals(1, headers.streamId);
+        var fields = new WebserverHpack.Decoder(4096).decode(headers.payload);
+        assertEquals(":status", fields.get(0)[0]);
+        assertEquals("200", fields.get(0)[1]);
+        var body = new ByteArrayOutputStream();
+        Frame frame;
+        do {
+            frame = readFrame(DATA);
+            body.write(frame.payload);
+        } while ((frame.flags & FLAG_END_STREAM) == 0);
+        assertEquals("hello", body.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void countsResetStreamsUntilTheirHandlerReturns() throws IOException {
+        for (var i = 0; i < 150; i++) {
+            var streamId = i * 2 + 1;
+            request(streamId, "GET", "/block", true);
+            writeFrame(RST_STREAM, 0, streamId, new byte[]{0, 0, 0, 0x8});
+        }
+        sync();
+
+        // every stream beyond the limit is refused, although the client reset the running ones
+        var refused = 0;
+        for (var frame : this.received)
+            if (frame.type == RST_STREAM && frame.payload[3] == WebserverHttp2.REFUSED_STREAM)
+                refused++;
+        assertEquals(50, refused);
+        assertTrue(this.started.get() <= 100);
+    }
+
+    @Test
+    void goesAwayAfterTooManyResets() throws IOException {
+        // streams waiting for their body are reset before a handler runs
+        for (var i = 0; i < 250; i++) {
+            var streamId = i * 2 + 1;
+            request(streamId, "POST", "/upload", false);
+            writeFrame(RST_STREAM, 0, streamId, new byte[]{0, 0, 0, 0x8});
+        }
+        this.out.flush();
+
+        var goAway = readFrame(GOAWAY);
+        assertEquals(WebserverHttp2.ENHANCE_YOUR_CALM, ByteBuffer.wrap(goAway.payload).getInt(4));
+    }
+
+    @Test
+    void returnsBufferedWindowsAfterTheHandler() throws IOException {
+        request(1, "POST", "/upload", false);
+        writeFrame(DATA, 0, 1, new byte[1000]);
+        sync();
+        for (var frame : this.received)
+            assertTrue(frame.type != WINDOW_UPDATE, "window returned before the handler consumed the body");
+
+        writeFrame(DATA, FLAG_END_STREAM, 1, new byte[0]);
+        this.out.flush();
+        var update = readFrame(WINDOW_UPDATE);
+        assertEquals(0, update.streamId);
+        assertEquals(1000, ByteBuffer.wrap(update.payload).getInt());
+    }
+
+    @Test
+    void returnsSpooledWindowsAtOnce() throws IOException {
+        request(1, "POST", "/upload", false);
+        for (var i = 0; i < 5; i++)
+            writeFrame(DATA, 0, 1, new byte[16384]);
+        sync();
+
+        // the body no longer fits in memory, it is written to a temp file and both windows open again
+        var connection = 0;
+        var stream = 0;
+        for (var frame : this.received) {
+            if (frame.type != WINDOW_UPDATE)
+                continue;
+            if (frame.streamId == 0)
+                connection += ByteBuffer.wrap(frame.payload).getInt();
+            else
+                stream += ByteBuffer.wrap(frame.payload).getInt();
+        }
+        assertEquals(5 * 16384, connection);
+        assertEquals(5 * 16384, stream);
+
+        writeFrame(DATA, FLAG_END_STREAM, 1, new byte[0]);
+        this.out.flush();
+        readFrame(HEADERS);
+        assertEquals(String.valueOf(5 * 16384), new String(readFrame(DATA).payload, StandardCharsets.UTF_8));
+    }
+
+    private void sync() throws IOException {
+        // a PING is answered after every frame sent before it was handled
+        this.received.clear();
+        writeFrame(PING, 0, 0, new byte[8]);
+        this.out.flush();
+        Frame frame;
+        while ((frame = readFrame()).type != PING)
+            this.received.add(frame);
+    }
+
+    private void request(int streamId, String method, String path, boolean endStream) throws IOException {
+        var block = new ByteArrayOutputStream();
+        this.encoder.begin(block);
+        this.encoder.encode(block, ":method", method);
+        this.encoder.encode(block, ":scheme", "http");
+        this.encoder.encode(block, ":path", path);
+        this.encoder.encode(block, ":authority", "localhost");
+        writeFrame(HEADERS, FLAG_END_HEADERS | (endStream ? FLAG_END_STREAM : 0), streamId, block.toByteArray());
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        this.out.writeByte(payload.length >>> 16);
+        this.out.writeShort(payload.length);
+        this.out.writeByte(type);
+        this.out.writeByte(flags);
+        this.out.writeInt(streamId);
+        this.out.write(payload);
+    }
+
+    private Frame readFrame(int type) throws IOException {
+        Frame frame;
+        while ((frame = readFrame()).type != type) {
+            // other frames are skipped
+        }
+        return frame;
+    }
+
+    private Frame readFrame() throws IOException {
+        var length = (this.in.readUnsignedByte() << 16) | this.in.readUnsignedShort();
+        var frame = new Frame();
+        frame.type = this.in.readUnsignedByte();
+        frame.flags = this.in.readUnsignedByte();
+        frame.streamId = this.in.readInt() & 0x7FFFFFFF;
+        frame.payload = new byte[length];
+        this.in.readFully(frame.payload);
+        return frame;
+    }
+
+    private static class Frame {
+
+        private int type;
+        private int flags;
+        private int streamId;
+        private byte[] payload;
+    }
+}
@@ -0,0 +1,163 @@
+package de.lheinrich.lhdf.webserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * Copyright (c) 2018 Lennart Heinrich
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+class WebserverParserTest {
+
+    private final static int MAX_HEAD = 1024;
+    private final static int MAX_BODY = 4096;
+
+    @Test
+    void parsesRequestLineAndHeaders() throws WebserverException {
+        var request = parse("GET /users/1?x=2 HTTP/1.1\r\nHost: example.org\r\nX-Custom:  value \r\n\r\n");
+        assertEquals("GET", request.getMethod());
+        assertEquals("/users/1", request.getPath());
+        assertEquals("x=2", request.getQuery());
+        assertEquals("HTTP/1.1", request.getVersion());
+        assertEquals("example.org", request.getHeader("host"));
+        assertEquals("value", request.getHeader("X-Custom"));
+    }
+
+    @Test
+    void parsesContentLengthBody() throws WebserverException {
+        var request = parse("POST / HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello");
+        assertEquals("hello", request.getBodyString());
+    }
+
+    @Test
+    void parsesSplitInput() throws WebserverException {
+        var parser = new WebserverParser(MAX_HEAD, MAX_BODY);
+        var raw = bytes("POST /a HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc");
+        var buffer = ByteBuffer.allocate(raw.length);
+        WebserverRequest request = null;
+        for (var b : raw) {
+            assertNull(request);
+            // unconsumed bytes of an unfinished line stay in the buffer
+            buffer.put(b).flip();
+            request = parser.parse(buffer);
+            buffer.compact();
+        }
+        assertNotNull(request);
+        assertEquals("abc", request.getBodyString());
+    }
+
+    @Test
+    void parsesPipelinedRequests() throws WebserverException {
+        var parser = new WebserverParser(MAX_HEAD, MAX_BODY);
+        var buffer = ByteBuffer.wrap(bytes("GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\n\r\n"));
+        assertEquals("/a", parser.parse(buffer).getPath());
+        assertEquals("/b", parser.parse(buffer).getPath());
+        assertTrue(parser.isIdle());
+    }
+
+    @Test
+    void parsesChunkedBodyWithExtensionsAndTrailers() throws WebserverException {
+        var request = parse("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;name=value\r\nhello\r\n"
+                + "7\r\n, world\r\n"
+                + "0\r\nX-Trailer: yes\r\n\r\n");
+        assertEquals("hello, world", request.getBodyString());
+    }
+
+    @Test
+    void rejectsMalformedChunks() {
+        assertStatus(400, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n");
+        assertStatus(400, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabcd\r\n");
+    }
+
+    @Test
+    void rejectsOversizedChunkedBody() {
+        assertStatus(413, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n2000\r\n");
+    }
+
+    @Test
+    void limitsUnfinishedLinesInEveryState() {
+        var chunked = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n";
+        assertStatus(431, "GET /" + "a".repeat(MAX_HEAD));
+        assertStatus(431, "GET / HTTP/1.1\r\nX: " + "a".repeat(MAX_HEAD));
+        // an endless chunk size line or trailer must not let the caller grow its buffer forever
+        assertStatus(400, chunked + "1" + ";".repeat(MAX_HEAD));
+        assertStatus(400, chunked + "1\r\na" + " ".repeat(MAX_HEAD + 1));
+        assertStatus(431, chunked + "0\r\nX-Trailer: " + "a".repeat(MAX_HEAD));
+    }
+
+    @Test
+    void countsTrailersTowardTheHeadLimit() {
+        var head = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n";
+        var trailer = "X-Trailer: " + "a".repeat(100) + "\r\n";
+        assertStatus(431, head + "0\r\n" + trailer.repeat(MAX_HEAD / trailer.length() + 1) + "\r\n");
+    }
+
+    @Test
+    void rejectsConflictingContentLengths() throws WebserverException {
+        assertStatus(400, "POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n\r\nhello!");
+        assertEquals("hello", parse("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\nhello").getBodyString());
+    }
+
+    @Test
+    void rejectsMalformedHeads() {
+        assertStatus(400, "GET\r\n\r\n");
+        assertStatus(400, "GET / HTTP/1.1\r\nNoColon\r\n\r\n");
+        assertStatus(400, "POST / HTTP/1.1\r\nContent-Length: 1x\r\n\r\n");
+        assertStatus(413, "POST / HTTP/1.1\r\nContent-Length: 5000\r\n\r\n");
+    }
+
+    @Test
+    void keepsBinaryBodies() throws WebserverException {
+        var body = new byte[300];
+        for (var i = 0; i < body.length; i++)
+            body[i] = (byte) i;
+        var head = bytes("PUT / HTTP/1.1\r\nContent-Length: 300\r\n\r\n");
+        var raw = Arrays.copyOf(head, head.length + body.length);
+        System.arraycopy(body, 0, raw, head.length, body.length);
+        assertArrayEquals(body, new WebserverParser(MAX_HEAD, MAX_BODY).parse(ByteBuffer.wrap(raw)).getBody());
+    }
+
+    private static WebserverRequest parse(String raw) throws WebserverException {
+        var request = new WebserverParser(MAX_HEAD, MAX_BODY).parse(ByteBuffer.wrap(bytes(raw)));
+        assertNotNull(request);
+        return request;
+    }
+
+    private static void assertStatus(int status, String raw) {
+        var ex = assertThrows(WebserverException.class, () -> new WebserverParser(MAX_HEAD, MAX_BODY).parse(ByteBuffer.wrap(bytes(raw))));
+        assertEquals(status, ex.getStatus());
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}